@@ -0,0 +1,375 @@
+package plugins.N2NChat.core;
+
+import freenet.support.SimpleFieldSet;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * One chat frame: a message, join, leave, or invite step for one room, or one of the control frames that keep a room
+ * or link working, such as acknowledgements, rosters, history, PINGs, and typing states. Fields are shared between
+ * frame types; each field's doc says what it holds for which. Frames are immutable so that one can be queued
+ * for several peers. ChatFrameCodec converts them to and from the wire, and keeps each encoding on the frame so that
+ * it is only made once however many peers the frame goes to.
+ */
+public class ChatFrame {
+
+	/** Type of frame. Ex: N2NChatPlugin.MESSAGE */
+	public final int type;
+	/** Room the frame is about. */
+	public final long globalIdentifier;
+	/** Participant the frame is about, or null if it is the sender. */
+	public final ByteArray pubKeyHash;
+	/** Username of the joining or invited participant. Null if not applicable. */
+	public final String username;
+	/** Name of the room being offered. Null if not applicable. */
+	public final String roomName;
+	/**
+	 * Time a message was composed or links announced, or of a change in typing state by the typist's clock (TYPING),
+	 * in milliseconds since the epoch, or zero if not applicable.
+	 */
+	public final long timeComposed;
+	/** Text of a message. Null if not applicable. */
+	public final String text;
+	/** Whether a join should be displayed. Only applicable to joins. */
+	public final boolean displayJoin;
+	/**
+	 * Identifier of a message, join, or leave, the same on every copy of it in the room, or zero if the node that
+	 * sent it did not give one. Used to drop copies that arrive more than once.
+	 */
+	public final long messageId;
+	/** Cumulative acknowledgement: every message up to this sequence number was received. Only for ACK. */
+	public final long ack;
+	/** Sequence numbers received past a gap (ACK) or missing (NACK). Null if not applicable. Not to be modified. */
+	public final long[] seqs;
+	/**
+	 * Public key hashes of the participants directly linked with the one announcing (LINKS), or of participants in the
+	 * room (ROSTER). Null if not applicable. Not to be modified.
+	 */
+	public final List<ByteArray> links;
+	/** Most links in the relay tree the announcing participant will take. Only for LINKS. */
+	public final int maxFanOut;
+	/** Usernames of the participants in links, in the same order. Only for ROSTER. Not to be modified. */
+	public final List<String> usernames;
+	/** Which part of a roster or of history this is, counting from zero. Only for ROSTER and HISTORY. */
+	public final int part;
+	/** Number of parts the roster or history was split into. Only for ROSTER and HISTORY. */
+	public final int parts;
+	/** Lines of history in the HistoryStore record format. Only for HISTORY. Not to be modified. */
+	public final byte[] data;
+	/** Value of each bucket of a membership digest. Only for DIGEST. Not to be modified. See MembershipDigest. */
+	public final long[] buckets;
+	/** Most lines of history wanted. Only for HISTORY_REQUEST. */
+	public final int maxLines;
+	/**
+	 * Time of the earliest line of history wanted, in milliseconds since the epoch, or zero for no limit. Only for
+	 * HISTORY_REQUEST.
+	 */
+	public final long since;
+	/** Whether the participant is typing, as opposed to having stopped. Only for TYPING. */
+	public final boolean typing;
+	/** Sequence number of this message on the hop it was sent over, or zero if none. See ReliableLink. */
+	public final long hopSeq;
+	/**
+	 * Number of hops a message, join, or leave has taken, counting the one it was sent over, or zero if the node
+	 * that sent it does not count them.
+	 */
+	public final int hops;
+	/**
+	 * Time a message was sent by its composer, then the time each node that relayed it received it, in
+	 * milliseconds since the epoch by each node's clock. Null if not traced. Not to be modified.
+	 */
+	public final long[] hopTimes;
+
+	/**
+	 * The same frame without the fields that change at each hop: hopSeq, hops, and hopTimes. Encodings are kept on
+	 * it, as they do not include those fields, so that copies for different hops share them. This frame itself if
+	 * it has none of them.
+	 */
+	final ChatFrame unsequenced;
+
+	/** Binary encoding of the frame's body, or null if not yet made. If received in binary, the bytes received. */
+	volatile byte[] body;
+	/** Legacy encoding of the frame, or null if not yet made. Never sent itself, as the node adds fields to it. */
+	volatile SimpleFieldSet fieldSet;
+
+	private static final Random random = new Random();
+
+	ChatFrame(int type, long globalIdentifier, ByteArray pubKeyHash, String username, String roomName,
+	        long timeComposed, String text, boolean displayJoin, long messageId, long ack, long[] seqs,
+	        List<ByteArray> links, int maxFanOut, List<String> usernames, int part, int parts, byte[] data,
+	        long[] buckets, int maxLines, long since, boolean typing) {
+		this.type = type;
+		this.globalIdentifier = globalIdentifier;
+		this.pubKeyHash = pubKeyHash;
+		this.username = username;
+		this.roomName = roomName;
+		this.timeComposed = timeComposed;
+		this.text = text;
+		this.displayJoin = displayJoin;
+		this.messageId = messageId;
+		this.ack = ack;
+		this.seqs = seqs;
+		this.links = links;
+		this.maxFanOut = maxFanOut;
+		this.usernames = usernames;
+		this.part = part;
+		this.parts = parts;
+		this.data = data;
+		this.buckets = buckets;
+		this.maxLines = maxLines;
+		this.since = since;
+		this.typing = typing;
+		this.hopSeq = 0;
+		this.hops = 0;
+		this.hopTimes = null;
+		this.unsequenced = this;
+	}
+
+	private ChatFrame(ChatFrame unsequenced, long hopSeq, int hops, long[] hopTimes) {
+		this.type = unsequenced.type;
+		this.globalIdentifier = unsequenced.globalIdentifier;
+		this.pubKeyHash = unsequenced.pubKeyHash;
+		this.username = unsequenced.username;
+		this.roomName = unsequenced.roomName;
+		this.timeComposed = unsequenced.timeComposed;
+		this.text = unsequenced.text;
+		this.displayJoin = unsequenced.displayJoin;
+		this.messageId = unsequenced.messageId;
+		this.ack = unsequenced.ack;
+		this.seqs = unsequenced.seqs;
+		this.links = unsequenced.links;
+		this.maxFanOut = unsequenced.maxFanOut;
+		this.usernames = unsequenced.usernames;
+		this.part = unsequenced.part;
+		this.parts = unsequenced.parts;
+		this.data = unsequenced.data;
+		this.buckets = unsequenced.buckets;
+		this.maxLines = unsequenced.maxLines;
+		this.since = unsequenced.since;
+		this.typing = unsequenced.typing;
+		this.hopSeq = hopSeq;
+		this.hops = hops;
+		this.hopTimes = hopTimes;
+		this.unsequenced = unsequenced;
+	}
+
+	/**
+	 * @param hopSeq Sequence number on the hop the frame is about to be sent over. Zero for none.
+	 * @return A copy of this frame with that sequence number, sharing its encodings.
+	 */
+	public ChatFrame withHopSeq(long hopSeq) {
+		return perHop(hopSeq, hops, hopTimes);
+	}
+
+	/**
+	 * @param hops Number of hops the frame will have taken once sent. Zero for not counted.
+	 * @param hopTimes Times it was sent and received at each hop so far, or null if not traced.
+	 * @return A copy of this frame with that hop count and trace, sharing its encodings.
+	 */
+	public ChatFrame withHops(int hops, long[] hopTimes) {
+		return perHop(hopSeq, hops, hopTimes);
+	}
+
+	ChatFrame perHop(long hopSeq, int hops, long[] hopTimes) {
+		if (hopSeq == this.hopSeq && hops == this.hops && hopTimes == this.hopTimes) {
+			return this;
+		}
+		if (hopSeq == 0 && hops == 0 && hopTimes == null) {
+			return unsequenced;
+		}
+		return new ChatFrame(unsequenced, hopSeq, hops, hopTimes);
+	}
+
+	/**
+	 * @param composedBy Public key hash of the participant the frame is about.
+	 * @return A frame to relay on that participant's behalf, without the fields that change at each hop. If this
+	 * frame already names them it is reused, so that its encodings, including the bytes it was received as, are too.
+	 */
+	public ChatFrame relayedFor(ByteArray composedBy) {
+		if (composedBy.equals(pubKeyHash)) {
+			return unsequenced;
+		}
+		return new ChatFrame(type, globalIdentifier, composedBy, username, roomName, timeComposed, text, displayJoin,
+		        messageId, ack, seqs, links, maxFanOut, usernames, part, parts, data, buckets, maxLines,
+		        since, typing);
+	}
+
+	/**
+	 * @return A new random message identifier. Never zero.
+	 */
+	public static long newMessageId() {
+		long messageId;
+		do {
+			messageId = random.nextLong();
+		} while (messageId == 0);
+		return messageId;
+	}
+
+	/**
+	 * @param globalIdentifier Room the message was said in.
+	 * @param composedBy Public key hash of the composer, or null if it is the sender.
+	 * @param timeComposed Time the message was composed.
+	 * @param text Text of the message.
+	 * @param messageId Identifier of the message, or zero if it has none.
+	 * @return A MESSAGE frame.
+	 */
+	public static ChatFrame message(long globalIdentifier, ByteArray composedBy, long timeComposed, String text,
+	        long messageId) {
+		return new ChatFrame(N2NChatPlugin.MESSAGE, globalIdentifier, composedBy, null, null, timeComposed, text,
+		        false, messageId, 0, null, null, 0, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room joined.
+	 * @param pubKeyHash Public key hash of the participant who joined, or null if it is the sender.
+	 * @param username Username of the participant who joined.
+	 * @param displayJoin Whether the join should be displayed.
+	 * @param messageId Identifier of the join, or zero if it has none.
+	 * @return A JOIN frame.
+	 */
+	public static ChatFrame join(long globalIdentifier, ByteArray pubKeyHash, String username, boolean displayJoin,
+	        long messageId) {
+		return new ChatFrame(N2NChatPlugin.JOIN, globalIdentifier, pubKeyHash, username, null, 0, null, displayJoin,
+		        messageId, 0, null, null, 0, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room left.
+	 * @param pubKeyHash Public key hash of the participant who left, or null if it is the sender.
+	 * @param messageId Identifier of the leave, or zero if it has none.
+	 * @return A LEAVE frame.
+	 */
+	public static ChatFrame leave(long globalIdentifier, ByteArray pubKeyHash, long messageId) {
+		return new ChatFrame(N2NChatPlugin.LEAVE, globalIdentifier, pubKeyHash, null, null, 0, null, false,
+		        messageId, 0, null, null, 0, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the invite is to.
+	 * @param username Username the invited node will have.
+	 * @param roomName Name of the room.
+	 * @return An OFFER_INVITE frame.
+	 */
+	public static ChatFrame offerInvite(long globalIdentifier, String username, String roomName) {
+		return new ChatFrame(N2NChatPlugin.OFFER_INVITE, globalIdentifier, null, username, roomName, 0, null, false,
+		        0, 0, null, null, 0, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param type RETRACT_INVITE, ACCEPT_INVITE, or REJECT_INVITE.
+	 * @param globalIdentifier Room the invite is to.
+	 * @return A frame with no fields other than its type and room.
+	 */
+	public static ChatFrame invite(int type, long globalIdentifier) {
+		return new ChatFrame(type, globalIdentifier, null, null, null, 0, null, false, 0, 0, null, null, 0, null, 0,
+		        0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the messages were said in.
+	 * @param cumulative Every message up to and including this sequence number was received.
+	 * @param selective Sequence numbers received past a gap.
+	 * @return An ACK frame.
+	 */
+	public static ChatFrame ack(long globalIdentifier, long cumulative, long[] selective) {
+		return new ChatFrame(N2NChatPlugin.ACK, globalIdentifier, null, null, null, 0, null, false, 0, cumulative,
+		        selective, null, 0, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the messages were said in.
+	 * @param missing Sequence numbers of messages not received.
+	 * @return A NACK frame.
+	 */
+	public static ChatFrame nack(long globalIdentifier, long[] missing) {
+		return new ChatFrame(N2NChatPlugin.NACK, globalIdentifier, null, null, null, 0, null, false, 0, 0, missing,
+		        null, 0, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the digest is of.
+	 * @param buckets Value of each bucket. See MembershipDigest.
+	 * @return A DIGEST frame.
+	 */
+	public static ChatFrame digest(long globalIdentifier, long[] buckets) {
+		return new ChatFrame(N2NChatPlugin.DIGEST, globalIdentifier, null, null, null, 0, null, false, 0, 0, null,
+		        null, 0, null, 0, 0, null, buckets, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the links are in.
+	 * @param announcedBy Public key hash of the participant whose links these are, or null if it is the sender.
+	 * @param timeAnnounced Time of the announcement, so that a later one from the same participant replaces it.
+	 * @param links Public key hashes of the participants they are directly linked with.
+	 * @param maxFanOut Most links in the relay tree they will take.
+	 * @param messageId Identifier of the announcement.
+	 * @return A LINKS frame.
+	 */
+	public static ChatFrame links(long globalIdentifier, ByteArray announcedBy, long timeAnnounced,
+	        List<ByteArray> links, int maxFanOut, long messageId) {
+		return new ChatFrame(N2NChatPlugin.LINKS, globalIdentifier, announcedBy, null, null, timeAnnounced, null,
+		        false, messageId, 0, null, links, maxFanOut, null, 0, 0, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the participants are in.
+	 * @param pubKeyHashes Public key hashes of participants in the room.
+	 * @param usernames Their usernames, in the same order.
+	 * @param part Which part of the roster this is, counting from zero.
+	 * @param parts Number of parts the roster was split into.
+	 * @param messageId Identifier of the roster, the same on every part of it.
+	 * @return A ROSTER frame.
+	 */
+	public static ChatFrame roster(long globalIdentifier, List<ByteArray> pubKeyHashes, List<String> usernames,
+	        int part, int parts, long messageId) {
+		return new ChatFrame(N2NChatPlugin.ROSTER, globalIdentifier, null, null, null, 0, null, false, messageId, 0,
+		        null, pubKeyHashes, 0, usernames, part, parts, null, null, 0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room history is wanted from.
+	 * @param maxLines Most lines wanted.
+	 * @param since Time of the earliest line wanted, or zero for no limit.
+	 * @return A HISTORY_REQUEST frame.
+	 */
+	public static ChatFrame historyRequest(long globalIdentifier, int maxLines, long since) {
+		return new ChatFrame(N2NChatPlugin.HISTORY_REQUEST, globalIdentifier, null, null, null, 0, null, false, 0, 0,
+		        null, null, 0, null, 0, 0, null, null, maxLines, since, false);
+	}
+
+	/**
+	 * @param type PING or PONG.
+	 * @param nonce Identifier of the PING, which its PONG echoes.
+	 * @return A frame for no room, which only shows the sender is there.
+	 */
+	public static ChatFrame ping(int type, long nonce) {
+		return new ChatFrame(type, 0, null, null, null, 0, null, false, nonce, 0, null, null, 0, null, 0, 0, null, null,
+		        0, 0, false);
+	}
+
+	/**
+	 * @param globalIdentifier Room the participant is typing in.
+	 * @param typedBy Public key hash of the participant, or null if it is the sender.
+	 * @param typing True if they are typing; false if they stopped.
+	 * @param time Time of the change, so that an older one arriving later is ignored.
+	 * @return A TYPING frame, with the time in timeComposed. It is sent in the ephemeral lane; see
+	 * ChatSender.sendEphemeral().
+	 */
+	public static ChatFrame typing(long globalIdentifier, ByteArray typedBy, boolean typing, long time) {
+		return new ChatFrame(N2NChatPlugin.TYPING, globalIdentifier, typedBy, null, null, time, null, false, 0, 0,
+		        null, null, 0, null, 0, 0, null, null, 0, 0, typing);
+	}
+
+	/**
+	 * @param globalIdentifier Room the history is from.
+	 * @param lines Lines in the HistoryStore record format, oldest first.
+	 * @param part Which part of the history this is, counting from zero.
+	 * @param parts Number of parts the history was split into.
+	 * @return A HISTORY frame.
+	 */
+	public static ChatFrame history(long globalIdentifier, byte[] lines, int part, int parts) {
+		return new ChatFrame(N2NChatPlugin.HISTORY, globalIdentifier, null, null, null, 0, null, false, 0, 0, null,
+		        null, 0, null, part, parts, lines, null, 0, 0, false);
+	}
+}
@@ -0,0 +1,770 @@
+package plugins.N2NChat.core;
+
+import freenet.node.FSParseException;
+import freenet.support.Base64;
+import freenet.support.IllegalBase64Exception;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Converts chat frames to and from N2N message data. Two formats are understood:
+ * <p>
+ * Legacy: a SimpleFieldSet as text, with strings and hashes in Base64, and several frames sent together as a BUNDLE.
+ * Every version understands this.
+ * <p>
+ * Binary: a zero byte, which text never starts with, a version byte, the sender's capabilities as a bit mask, and
+ * then any number of frames. Each frame is length-prefixed, so fields added in later versions can be skipped. Frame
+ * body: type byte, 8-byte global identifier, flags saying which optional fields follow as a variable-length integer,
+ * then each present field: public key hash and strings as length-prefixed bytes (UTF-8 for strings), time composed
+ * as 8 bytes, the acknowledgement and sequence number list as variable-length integers, the message identifier as
+ * 8 bytes, announced links as the relay tree fan-out and a count of public key hashes, a roster as its part number,
+ * number of parts, and a count of public key hash and username pairs, lines of history as their part number, number
+ * of parts, and length-prefixed bytes, membership digest buckets as a count and variable-length integers, and a
+ * history request as the most lines and the time of the earliest line wanted, as variable-length integers.
+ * <p>
+ * After the body come the fields that change at each hop, and so are kept out of the shared body: the hop sequence
+ * number (zero for none), the hop count, and the hop times as a count and absolute times, each present only if it or
+ * a later one is. Readers ignore any they do not know. Lengths, counts, sequence numbers, and times are unsigned
+ * variable-length integers, 7 bits per byte, least significant first. Only sent to peers that advertise the binary
+ * capability. Fields only used by a frame type that needs a capability of its own are only sent to peers with it.
+ */
+public class ChatFrameCodec {
+
+	/** First byte of binary data. Legacy data is text, so never starts with this. */
+	public static final byte BINARY_MARKER = 0;
+
+	/** Version of the binary format written. Data with a later version is rejected. */
+	public static final int VERSION = 1;
+
+	/** Capability names in the order of their bits in the binary header. */
+	private static final String[] CAPABILITY_BITS = { ChatSender.CAPABILITY_BUNDLE, ChatSender.CAPABILITY_BINARY,
+	        ChatSender.CAPABILITY_ACK, ChatSender.CAPABILITY_ROSTER, ChatSender.CAPABILITY_DIGEST,
+	        ChatSender.CAPABILITY_HISTORY, ChatSender.CAPABILITY_PING,
+	        ChatSender.CAPABILITY_TYPING };
+
+	private static final int HAS_PUB_KEY_HASH = 1;
+	private static final int HAS_USERNAME = 1 << 1;
+	private static final int HAS_ROOM_NAME = 1 << 2;
+	private static final int HAS_TIME_COMPOSED = 1 << 3;
+	private static final int HAS_TEXT = 1 << 4;
+	private static final int DISPLAY_JOIN = 1 << 5;
+	private static final int HAS_ACK = 1 << 6;
+	private static final int HAS_SEQS = 1 << 7;
+	private static final int HAS_MESSAGE_ID = 1 << 8;
+	private static final int HAS_LINKS = 1 << 9;
+	private static final int HAS_ROSTER = 1 << 10;
+	private static final int HAS_DATA = 1 << 11;
+	private static final int HAS_DIGEST = 1 << 12;
+	private static final int HAS_HISTORY_REQUEST = 1 << 13;
+	private static final int TYPING = 1 << 14;
+
+	/**
+	 * Frames and capabilities read from one N2N message.
+	 */
+	public static class Decoded {
+		/** Capabilities of the sender, separated by commas, or null if it did not say. */
+		public final String capabilities;
+		public final List<ChatFrame> frames;
+
+		Decoded(String capabilities, List<ChatFrame> frames) {
+			this.capabilities = capabilities;
+			this.frames = frames;
+		}
+	}
+
+	/**
+	 * Reads N2N message data in either format. In the legacy format, frames in a bundle that cannot be read are
+	 * logged and skipped.
+	 * @param data Data of the N2N message.
+	 * @return The frames and the sender's capabilities.
+	 * @throws IOException If the data, or the only frame in it, could not be read.
+	 */
+	public static Decoded decode(byte[] data) throws IOException {
+		if (data.length > 0 && data[0] == BINARY_MARKER) {
+			return decodeBinary(data);
+		}
+		SimpleFieldSet fs = new SimpleFieldSet(string(data), false, true, false);
+		int type;
+		try {
+			type = fs.getInt("type");
+		} catch (FSParseException e) {
+			throw new IOException("Failed to read message type");
+		}
+		if (type != N2NChatPlugin.BUNDLE) {
+			return new Decoded(fs.get("capabilities"), Collections.singletonList(fromFieldSet(fs)));
+		}
+		int count = fs.getInt("count", 0);
+		List<ChatFrame> frames = new ArrayList<ChatFrame>(count);
+		for (int i = 0; i < count; i++) {
+			SimpleFieldSet frame = fs.subset(String.valueOf(i));
+			try {
+				if (frame == null) {
+					throw new IOException("Frame is missing");
+				}
+				frames.add(fromFieldSet(frame));
+			} catch (IOException e) {
+				Logger.error(ChatFrameCodec.class, "Skipping frame " + i + " of " + count + " in bundle: " +
+				        e.getMessage());
+			}
+		}
+		return new Decoded(fs.get("capabilities"), frames);
+	}
+
+	/**
+	 * Writes frames in the binary format.
+	 * @param frames Frames to write, in order.
+	 * @param capabilities Capabilities of this node, separated by commas.
+	 * @return N2N message data.
+	 */
+	public static byte[] encode(List<ChatFrame> frames, String capabilities) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(BINARY_MARKER);
+			out.writeByte(VERSION);
+			writeVarint(out, capabilityBits(capabilities));
+			writeVarint(out, frames.size());
+			for (ChatFrame frame : frames) {
+				byte[] body = body(frame);
+				if (frame == frame.unsequenced) {
+					writeVarint(out, body.length);
+					out.write(body);
+				} else {
+					ByteArrayOutputStream perHop = new ByteArrayOutputStream(16);
+					writePerHop(new DataOutputStream(perHop), frame);
+					writeVarint(out, body.length + perHop.size());
+					out.write(body);
+					perHop.writeTo(out);
+				}
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new Error("Impossible: writing to memory failed", e);
+		}
+	}
+
+	/**
+	 * Writes a frame in the legacy format. The frame is only encoded once; each call returns a new copy.
+	 * @param frame Frame to write.
+	 * @return Field set to send.
+	 */
+	public static SimpleFieldSet toFieldSet(ChatFrame frame) {
+		ChatFrame unsequenced = frame.unsequenced;
+		SimpleFieldSet fs = unsequenced.fieldSet;
+		if (fs == null) {
+			fs = encodeFieldSet(unsequenced);
+			unsequenced.fieldSet = fs;
+		}
+		fs = new SimpleFieldSet(fs);
+		if (frame.hopSeq != 0) {
+			fs.put("hopSeq", frame.hopSeq);
+		}
+		if (frame.hops != 0) {
+			fs.put("hops", frame.hops);
+		}
+		if (frame.hopTimes != null) {
+			fs.putSingle("hopTimes", join(frame.hopTimes));
+		}
+		return fs;
+	}
+
+	private static SimpleFieldSet encodeFieldSet(ChatFrame frame) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if (frame.timeComposed != 0) {
+			fs.put("timeComposed", frame.timeComposed);
+		}
+		//TODO: Why doesn't SFS allow byte arrays?
+		if (frame.text != null) {
+			fs.putSingle("text", Base64.encode(utf8(frame.text)));
+		}
+		if (frame.pubKeyHash != null) {
+			fs.putSingle("pubKeyHash", Base64.encode(frame.pubKeyHash.getBytes()));
+		}
+		if (frame.username != null) {
+			fs.putSingle("username", Base64.encode(utf8(frame.username)));
+		}
+		if (frame.roomName != null) {
+			fs.putSingle("roomName", Base64.encode(utf8(frame.roomName)));
+		}
+		if (frame.type == N2NChatPlugin.JOIN) {
+			fs.put("displayJoin", frame.displayJoin);
+		}
+		if (frame.type == N2NChatPlugin.ACK) {
+			fs.put("ack", frame.ack);
+		}
+		if (frame.type == N2NChatPlugin.TYPING) {
+			fs.put("typing", frame.typing);
+		}
+		if (frame.type == N2NChatPlugin.HISTORY_REQUEST) {
+			fs.put("maxLines", frame.maxLines);
+			fs.put("since", frame.since);
+		}
+		if (frame.messageId != 0) {
+			fs.put("messageId", frame.messageId);
+		}
+		if (frame.links != null) {
+			StringBuilder links = new StringBuilder();
+			for (ByteArray link : frame.links) {
+				if (links.length() != 0) {
+					links.append(',');
+				}
+				links.append(Base64.encode(link.getBytes()));
+			}
+			fs.putSingle("links", links.toString());
+		}
+		if (frame.type == N2NChatPlugin.LINKS) {
+			fs.put("maxFanOut", frame.maxFanOut);
+		}
+		if (frame.usernames != null) {
+			StringBuilder usernames = new StringBuilder();
+			for (String username : frame.usernames) {
+				if (usernames.length() != 0) {
+					usernames.append(',');
+				}
+				usernames.append(Base64.encode(utf8(username)));
+			}
+			fs.putSingle("usernames", usernames.toString());
+		}
+		if (frame.data != null) {
+			fs.putSingle("data", Base64.encode(frame.data));
+		}
+		if (frame.usernames != null || frame.data != null) {
+			fs.put("part", frame.part);
+			fs.put("parts", frame.parts);
+		}
+		if (frame.seqs != null) {
+			fs.putSingle("seqs", join(frame.seqs));
+		}
+		if (frame.buckets != null) {
+			fs.putSingle("buckets", join(frame.buckets));
+		}
+		fs.put("globalIdentifier", frame.globalIdentifier);
+		fs.put("type", frame.type);
+		return fs;
+	}
+
+	/**
+	 * Reads a frame in the legacy format. Only the fields its type uses are read.
+	 * @param fs Field set received.
+	 * @return The frame.
+	 * @throws IOException If a field the type needs is missing or invalid.
+	 */
+	static ChatFrame fromFieldSet(SimpleFieldSet fs) throws IOException {
+		int type;
+		long globalIdentifier;
+		try {
+			type = fs.getInt("type");
+		} catch (FSParseException e) {
+			throw new IOException("Failed to read message type");
+		}
+		try {
+			globalIdentifier = fs.getLong("globalIdentifier");
+		} catch (FSParseException e) {
+			throw new IOException("Failed to parse global identifier");
+		}
+
+		switch (type) {
+			case N2NChatPlugin.OFFER_INVITE:
+				return ChatFrame.offerInvite(globalIdentifier, base64String(fs, "username"),
+				        base64String(fs, "roomName"));
+			case N2NChatPlugin.MESSAGE:
+				long timeComposed;
+				try {
+					timeComposed = fs.getLong("timeComposed");
+				} catch (FSParseException e) {
+					throw new IOException("Failed to parse date");
+				}
+				return perHop(ChatFrame.message(globalIdentifier, pubKeyHash(fs), timeComposed,
+				        base64String(fs, "text"), fs.getLong("messageId", 0)), fs);
+			case N2NChatPlugin.JOIN:
+				boolean displayJoin = true;
+				try {
+					displayJoin = fs.getBoolean("displayJoin");
+				} catch (FSParseException e) {
+					Logger.error(ChatFrameCodec.class, "Join message did not include whether to display. " +
+					        "Defaulting to display.", e);
+				}
+				return perHop(ChatFrame.join(globalIdentifier, pubKeyHash(fs), base64String(fs, "username"),
+				        displayJoin, fs.getLong("messageId", 0)), fs);
+			case N2NChatPlugin.LEAVE:
+				return perHop(ChatFrame.leave(globalIdentifier, pubKeyHash(fs), fs.getLong("messageId", 0)), fs);
+			case N2NChatPlugin.ACK:
+				try {
+					return ChatFrame.ack(globalIdentifier, fs.getLong("ack"), seqs(fs));
+				} catch (FSParseException e) {
+					throw new IOException("Failed to parse acknowledgement");
+				}
+			case N2NChatPlugin.NACK:
+				return ChatFrame.nack(globalIdentifier, seqs(fs));
+			case N2NChatPlugin.DIGEST:
+				return ChatFrame.digest(globalIdentifier, longs(fs.get("buckets")));
+			case N2NChatPlugin.HISTORY_REQUEST:
+				return ChatFrame.historyRequest(globalIdentifier, fs.getInt("maxLines", 0), fs.getLong("since", 0));
+			case N2NChatPlugin.HISTORY:
+				String data = fs.get("data");
+				try {
+					if (data == null) {
+						throw new IOException("History has no lines");
+					}
+					return ChatFrame.history(globalIdentifier, Base64.decode(data), fs.getInt("part"),
+					        fs.getInt("parts"));
+				} catch (IllegalBase64Exception e) {
+					throw new IOException("Failed to parse lines of history");
+				} catch (FSParseException e) {
+					throw new IOException("Failed to parse history part");
+				}
+			case N2NChatPlugin.LINKS:
+				try {
+					return ChatFrame.links(globalIdentifier, pubKeyHash(fs), fs.getLong("timeComposed"), links(fs),
+					        fs.getInt("maxFanOut"), fs.getLong("messageId", 0));
+				} catch (FSParseException e) {
+					throw new IOException("Failed to parse links");
+				}
+			case N2NChatPlugin.ROSTER:
+				List<ByteArray> pubKeyHashes = links(fs);
+				List<String> usernames = usernames(fs);
+				if (pubKeyHashes.size() != usernames.size()) {
+					throw new IOException("Roster has " + pubKeyHashes.size() + " public key hashes but " +
+					        usernames.size() + " usernames");
+				}
+				try {
+					return ChatFrame.roster(globalIdentifier, pubKeyHashes, usernames, fs.getInt("part"),
+					        fs.getInt("parts"), fs.getLong("messageId", 0));
+				} catch (FSParseException e) {
+					throw new IOException("Failed to parse roster part");
+				}
+			case N2NChatPlugin.PING:
+			case N2NChatPlugin.PONG:
+				return ChatFrame.ping(type, fs.getLong("messageId", 0));
+			case N2NChatPlugin.TYPING:
+				return ChatFrame.typing(globalIdentifier, pubKeyHash(fs), fs.getBoolean("typing", false),
+				        fs.getLong("timeComposed", 0));
+			default:
+				//Invite responses and retractions have no other fields; unknown types are reported by the caller.
+				return ChatFrame.invite(type, globalIdentifier);
+		}
+	}
+
+	private static Decoded decodeBinary(byte[] data) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(data);
+		try {
+			in.get();
+			int version = in.get() & 0xFF;
+			if (version > VERSION) {
+				throw new IOException("Unsupported binary format version " + version);
+			}
+			String capabilities = capabilityNames(readVarint(in));
+			int count = readVarint(in);
+			List<ChatFrame> frames = new ArrayList<ChatFrame>(Math.min(count, 64));
+			for (int i = 0; i < count; i++) {
+				byte[] entry = readBytes(in);
+				ByteBuffer buffer = ByteBuffer.wrap(entry);
+				ChatFrame frame = decodeBody(buffer);
+				//Kept so that relaying the frame unchanged does not encode it again.
+				frame.body = buffer.hasRemaining() ? Arrays.copyOf(entry, buffer.position()) : entry;
+				frames.add(readPerHop(buffer, frame));
+			}
+			return new Decoded(capabilities, frames);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Binary chat data ended early");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Binary chat data has an invalid length");
+		}
+	}
+
+	private static void writePerHop(DataOutputStream out, ChatFrame frame) throws IOException {
+		writeVarlong(out, frame.hopSeq);
+		if (frame.hops == 0 && frame.hopTimes == null) {
+			return;
+		}
+		writeVarint(out, frame.hops);
+		if (frame.hopTimes != null) {
+			writeVarint(out, frame.hopTimes.length);
+			for (long time : frame.hopTimes) {
+				writeVarlong(out, time);
+			}
+		}
+	}
+
+	private static ChatFrame readPerHop(ByteBuffer in, ChatFrame frame) {
+		long hopSeq = in.hasRemaining() ? readVarlong(in) : 0;
+		int hops = in.hasRemaining() ? readVarint(in) : 0;
+		long[] hopTimes = null;
+		if (in.hasRemaining()) {
+			int count = readVarint(in);
+			if (count > in.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			hopTimes = new long[count];
+			for (int i = 0; i < count; i++) {
+				hopTimes[i] = readVarlong(in);
+			}
+		}
+		return frame.perHop(hopSeq, hops, hopTimes);
+	}
+
+	private static byte[] body(ChatFrame frame) throws IOException {
+		ChatFrame unsequenced = frame.unsequenced;
+		byte[] body = unsequenced.body;
+		if (body == null) {
+			body = encodeBody(unsequenced);
+			unsequenced.body = body;
+		}
+		return body;
+	}
+
+	private static byte[] encodeBody(ChatFrame frame) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int flags = (frame.pubKeyHash != null ? HAS_PUB_KEY_HASH : 0) |
+		        (frame.username != null ? HAS_USERNAME : 0) |
+		        (frame.roomName != null ? HAS_ROOM_NAME : 0) |
+		        (frame.timeComposed != 0 ? HAS_TIME_COMPOSED : 0) |
+		        (frame.text != null ? HAS_TEXT : 0) |
+		        (frame.displayJoin ? DISPLAY_JOIN : 0) |
+		        (frame.ack != 0 ? HAS_ACK : 0) |
+		        (frame.seqs != null ? HAS_SEQS : 0) |
+		        (frame.messageId != 0 ? HAS_MESSAGE_ID : 0) |
+		        (frame.links != null && frame.usernames == null ? HAS_LINKS : 0) |
+		        (frame.usernames != null ? HAS_ROSTER : 0) |
+		        (frame.data != null ? HAS_DATA : 0) |
+		        (frame.buckets != null ? HAS_DIGEST : 0) |
+		        (frame.type == N2NChatPlugin.HISTORY_REQUEST ? HAS_HISTORY_REQUEST : 0) |
+		        (frame.typing ? TYPING : 0);
+		out.writeByte(frame.type);
+		out.writeLong(frame.globalIdentifier);
+		writeVarint(out, flags);
+		if (frame.pubKeyHash != null) {
+			writeBytes(out, frame.pubKeyHash.getBytes());
+		}
+		if (frame.username != null) {
+			writeBytes(out, utf8(frame.username));
+		}
+		if (frame.roomName != null) {
+			writeBytes(out, utf8(frame.roomName));
+		}
+		if (frame.timeComposed != 0) {
+			out.writeLong(frame.timeComposed);
+		}
+		if (frame.text != null) {
+			writeBytes(out, utf8(frame.text));
+		}
+		if (frame.ack != 0) {
+			writeVarlong(out, frame.ack);
+		}
+		if (frame.seqs != null) {
+			writeLongs(out, frame.seqs);
+		}
+		if (frame.messageId != 0) {
+			out.writeLong(frame.messageId);
+		}
+		if (frame.links != null && frame.usernames == null) {
+			writeVarint(out, frame.maxFanOut);
+			writeVarint(out, frame.links.size());
+			for (ByteArray link : frame.links) {
+				writeBytes(out, link.getBytes());
+			}
+		}
+		if (frame.usernames != null) {
+			writeVarint(out, frame.part);
+			writeVarint(out, frame.parts);
+			writeVarint(out, frame.usernames.size());
+			for (int i = 0; i < frame.usernames.size(); i++) {
+				writeBytes(out, frame.links.get(i).getBytes());
+				writeBytes(out, utf8(frame.usernames.get(i)));
+			}
+		}
+		if (frame.data != null) {
+			writeVarint(out, frame.part);
+			writeVarint(out, frame.parts);
+			writeBytes(out, frame.data);
+		}
+		if (frame.buckets != null) {
+			writeLongs(out, frame.buckets);
+		}
+		if (frame.type == N2NChatPlugin.HISTORY_REQUEST) {
+			writeVarint(out, frame.maxLines);
+			writeVarlong(out, frame.since);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static ChatFrame decodeBody(ByteBuffer in) {
+		int type = in.get() & 0xFF;
+		long globalIdentifier = in.getLong();
+		int flags = readVarint(in);
+		ByteArray pubKeyHash = (flags & HAS_PUB_KEY_HASH) != 0 ? new ByteArray(readBytes(in)) : null;
+		String username = (flags & HAS_USERNAME) != 0 ? string(readBytes(in)) : null;
+		String roomName = (flags & HAS_ROOM_NAME) != 0 ? string(readBytes(in)) : null;
+		long timeComposed = (flags & HAS_TIME_COMPOSED) != 0 ? in.getLong() : 0;
+		String text = (flags & HAS_TEXT) != 0 ? string(readBytes(in)) : null;
+		long ack = (flags & HAS_ACK) != 0 ? readVarlong(in) : 0;
+		long[] seqs = (flags & HAS_SEQS) != 0 ? readLongs(in) : null;
+		long messageId = (flags & HAS_MESSAGE_ID) != 0 ? in.getLong() : 0;
+		int maxFanOut = 0;
+		List<ByteArray> links = null;
+		if ((flags & HAS_LINKS) != 0) {
+			maxFanOut = readVarint(in);
+			int count = readVarint(in);
+			if (count > in.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			links = new ArrayList<ByteArray>(count);
+			for (int i = 0; i < count; i++) {
+				links.add(new ByteArray(readBytes(in)));
+			}
+			links = Collections.unmodifiableList(links);
+		}
+		List<String> usernames = null;
+		int part = 0;
+		int parts = 0;
+		if ((flags & HAS_ROSTER) != 0) {
+			part = readVarint(in);
+			parts = readVarint(in);
+			int count = readVarint(in);
+			if (count > in.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			links = new ArrayList<ByteArray>(count);
+			usernames = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) {
+				links.add(new ByteArray(readBytes(in)));
+				usernames.add(string(readBytes(in)));
+			}
+			links = Collections.unmodifiableList(links);
+			usernames = Collections.unmodifiableList(usernames);
+		}
+		byte[] data = null;
+		if ((flags & HAS_DATA) != 0) {
+			part = readVarint(in);
+			parts = readVarint(in);
+			data = readBytes(in);
+		}
+		long[] buckets = (flags & HAS_DIGEST) != 0 ? readLongs(in) : null;
+		int maxLines = 0;
+		long since = 0;
+		if ((flags & HAS_HISTORY_REQUEST) != 0) {
+			maxLines = readVarint(in);
+			since = readVarlong(in);
+		}
+		//The fields that change at each hop, if any, follow.
+		return new ChatFrame(type, globalIdentifier, pubKeyHash, username, roomName, timeComposed, text,
+		        (flags & DISPLAY_JOIN) != 0, messageId, ack, seqs, links, maxFanOut, usernames, part, parts,
+		        data, buckets, maxLines, since, (flags & TYPING) != 0);
+	}
+
+	private static int capabilityBits(String capabilities) {
+		int bits = 0;
+		for (String capability : capabilities.split(",")) {
+			for (int i = 0; i < CAPABILITY_BITS.length; i++) {
+				if (CAPABILITY_BITS[i].equals(capability)) {
+					bits |= 1 << i;
+				}
+			}
+		}
+		return bits;
+	}
+
+	private static String capabilityNames(int bits) {
+		StringBuilder names = new StringBuilder();
+		for (int i = 0; i < CAPABILITY_BITS.length; i++) {
+			if ((bits & (1 << i)) != 0) {
+				if (names.length() != 0) {
+					names.append(',');
+				}
+				names.append(CAPABILITY_BITS[i]);
+			}
+		}
+		return names.toString();
+	}
+
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		writeVarlong(out, value);
+	}
+
+	private static void writeVarlong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static int readVarint(ByteBuffer in) {
+		long value = readVarlong(in);
+		if (value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Length is too large");
+		}
+		return (int) value;
+	}
+
+	private static long readVarlong(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.get() & 0xFF;
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IllegalArgumentException("Negative value");
+				}
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Variable-length integer is too long");
+	}
+
+	private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+		writeVarint(out, values.length);
+		for (long value : values) {
+			writeVarlong(out, value);
+		}
+	}
+
+	private static long[] readLongs(ByteBuffer in) {
+		int count = readVarint(in);
+		if (count > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = readVarlong(in);
+		}
+		return values;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(ByteBuffer in) {
+		int length = readVarint(in);
+		if (length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	private static ByteArray pubKeyHash(SimpleFieldSet fs) throws IOException {
+		String encoded = fs.get("pubKeyHash");
+		if (encoded == null) {
+			//Not included: it pertains to the sender.
+			return null;
+		}
+		try {
+			return new ByteArray(Base64.decode(encoded));
+		} catch (IllegalBase64Exception e) {
+			throw new IOException("Failed to parse public key hash");
+		}
+	}
+
+	private static ChatFrame perHop(ChatFrame frame, SimpleFieldSet fs) throws IOException {
+		String hopTimes = fs.get("hopTimes");
+		return frame.perHop(fs.getLong("hopSeq", 0), fs.getInt("hops", 0),
+		        hopTimes == null ? null : longs(hopTimes));
+	}
+
+	private static String join(long[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (long value : values) {
+			if (joined.length() != 0) {
+				joined.append(',');
+			}
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	private static long[] seqs(SimpleFieldSet fs) throws IOException {
+		return longs(fs.get("seqs"));
+	}
+
+	private static long[] longs(String list) throws IOException {
+		if (list == null || list.isEmpty()) {
+			return new long[0];
+		}
+		String[] parts = list.split(",");
+		long[] seqs = new long[parts.length];
+		try {
+			for (int i = 0; i < parts.length; i++) {
+				seqs[i] = Long.parseLong(parts[i]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Failed to parse sequence numbers");
+		}
+		return seqs;
+	}
+
+	private static List<String> usernames(SimpleFieldSet fs) throws IOException {
+		String list = fs.get("usernames");
+		List<String> usernames = new ArrayList<String>();
+		if (list != null && !list.isEmpty()) {
+			try {
+				for (String username : list.split(",", -1)) {
+					usernames.add(string(Base64.decode(username)));
+				}
+			} catch (IllegalBase64Exception e) {
+				throw new IOException("Failed to parse usernames");
+			}
+		}
+		return Collections.unmodifiableList(usernames);
+	}
+
+	private static List<ByteArray> links(SimpleFieldSet fs) throws IOException {
+		String list = fs.get("links");
+		List<ByteArray> links = new ArrayList<ByteArray>();
+		if (list != null && !list.isEmpty()) {
+			try {
+				for (String link : list.split(",")) {
+					links.add(new ByteArray(Base64.decode(link)));
+				}
+			} catch (IllegalBase64Exception e) {
+				throw new IOException("Failed to parse links");
+			}
+		}
+		return Collections.unmodifiableList(links);
+	}
+
+	private static String base64String(SimpleFieldSet fs, String key) throws IOException {
+		String encoded = fs.get(key);
+		if (encoded == null) {
+			throw new IOException("Missing " + key);
+		}
+		try {
+			return string(Base64.decode(encoded));
+		} catch (IllegalBase64Exception e) {
+			throw new IOException("Invalid base64 encoding on " + key);
+		}
+	}
+
+	private static byte[] utf8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("This JVM does not support UTF-8! Cannot encode chat frame.");
+		}
+	}
+
+	private static String string(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("This JVM does not support UTF-8! Cannot decode chat frame.");
+		}
+	}
+}
@@ -3,31 +3,83 @@ package plugins.N2NChat.core;
 import freenet.l10n.PluginL10n;
 import freenet.node.DarknetPeerNode;
 import freenet.support.Base64;
-import freenet.support.HTMLNode;
 import freenet.support.Logger;
-import freenet.support.SimpleFieldSet;
 
 import java.awt.Color;
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 /**
  * The ChatRoom class keeps track of what has been said in a chat room, parses new messages, formats them, and is
  * responsible for system messages such as joins, leaves, and day changes.
+ * <p>
+ * A room's state is only changed by tasks in its Mailbox, one at a time on the worker the room is pinned to, so it
+ * needs no locks. Frames received, timers, and requests from the web interface are all posted there rather than
+ * calling in directly. Methods that only read, such as the listing, log, and who is in the room, are safe from any
+ * thread.
  */
 public class ChatRoom {
 
+	/** Most hops a message, join, or leave is relayed over. Ones that have taken more, as a loop would, are dropped. */
+	public static final int MAX_HOPS = 32;
+
+	/** Most participants listed in one part of a roster. Larger rosters are split. */
+	public static final int ROSTER_PART_SIZE = 32;
+
+	/** Most parts a roster received can have. Ones said to have more are ignored. */
+	public static final int MAX_ROSTER_PARTS = 256;
+
+	/** Time in milliseconds between sending directly connected participants a digest of who is in the room. */
+	public static final long DIGEST_INTERVAL = 60 * 1000;
+
+	/**
+	 * Time in milliseconds a participant who left is not added back from another node's roster, which may not have
+	 * heard yet that they left.
+	 */
+	public static final long LEFT_MEMORY = 10 * 60 * 1000;
+
+	/** Most lines of earlier history asked for on joining. */
+	public static final int BACKFILL_LINES = 200;
+
+	/** Time in milliseconds before joining from which earlier history is asked for. */
+	public static final long BACKFILL_AGE = 24 * 60 * 60 * 1000;
+
+	/** Most lines of history sent to a participant who asks. */
+	public static final int MAX_BACKFILL_LINES = 1000;
+
+	/** Most bytes of lines in one part of history sent. A longer line is sent in a part of its own. */
+	public static final int BACKFILL_PAGE_BYTES = 2048;
+
+	/** Time in milliseconds between sending parts of history, so that it does not hold up live messages. */
+	public static final long BACKFILL_INTERVAL = 500;
+
+	/** Time in milliseconds a participant is shown typing after they last said they were. */
+	public static final long TYPING_TIMEOUT = 6 * 1000;
+
+	/** Least time in milliseconds between this node saying it is still typing. */
+	public static final long TYPING_INTERVAL = 3 * 1000;
+
 	private Calendar lastLineTime;
 	/**
 	 * All participants present in this room except for the local node.
 	 * The key is the public key hash, the value is the Participant object.
 	 */
-	private HashMap<ByteArray, Participant> participants;
+	private final ConcurrentHashMap<ByteArray, Participant> participants;
 	//TODO: Move list of DarknetPeerNodes to N2NChatPlugin and check for alternate routes from there.
 	private HashMap<ByteArray, DarknetPeerNode> peerNodes;
 	/**
@@ -35,8 +87,105 @@ public class ChatRoom {
 	 * Value is their NameEntry.
 	 */
 	private HashMap<ByteArray, NameEntry> sentInvites;
-	private HTMLNode log;
-	private HTMLNode participantListing;
+	/**
+	 * Delivery state of messages to and from each directly connected participant that supports acknowledgements.
+	 * Key is the public key hash of the peer.
+	 */
+	private final ConcurrentHashMap<ByteArray, ReliableLink> links;
+	/** Identifiers of messages, joins, and leaves already handled, so that copies arriving again are dropped. */
+	private final RecentIds recentIds;
+	/** Primary and backup next hops for each participant. */
+	private final RouteTable routes;
+	/**
+	 * Participants routed through others who are also darknet peers, and who have been asked to link directly.
+	 * Key is the public key hash of the peer.
+	 */
+	private final HashSet<ByteArray> directLinksOffered;
+	/**
+	 * Latest LINKS announcement of each participant that sent one, and of this node. Key is the public key hash of
+	 * the participant announcing.
+	 */
+	private final HashMap<ByteArray, ChatFrame> linkAnnouncements;
+	/**
+	 * Parts received so far of the roster each directly connected participant is sending, indexed by part. Key is
+	 * the public key hash of the peer.
+	 */
+	private final HashMap<ByteArray, ChatFrame[]> partialRosters;
+	/** Time each participant who recently left did so. Key is their public key hash. See LEFT_MEMORY. */
+	private final HashMap<ByteArray, Long> recentlyLeft;
+	/**
+	 * Time each directly connected participant reported lost by the LivenessService was removed, so that they are
+	 * asked to rejoin if they return within LEFT_MEMORY. Key is their public key hash.
+	 */
+	private final HashMap<ByteArray, Long> timedOut;
+	/** Time a membership digest was last sent. */
+	private long lastDigestSent;
+	/** Public key hashes of the participants currently being sent history. */
+	private final Set<ByteArray> backfilling;
+	/** Public key hash of the participant asked for earlier history, or null if none is expected. */
+	private ByteArray backfillFrom;
+	/** Parts of history received that are not yet added to the log, indexed by part. Null until the first arrives. */
+	private ChatFrame[] backfillParts;
+	/** Next part of history to add to the log. Parts are added in order. */
+	private int backfillNext;
+	/** Joins and leaves being held so that a burst of them is shown and relayed once. */
+	private final PresenceDebouncer presence;
+	/** Time in milliseconds joins and leaves are held. Zero shows and relays each as it happens. */
+	private volatile long presenceWindow = PresenceDebouncer.DEFAULT_WINDOW;
+	/** True while a job to end the current presence window is queued. */
+	private boolean presenceFlushQueued;
+	/**
+	 * Latest typing state of each participant who has sent one. Key is public key hash of the participant. Never
+	 * logged; see receiveTyping().
+	 */
+	private final ConcurrentHashMap<ByteArray, Typing> typing;
+	/** Incremented whenever who is shown typing changes. */
+	private volatile long typingVersion;
+	/** Time this node last said it was typing, or zero if it has stopped since. */
+	private volatile long ownTypingSent;
+	/** Relay tree built from linkAnnouncements, or null if it has changed since the tree was last built. */
+	private RelayTree relayTree;
+	/** Public key hash of this node. If null, messages are relayed to every directly connected participant. */
+	private volatile ByteArray ownPubKeyHash;
+	/** Most relay tree links this node takes. */
+	private volatile int maxFanOut = RelayTree.DEFAULT_MAX_FAN_OUT;
+	/**
+	 * Time from when messages were sent by their composer to when they were received here, by the number of hops
+	 * they took. Only messages that carry the time they were sent are counted.
+	 */
+	private final ConcurrentHashMap<Integer, LatencyHistogram> latencyByHops;
+	/**
+	 * Time from when the previous node received or sent messages to when they were received here, by the public key
+	 * hash of the directly connected participant that delivered them. A slow relay shows up here.
+	 */
+	private final ConcurrentHashMap<ByteArray, LatencyHistogram> latencyByPeer;
+	/** Picks the first sequence number of each link. */
+	private static final Random random = new Random();
+	/**
+	 * Most recent lines said in this room. Older lines are evicted, and are then only in history, if it is kept.
+	 */
+	private MessageLog log;
+	/**
+	 * Every line said in this room, on disk. Null if history is not kept.
+	 */
+	private final HistoryStore history;
+	/**
+	 * Messages said in this room are added to this. Null if messages are not indexed.
+	 */
+	private volatile SearchIndex searchIndex;
+	/**
+	 * Sends frames to peers. Must be set before the room is used.
+	 */
+	private volatile ChatSender sender;
+	/**
+	 * Runs every task that changes this room. Must be set before the room is used.
+	 */
+	private volatile Mailbox mailbox;
+	/**
+	 * Sorted snapshot of this node, the participants, and pending invites for display. Replaced whenever it
+	 * changes, so readers can use it without locking.
+	 */
+	private volatile List<ParticipantRecord> participantListing;
 	private String roomName;
 	private long globalIdentifier;
 	/**
@@ -44,12 +193,20 @@ public class ChatRoom {
 	 */
 	private NameEntry username;
 	private PluginL10n l10n;
-	private boolean messagesUpdated;
-	private boolean participantsUpdated;
-	private ArrayList<DarknetPeerNode> lastInvitable;
+	/**
+	 * Incremented each time the participants listing is regenerated. Readers remember the version they have to
+	 * tell whether the listing changed.
+	 */
+	private volatile long participantsVersion;
+	/**
+	 * Notified whenever a line is added to the log, the participants listing changes, or who is typing changes. Used
+	 * to wake readers
+	 * waiting in waitForChange().
+	 */
+	private final Object changeMonitor = new Object();
 
-	//TODO: Participant icons for whether messages sent to them have gone through. Would require ACKs in the case of
-	//TODO: participants that are not directly connected.
+	//TODO: Delivery state is only known for directly connected participants, as acknowledgements are per hop.
+	//TODO: Participants that are not directly connected would need end-to-end acknowledgements.
 	/**
 	 * Initializes date formatters and starts the room off with a timestamp of the day.
 	 * @param roomName Name of the chat room. Used for local display and in invitations.
@@ -57,24 +214,50 @@ public class ChatRoom {
 	 * @param username This node's username in this chat.
 	 * @param peerNodes This node's Darknet peers. Used to search for direct connections to nodes invited by others..
 	 * @param l10n Plugin l10n from N2NChatPlugin.
+	 * @param history On-disk history of this room. The most recent lines in it are restored. Can be null.
 	 */
-	public ChatRoom(String roomName, long globalIdentifier, String username, DarknetPeerNode[] peerNodes, PluginL10n l10n){
+	public ChatRoom(String roomName, long globalIdentifier, String username, DarknetPeerNode[] peerNodes,
+	        PluginL10n l10n, HistoryStore history) {
 		this.roomName = roomName;
 		this.globalIdentifier = globalIdentifier;
 		this.username = new NameEntry(username, "font-weight:bold;", true);
 		this.l10n = l10n;
-		updatePeerNodes(peerNodes);
-		participants = new HashMap<ByteArray, Participant>();
+		participants = new ConcurrentHashMap<ByteArray, Participant>();
 		sentInvites = new HashMap<ByteArray, NameEntry>();
+		links = new ConcurrentHashMap<ByteArray, ReliableLink>();
+		recentIds = new RecentIds(RecentIds.DEFAULT_CAPACITY);
+		routes = new RouteTable();
+		directLinksOffered = new HashSet<ByteArray>();
+		linkAnnouncements = new HashMap<ByteArray, ChatFrame>();
+		partialRosters = new HashMap<ByteArray, ChatFrame[]>();
+		recentlyLeft = new HashMap<ByteArray, Long>();
+		timedOut = new HashMap<ByteArray, Long>();
+		backfilling = Collections.newSetFromMap(new ConcurrentHashMap<ByteArray, Boolean>());
+		presence = new PresenceDebouncer();
+		typing = new ConcurrentHashMap<ByteArray, Typing>();
+		latencyByHops = new ConcurrentHashMap<Integer, LatencyHistogram>();
+		latencyByPeer = new ConcurrentHashMap<ByteArray, LatencyHistogram>();
+		updatePeerNodes(peerNodes);
 		lastLineTime = Calendar.getInstance();
 		lastLineTime.setTime(new Date());
-		//TODO: What size should this box be? Will the automatic size be reasonable?
-		//TODO: Likely full width with limited height.
-		log = new HTMLNode("ul", "class", "list-pane");
-		//Start out the chat by setting the day.
-		log.addChild("li", N2NChatPlugin.dayChangeFormat.format(lastLineTime.getTime()));
-		messagesUpdated = true;
-		lastInvitable = null;
+		log = new MessageLog(N2NChatPlugin.DEFAULT_LOG_LINES, N2NChatPlugin.DEFAULT_LOG_BYTES);
+		this.history = history;
+		if (history != null) {
+			List<LogLine> restored = history.readBefore(history.getLastSeq() + 1, N2NChatPlugin.DEFAULT_LOG_LINES);
+			log.restore(restored, history.getLastSeq());
+			if (!restored.isEmpty()) {
+				Calendar now = lastLineTime;
+				lastLineTime = Calendar.getInstance();
+				lastLineTime.setTimeInMillis(restored.get(restored.size() - 1).timeReceived);
+				addDateOnDayChange(now);
+				lastLineTime = now;
+			}
+		}
+		if (log.size() == 0) {
+			//Start out the chat by setting the day.
+			append(LogLine.systemLine(lastLineTime.getTimeInMillis(),
+			        N2NChatPlugin.dayChangeFormat.format(lastLineTime.getTime())));
+		}
 		updateParticipantListing();
 	}
 
@@ -85,13 +268,15 @@ public class ChatRoom {
 	 * @param username This node's username in this chat.
 	 * @param peerNodes This node's Darknet peers. Used to search for direct connections to nodes invited by others..
 	 * @param l10n Plugin l10n from N2NChatPlugin.
+	 * @param history On-disk history of this room. The most recent lines in it are restored. Can be null.
 	 * @param invitedBy DarknetPeerNode that invited this node to the chat.
 	 */
 	public ChatRoom(String roomName, long globalIdentifier, String username, DarknetPeerNode[] peerNodes,
-	        PluginL10n l10n, DarknetPeerNode invitedBy) {
-		this(roomName, globalIdentifier, username, peerNodes, l10n);
+	        PluginL10n l10n, HistoryStore history, DarknetPeerNode invitedBy) {
+		this(roomName, globalIdentifier, username, peerNodes, l10n, history);
 		ByteArray pubKeyHash = new ByteArray(invitedBy.peerECDSAPubKeyHash);
 		participants.put(pubKeyHash, new Participant(invitedBy.getName(), pubKeyHash, invitedBy, true, false));
+		routes.add(pubKeyHash, pubKeyHash, RouteTable.DIRECT_HOPS);
 		updateParticipantListing();
 	}
 
@@ -99,32 +284,93 @@ public class ChatRoom {
 	 * Generates a list of DarknetPeerNodes that are not participating, and so either have not been invited, or
 	 * have been send an invitation but it is still pending.
 	 * @param nodes Available DarknetPeerNodes.
-	 * @param onlyIfChanged If true, returns the list only if it has changed. If false, always returns it.
-	 * @return List of DarknetPeerNodes or null.
+	 * @return List of DarknetPeerNodes.
 	 */
-	public ArrayList<DarknetPeerNode> invitablePeers(DarknetPeerNode[] nodes, boolean onlyIfChanged) {
+	public ArrayList<DarknetPeerNode> invitablePeers(DarknetPeerNode[] nodes) {
 		ArrayList<DarknetPeerNode> list = new ArrayList<DarknetPeerNode>();
 		for (DarknetPeerNode peerNode : nodes) {
 			if (!containsParticipant(new ByteArray(peerNode.peerECDSAPubKeyHash))) {
 				list.add(peerNode);
 			}
 		}
-
-		if (!list.equals(lastInvitable) || !onlyIfChanged) {
-			lastInvitable = list;
-			return list;
-		} else {
-			return null;
-		}
+		return list;
 	}
 
 	//TODO: This should move out of the chat room and into N2NPlugin to avoid having multiple copies.
+	/**
+	 * Updates the darknet peers known to this room and re-evaluates routes: round-trip times to directly connected
+	 * participants are refreshed, and participants routed through others who are connected darknet peers are
+	 * offered a direct link. Every DIGEST_INTERVAL directly connected participants are also sent a membership
+	 * digest.
+	 * @param updatedPeerNodes This node's darknet peers.
+	 */
 	public void updatePeerNodes(DarknetPeerNode[] updatedPeerNodes) {
 		this.peerNodes = new HashMap<ByteArray, DarknetPeerNode>();
 		for (DarknetPeerNode node : updatedPeerNodes) {
 			peerNodes.put(new ByteArray(node.peerECDSAPubKeyHash), node);
 		}
-		//TODO: Check new peers for direct connections to those currently routed and backup routes.
+		if (sender == null) {
+			//Not set up yet; nothing can be sent.
+			return;
+		}
+
+		boolean changed = false;
+		for (Participant participant : new ArrayList<Participant>(participants.values())) {
+			DarknetPeerNode peer = peerNodes.get(participant.pubKeyHash);
+			if (participant.directlyConnected) {
+				routes.setLatency(participant.pubKeyHash, participant.peerNode.averagePingTime());
+			} else if (peer == null || !peer.isConnected()) {
+				//Offer again once reconnected.
+				directLinksOffered.remove(participant.pubKeyHash);
+			} else if (directLinksOffered.add(participant.pubKeyHash)) {
+				offerDirectLink(peer);
+			}
+			changed |= applyRoute(participant.pubKeyHash);
+		}
+		if (changed) {
+			updateParticipantListing();
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - lastDigestSent >= DIGEST_INTERVAL) {
+			lastDigestSent = now;
+			sendDigests(now);
+		}
+	}
+
+	/**
+	 * Asks a darknet peer who is in the room through another participant to link directly. The offer is a join
+	 * for this node sent straight to them; they link directly when they receive it, and reply in kind if they have
+	 * not offered already.
+	 * @param peer The peer to link with.
+	 */
+	private void offerDirectLink(DarknetPeerNode peer) {
+		Logger.minor(this, "Offering direct link to "+peer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+		sendBase(peer, ChatFrame.join(globalIdentifier, null, username.name, false, ownId()).withHops(1, null));
+	}
+
+	/**
+	 * Makes a participant's cheapest route the one their traffic is shown as going through, and the one that decides
+	 * whether they are directly connected.
+	 * @param pubKeyHash Public key hash of the participant.
+	 * @return True if their route changed.
+	 */
+	private boolean applyRoute(ByteArray pubKeyHash) {
+		Participant participant = participants.get(pubKeyHash);
+		ByteArray primary = routes.primary(pubKeyHash);
+		if (participant == null || primary == null ||
+		        primary.equals(new ByteArray(participant.peerNode.peerECDSAPubKeyHash))) {
+			return false;
+		}
+		Participant via = primary.equals(pubKeyHash) ? null : participants.get(primary);
+		DarknetPeerNode peerNode = via == null ? peerNodes.get(primary) : via.peerNode;
+		if (peerNode == null) {
+			return false;
+		}
+		participants.put(pubKeyHash, new Participant(participant.name, pubKeyHash, peerNode, via == null,
+		        participant.locallyInvited));
+		Logger.minor(this, participant.name+" in room '"+roomName+"' ("+globalIdentifier+") is now routed through "+peerNode.getName());
+		return true;
 	}
 
 	/**
@@ -135,24 +381,38 @@ public class ChatRoom {
 	 * @return True if the participant was added, false if not.
 	 */
 	public boolean inviteParticipant(DarknetPeerNode newParticipantPeer, String username) {
+		//Others were not yet told if they left within the presence window, so they need not be told of the return.
+		boolean rejoined = presence.holdsRelay(new ByteArray(newParticipantPeer.peerECDSAPubKeyHash));
 		//Check if the participant is already participating.
 		if (addParticipant(new ByteArray(newParticipantPeer.peerECDSAPubKeyHash), newParticipantPeer.getName(),
-		        newParticipantPeer, true, true)) {
+		        newParticipantPeer, true, true, true, RouteTable.DIRECT_HOPS)) {
 			//They aren't; this is a fresh join.
 			Participant newParticipant = participants.get(new ByteArray(newParticipantPeer.peerECDSAPubKeyHash));
+			long joinId = ownId();
+			boolean roster = sender.supports(newParticipantPeer, ChatSender.CAPABILITY_ROSTER);
+			List<Participant> others = new ArrayList<Participant>();
 			for (ByteArray pubKeyHash : participants.keySet()) {
 				Participant existingParticipant = participants.get(pubKeyHash);
 				if (!pubKeyHash.equals(new ByteArray(newParticipantPeer.peerECDSAPubKeyHash))) {
-					//Send the new participant silent joins for all other participants.
-					sendJoin(newParticipantPeer, existingParticipant, false);
-					if (existingParticipant.directlyConnected) {
+					//Send the new participant all other participants: as a roster if they understand one,
+					//otherwise as silent joins.
+					if (roster) {
+						others.add(existingParticipant);
+					} else {
+						sendJoin(newParticipantPeer, existingParticipant, false, ownId(), 0);
+					}
+					if (existingParticipant.directlyConnected && !rejoined) {
 						//Send all directly connected participants a join for the new participant.
 						//They should in turn echo the join to everyone they are directly
 						//connected to.
-						sendJoin(existingParticipant.peerNode, newParticipant, true);
+						sendJoin(existingParticipant.peerNode, newParticipant, true, joinId, 0);
 					}
 				}
 			}
+			if (roster) {
+				sendRoster(newParticipantPeer, others);
+			}
+			directLinkAdded(newParticipantPeer);
 			return true;
 		}
 		return false;
@@ -165,17 +425,92 @@ public class ChatRoom {
 	 * @param routedBy The peer that routed the invite. This peer will be authorized to route all other things
 	 * with regards to this participant.
 	 * @param displayJoin Whether the join should display a message.
+	 * @param messageId Identifier of the join, or zero if it has none.
+	 * @param hops Number of hops the join took, or zero if not counted.
 	 * @return True if the participant was added, false otherwise.
 	 */
-	public boolean joinedParticipant(ByteArray joinedPublicKeyHash, String name, DarknetPeerNode routedBy, boolean displayJoin) {
-		/*TODO: Query directly connected participants for backup routing paths.*/
-		if (addParticipant(joinedPublicKeyHash, name, routedBy, false, displayJoin)) {
+	public boolean joinedParticipant(ByteArray joinedPublicKeyHash, String name, DarknetPeerNode routedBy,
+	        boolean displayJoin, long messageId, int hops) {
+		return joined(joinedPublicKeyHash, name, routedBy, displayJoin, messageId, hops, true);
+	}
+
+	/**
+	 * Handles a join as joinedParticipant() does.
+	 * @param updateListing Whether to update the participants listing if it changes. If false, the caller must.
+	 */
+	private boolean joined(ByteArray joinedPublicKeyHash, String name, DarknetPeerNode routedBy,
+	        boolean displayJoin, long messageId, int hops, boolean updateListing) {
+		if (hops > MAX_HOPS) {
+			Logger.normal(this, "Dropped join "+messageId+" from "+routedBy.getName()+" after "+hops+" hops in room '"+roomName+"' ("+globalIdentifier+")");
+			return false;
+		}
+		ByteArray routedByHash = new ByteArray(routedBy.peerECDSAPubKeyHash);
+		Participant existing = participants.get(joinedPublicKeyHash);
+		Participant via = participants.get(routedByHash);
+		if (existing != null && !existing.directlyConnected && routedByHash.equals(joinedPublicKeyHash)) {
+			//A participant routed through others sent their own join straight here: they are offering a direct
+			//link. Accept it, and offer one back unless already done.
+			routes.add(joinedPublicKeyHash, routedByHash, RouteTable.DIRECT_HOPS);
+			routes.setLatency(routedByHash, routedBy.averagePingTime());
+			Logger.minor(this, "Linked directly with "+existing.name+" in room '"+roomName+"' ("+globalIdentifier+")");
+			if (directLinksOffered.add(joinedPublicKeyHash)) {
+				offerDirectLink(routedBy);
+			}
+			recentIds.add(messageId);
+			if (applyRoute(joinedPublicKeyHash)) {
+				directLinkAdded(routedBy);
+				if (updateListing) {
+					updateParticipantListing();
+				}
+			}
+			return false;
+		}
+		if (existing != null && existing.directlyConnected && routedByHash.equals(joinedPublicKeyHash) &&
+		        displayJoin) {
+			//A directly connected participant asked to rejoin: they lost this node, but this node did not lose
+			//them. Answer with a join for this node so that they add it back. The answer is not displayed, so
+			//it is never answered in turn.
+			if (recentIds.add(messageId)) {
+				Logger.minor(this, existing.name+" rejoined room '"+roomName+"' ("+globalIdentifier+") without having left");
+				offerDirectLink(routedBy);
+			}
+			return false;
+		}
+		if (timedOut.containsKey(joinedPublicKeyHash) && routedByHash.equals(joinedPublicKeyHash)) {
+			//The answer to asking a participant to rejoin; show that they are back.
+			displayJoin = true;
+		}
+		//A copy of a join for a participant already present, delivered by a different directly connected
+		//participant, is a backup route to them. Learned before dropping duplicates, as that is what copies are.
+		if (existing != null && !existing.directlyConnected && via != null && via.directlyConnected &&
+		        routes.add(joinedPublicKeyHash, routedByHash, relayedHops(hops))) {
+			Logger.minor(this, "Learned backup route to "+existing.name+" through "+via.name+" in room '"+roomName+"' ("+globalIdentifier+")");
+			applyRoute(joinedPublicKeyHash);
+			if (updateListing) {
+				updateParticipantListing();
+			}
+		}
+		if (!recentIds.add(messageId)) {
+			Logger.minor(this, "Dropped duplicate join "+messageId+" from "+routedBy.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return false;
+		}
+		if (messageId == 0) {
+			//From a node that does not identify joins; identify it from here on.
+			messageId = ownId();
+		}
+		boolean rejoined = presence.holdsRelay(joinedPublicKeyHash);
+		//Backup routes are learned as other directly connected participants relay copies of this join.
+		if (addParticipant(joinedPublicKeyHash, name, routedBy, false, displayJoin, updateListing, hops)) {
 			Participant newParticipant = participants.get(joinedPublicKeyHash);
-			Logger.minor(this, "Received join for "+newParticipant.name+" from "+routedBy.getName()+" in room '"+roomName+"' ("+globalIdentifier+") displayJoin="+displayJoin);
+			Logger.minor(this, "Received join for "+newParticipant.name+" from "+routedBy.getName()+" in room '"+roomName+"' ("+globalIdentifier+") displayJoin="+displayJoin+" hops="+hops+" rejoined="+rejoined);
+			if (hops == MAX_HOPS || rejoined) {
+				//Those this node relays to were never told they left.
+				return true;
+			}
 			for (ByteArray pubKeyHash : participants.keySet()) {
 				//Route this join to all directly connected participants,
 				if (participants.get(pubKeyHash).directlyConnected && !pubKeyHash.equals(new ByteArray(routedBy.peerECDSAPubKeyHash))) {
-					sendJoin(participants.get(pubKeyHash).peerNode, newParticipant, true);
+					sendJoin(participants.get(pubKeyHash).peerNode, newParticipant, true, messageId, hops);
 				}
 			}
 			return true;
@@ -183,6 +518,145 @@ public class ChatRoom {
 		return false;
 	}
 
+	/**
+	 * Handles part of a roster: the participants already in the room, sent by the participant who invited this node
+	 * in place of a silent join for each. Once every part has arrived they are all added, routed through that
+	 * participant, and the participants listing is updated once.
+	 * @param frame The ROSTER frame.
+	 * @param darkPeer The peer that sent it.
+	 */
+	public void receiveRoster(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ByteArray deliveredBy = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		Participant sentBy = participants.get(deliveredBy);
+		if (sentBy == null || !sentBy.directlyConnected) {
+			Logger.minor(this, "Ignoring roster from a nonparticipant "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return;
+		}
+		if (frame.part < 0 || frame.part >= frame.parts || frame.parts > MAX_ROSTER_PARTS) {
+			Logger.warning(this, "Ignoring roster part "+frame.part+" of "+frame.parts+" from "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return;
+		}
+		ChatFrame[] received = partialRosters.get(deliveredBy);
+		if (received == null || received.length != frame.parts || !sameRoster(received, frame.messageId)) {
+			//The first part, or a new roster replacing one not completed.
+			received = new ChatFrame[frame.parts];
+			partialRosters.put(deliveredBy, received);
+		}
+		received[frame.part] = frame;
+		for (ChatFrame part : received) {
+			if (part == null) {
+				return;
+			}
+		}
+		partialRosters.remove(deliveredBy);
+
+		int count = 0;
+		long now = System.currentTimeMillis();
+		for (ChatFrame part : received) {
+			for (int i = 0; i < part.links.size(); i++) {
+				ByteArray pubKeyHash = part.links.get(i);
+				Long timeLeft = recentlyLeft.get(pubKeyHash);
+				if (pubKeyHash.equals(ownPubKeyHash)) {
+					continue;
+				} else if (presence.holdsRelay(pubKeyHash)) {
+					//The sender is told they left when the presence window ends.
+					continue;
+				} else if (timeLeft != null && now - timeLeft <= LEFT_MEMORY) {
+					//The sender missed that they left. Tell them; they accept it if this node is their route.
+					sendLeave(darkPeer, pubKeyHash, ownId(), 0);
+				} else {
+					joined(pubKeyHash, part.usernames.get(i), darkPeer, false, 0, 1, false);
+					count++;
+				}
+			}
+		}
+		Logger.minor(this, "Received roster of "+count+" participants from "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+		updateParticipantListing();
+	}
+
+	/**
+	 * Sends every directly connected participant that understands them a digest of who this node thinks is in the
+	 * room, including itself.
+	 * @param now Current time in milliseconds.
+	 */
+	private void sendDigests(long now) {
+		for (Iterator<Long> it = recentlyLeft.values().iterator(); it.hasNext(); ) {
+			if (now - it.next() > LEFT_MEMORY) {
+				it.remove();
+			}
+		}
+		for (Iterator<Long> it = timedOut.values().iterator(); it.hasNext(); ) {
+			if (now - it.next() > LEFT_MEMORY) {
+				it.remove();
+			}
+		}
+		if (ownPubKeyHash == null) {
+			//Cannot include itself, so the digest would never match.
+			return;
+		}
+		ChatFrame digest = ChatFrame.digest(globalIdentifier, MembershipDigest.of(members()));
+		for (Participant participant : participants.values()) {
+			if (participant.directlyConnected && sender.supports(participant.peerNode, ChatSender.CAPABILITY_DIGEST)) {
+				sendBase(participant.peerNode, digest);
+			}
+		}
+	}
+
+	/**
+	 * Handles a directly connected participant's digest of who is in the room. If it differs from this node's, the
+	 * participants in the buckets that differ are sent back as a roster, so that the sender adds any it is missing.
+	 * The sender does the same for this node when it receives this node's digest.
+	 * @param frame The DIGEST frame.
+	 * @param darkPeer The peer that sent it.
+	 */
+	public void receiveDigest(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ByteArray deliveredBy = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		Participant sentBy = participants.get(deliveredBy);
+		if (sentBy == null || !sentBy.directlyConnected || frame.buckets == null || ownPubKeyHash == null) {
+			return;
+		}
+		List<Integer> differing = MembershipDigest.differing(MembershipDigest.of(members()), frame.buckets);
+		if (differing.isEmpty()) {
+			return;
+		}
+		Set<Integer> buckets = new HashSet<Integer>(differing);
+		List<Participant> entries = new ArrayList<Participant>();
+		for (Participant participant : participants.values()) {
+			if (!participant.pubKeyHash.equals(deliveredBy) &&
+			        buckets.contains(MembershipDigest.bucket(participant.pubKeyHash))) {
+				entries.add(participant);
+			}
+		}
+		Logger.minor(this, "Membership digest from "+darkPeer.getName()+" differs in "+differing.size()+" buckets; sending "+entries.size()+" participants in room '"+roomName+"' ("+globalIdentifier+")");
+		sendRoster(darkPeer, entries);
+	}
+
+	/**
+	 * @return Public key hashes of everyone in the room as this node sees it, including itself.
+	 */
+	private List<ByteArray> members() {
+		List<ByteArray> members = new ArrayList<ByteArray>(participants.keySet());
+		members.add(ownPubKeyHash);
+		return members;
+	}
+
+	private static boolean sameRoster(ChatFrame[] parts, long messageId) {
+		for (ChatFrame part : parts) {
+			if (part != null && part.messageId != messageId) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param hops Number of hops a frame from a participant took to arrive through another, or zero if not counted.
+	 * @return Hop count of the route it came by. At least RELAYED_HOPS, so that it never ties a direct route.
+	 */
+	private static int relayedHops(int hops) {
+		return Math.max(hops, RouteTable.RELAYED_HOPS);
+	}
+
 	/**
 	 * Adds a participant to this chat room so that messages they send here can be received.
 	 * @param publicKeyHash Public key hash of the participant to add.
@@ -192,30 +666,33 @@ public class ChatRoom {
 	 * @param invitedLocally True if invited by the local node, false if invited by someone else.
 	 * @param displayJoin Whether the join should be displayed in the messages panel. For example, if a newly invited
 	 * participant is receiving a join about an existing participant, it probably shouldn't display a join.
+	 * @param updateListing Whether to update the participants listing. If false, the caller must.
+	 * @param hops Number of hops the participant's join took, or zero if not counted.
 	 * @return True if participant was added, false otherwise.
 	 */
 	private boolean addParticipant(ByteArray publicKeyHash, String name, DarknetPeerNode peerNode,
-		       boolean invitedLocally, boolean displayJoin) {
+		       boolean invitedLocally, boolean displayJoin, boolean updateListing, int hops) {
 		//A participant cannot be in a chat room multiple times at once.
 		if (participants.containsKey(publicKeyHash)) {
 			return false;
 		}
 		boolean directlyConnected = publicKeyHash.equals(new ByteArray(peerNode.peerECDSAPubKeyHash));
-		//TODO: If this participant was invited by someone else but is directly connected, connect to them directly.
-		//TODO: If they're directly connected, any messages would be echoed to them, which would cause
-		//TODO: duplicates on their end as whoever invited them would also route those messages.
+		//If this participant was invited by someone else but is also a darknet peer, a direct link is offered the
+		//next time peers are checked. Messages then reach them both directly and through whoever invited them;
+		//the copies are dropped by message identifier.
 		//TODO: Should directlyConnected and locallyInvited be replaced with (routeFor and) routeTo?
-		/*if (directlyConnected) {
-			peerNode = peerNodes.get(publicKeyHash);
-		}*/
 		Participant newPart = new Participant(name, publicKeyHash, peerNode, directlyConnected, invitedLocally);
 		participants.put(publicKeyHash, newPart);
-		updateParticipantListing();
-		
-		if (displayJoin) {
-			Calendar now = Calendar.getInstance();
-			now.setTime(new Date());
-			addLine(newPart, now, null, " " + l10n("joined"));
+		recentlyLeft.remove(publicKeyHash);
+		timedOut.remove(publicKeyHash);
+		ByteArray via = new ByteArray(peerNode.peerECDSAPubKeyHash);
+		routes.add(publicKeyHash, via, directlyConnected ? RouteTable.DIRECT_HOPS : relayedHops(hops));
+		routes.setLatency(via, peerNode.averagePingTime());
+		if (presence.joined(publicKeyHash, name, displayJoin)) {
+			//Shown, and the listing updated, when the presence window ends.
+			presenceChanged();
+		} else if (updateListing) {
+			updateParticipantListing();
 		}
 		return true;
 	}
@@ -228,11 +705,25 @@ public class ChatRoom {
 	 * participant themselves.
 	 * @param connectionProblem Used internally to indicate whether a departure message was received or the node
 	 * disconnected. If true "lost connection" is used rather than "left".
+	 * @param messageId Identifier of the leave, or zero if it has none.
+	 * @param hops Number of hops the leave took, or zero if it was not received or the hops were not counted.
 	 * @return True if the participant was removed; false if not. More detailed error messages are written to
 	 * the log.
 	 */
 	//TODO: Should this return a more descriptive state? Will other things care whether the removal was successful?
-	public boolean removeParticipant(ByteArray removePubKeyHash, ByteArray senderPubKeyHash, boolean connectionProblem) {
+	public boolean removeParticipant(ByteArray removePubKeyHash, ByteArray senderPubKeyHash,
+	        boolean connectionProblem, long messageId, int hops) {
+		if (hops > MAX_HOPS) {
+			Logger.normal(this, "Dropped leave "+messageId+" after "+hops+" hops in room '"+roomName+"' ("+globalIdentifier+")");
+			return false;
+		}
+		if (!recentIds.add(messageId)) {
+			Logger.minor(this, "Dropped duplicate leave "+messageId+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return false;
+		}
+		if (messageId == 0) {
+			messageId = ownId();
+		}
 		String error = checkPresenceAndAuthorization("remove.", removePubKeyHash, senderPubKeyHash);
 		if (error != null) {
 			Logger.warning(this, l10n("removeReceived",
@@ -253,42 +744,197 @@ public class ChatRoom {
 		//The identity to remove and the sender of the request are in the chat room, and the sender of the
 		//request is authorized to remove the identity.
 		Participant removedParticipant = participants.get(removePubKeyHash);
-		if (connectionProblem) {
-			addLine(removedParticipant, now, null, " "+l10n("lostConnection"));
-		} else {
-			addLine(removedParticipant, now, null, " "+l10n("left"));
-		}
 		Logger.minor(this, "Received leave for "+removedParticipant.name+" from "+participants.get(senderPubKeyHash).name+" in room '"+roomName+"' ("+globalIdentifier+"). ConnectionProblem="+connectionProblem);
 		participants.remove(removePubKeyHash);
-
-		Collection<Participant> participantCollection = participants.values();
-		for (Participant participant : participantCollection) {
-			//Remove from the room any other participants the leaving node routed for.
-			if (removePubKeyHash.equals(new ByteArray(participant.peerNode.peerECDSAPubKeyHash))) {
-				addLine(participant, now, null, " "+l10n("lostConnection"));
-				participantCollection.remove(participant);
+		recentlyLeft.put(removePubKeyHash, now.getTimeInMillis());
+		links.remove(removePubKeyHash);
+		if (typing.remove(removePubKeyHash) != null) {
+			typingChanged();
+		}
+		partialRosters.remove(removePubKeyHash);
+		if (removePubKeyHash.equals(backfillFrom)) {
+			backfillFrom = null;
+			backfillParts = null;
+		}
+		routes.remove(removePubKeyHash);
+		directLinksOffered.remove(removePubKeyHash);
+		linkAnnouncements.remove(removePubKeyHash);
+		relayTree = null;
+
+		//Participants the leaving node routed for switch to a backup route, or are removed if they have none.
+		//Every node does the same, so no leaves are sent for them.
+		for (Map.Entry<ByteArray, ByteArray> change : routes.removeHop(removePubKeyHash).entrySet()) {
+			Participant participant = participants.get(change.getKey());
+			if (participant == null) {
+				continue;
+			}
+			if (change.getValue() == null) {
+				presence.left(change.getKey(), participant.name, true, null);
+				participants.remove(change.getKey());
+				recentlyLeft.put(change.getKey(), now.getTimeInMillis());
+				linkAnnouncements.remove(change.getKey());
 				Logger.minor(this, participant.name+" lost connection because they were connected through "+removedParticipant.name);
-			//Send this disconnect to all participants this node is connected to, provided it didn't deliver this.
-			//pubKeyHash will be equal to the peerNode.peerECDSAPubKeyHash because it's locally invited
-			//and thus directly connected.
-			} else if (participant.directlyConnected && !senderPubKeyHash.equals(participant.pubKeyHash)) {
-				sendLeave(participant.peerNode, removePubKeyHash);
+			} else {
+				applyRoute(change.getKey());
 			}
 		}
-		updateParticipantListing();
+
+		presence.left(removePubKeyHash, removedParticipant.name, connectionProblem,
+		        hops < MAX_HOPS ? relayLeave(removePubKeyHash, senderPubKeyHash, messageId, hops) : null);
+		if (removedParticipant.directlyConnected) {
+			announceLinks();
+		}
+		//Shown, relayed, and the listing updated when the presence window ends, unless they rejoin first.
+		presenceChanged();
 		return true;
 	}
 
+	/**
+	 * @param removePubKeyHash Public key hash of the participant who left.
+	 * @param senderPubKeyHash Public key hash of the participant that delivered the leave, who is not sent it.
+	 * @param messageId Identifier of the leave.
+	 * @param hops Number of hops the leave took, or zero if it was not received or the hops were not counted.
+	 * @return Sends the leave to all directly connected participants, as they are when it is run.
+	 */
+	private Runnable relayLeave(final ByteArray removePubKeyHash, final ByteArray senderPubKeyHash,
+	        final long messageId, final int hops) {
+		return new Runnable() {
+			public void run() {
+				for (Participant participant : participants.values()) {
+					//pubKeyHash will be equal to the peerNode.peerECDSAPubKeyHash because it's locally invited
+					//and thus directly connected.
+					if (participant.directlyConnected && !senderPubKeyHash.equals(participant.pubKeyHash)) {
+						sendLeave(participant.peerNode, removePubKeyHash, messageId, hops);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Ends the presence window now if there is none, otherwise makes sure a job to end it is queued.
+	 */
+	private void presenceChanged() {
+		if (presenceWindow == 0 || sender == null) {
+			flushPresence();
+			return;
+		}
+		if (presenceFlushQueued) {
+			return;
+		}
+		presenceFlushQueued = true;
+		later(new Runnable() {
+			public void run() {
+				presenceFlushQueued = false;
+				flushPresence();
+			}
+		}, presenceWindow);
+	}
+
+	/**
+	 * Shows and relays the joins and leaves held over the presence window, and updates the participants listing.
+	 * A single change is shown as its own line; more are summarized in one.
+	 */
+	private void flushPresence() {
+		PresenceDebouncer.Summary summary = presence.flush();
+		for (Runnable relay : summary.relays) {
+			relay.run();
+		}
+		Calendar now = Calendar.getInstance();
+		now.setTime(new Date());
+		if (summary.changes.size() == 1) {
+			PresenceDebouncer.Change change = summary.changes.get(0);
+			addLine(new NameEntry(change.name, change.pubKeyHash), now, null, " "+l10n(presenceKey(change)), false);
+		} else if (!summary.changes.isEmpty()) {
+			StringBuilder text = new StringBuilder();
+			for (String kind : new String[] { "joined", "left", "lostConnection" }) {
+				StringBuilder names = new StringBuilder();
+				for (PresenceDebouncer.Change change : summary.changes) {
+					if (presenceKey(change).equals(kind)) {
+						names.append(names.length() == 0 ? "" : ", ").append(change.name);
+					}
+				}
+				if (names.length() != 0) {
+					text.append(text.length() == 0 ? "" : " ").append(names).append(' ').append(l10n(kind));
+				}
+			}
+			addDateOnDayChange(now);
+			lastLineTime = now;
+			append(LogLine.systemLine(now.getTimeInMillis(), text.toString()));
+			signalChange();
+		}
+		updateParticipantListing();
+	}
+
+	/**
+	 * @return The l10n key of the text shown after the name of a participant whose presence changed.
+	 */
+	private static String presenceKey(PresenceDebouncer.Change change) {
+		if (change.joined) {
+			return "joined";
+		}
+		return change.lostConnection ? "lostConnection" : "left";
+	}
+
+	/**
+	 * @param window Time in milliseconds joins and leaves are held so that a burst of them is shown and relayed
+	 * once, and a leave followed by a rejoin is not at all. Zero shows and relays each as it happens.
+	 */
+	public void setPresenceWindow(long window) {
+		this.presenceWindow = window;
+	}
+
 	public boolean containsParticipant(ByteArray pubKeyHash) {
 		return participants.containsKey(pubKeyHash);
 	}
 
+	/**
+	 * @param pubKeyHash Public key hash of a darknet peer.
+	 * @return True if the peer is a participant directly connected to this node.
+	 */
+	public boolean isDirectlyConnected(ByteArray pubKeyHash) {
+		Participant participant = participants.get(pubKeyHash);
+		return participant != null && participant.directlyConnected;
+	}
+
+	/**
+	 * Removes a directly connected participant that has stopped answering, as if their connection was lost.
+	 * Participants reached through them switch to a backup route or are removed too.
+	 * @param peer The peer reported lost by the LivenessService. Ignored if not a directly connected participant.
+	 */
+	public void peerLost(DarknetPeerNode peer) {
+		ByteArray pubKeyHash = new ByteArray(peer.peerECDSAPubKeyHash);
+		if (!isDirectlyConnected(pubKeyHash)) {
+			return;
+		}
+		Logger.normal(this, peer.getName()+" stopped answering in room '"+roomName+"' ("+globalIdentifier+")");
+		timedOut.put(pubKeyHash, System.currentTimeMillis());
+		removeParticipant(pubKeyHash, pubKeyHash, true, 0, 0);
+	}
+
+	/**
+	 * Asks a participant removed by peerLost() who has been heard from again to rejoin: they are sent a join for
+	 * this node, which they add if they also lost this node, and answer with their own if they did not.
+	 * @param peer The peer reported returned by the LivenessService.
+	 */
+	public void peerReturned(DarknetPeerNode peer) {
+		ByteArray pubKeyHash = new ByteArray(peer.peerECDSAPubKeyHash);
+		Long time = timedOut.get(pubKeyHash);
+		if (time == null || participants.containsKey(pubKeyHash) ||
+		        System.currentTimeMillis() - time > LEFT_MEMORY) {
+			return;
+		}
+		Logger.normal(this, "Asking "+peer.getName()+" to rejoin room '"+roomName+"' ("+globalIdentifier+")");
+		sendBase(peer, ChatFrame.join(globalIdentifier, null, username.name, true, ownId()).withHops(1, null));
+	}
+
 	public void disconnect() {
+		long leaveId = ownId();
 		for (Participant participant : participants.values()) {
 			if (participant.directlyConnected) {
 				//Null public key hash is not included in the field set, and receiving nodes will
 				//fill it in with the sender's public key hash.
-				sendLeave(participant.peerNode, null);
+				sendLeave(participant.peerNode, null, leaveId, 0);
 			}
 		}
 	}
@@ -341,91 +987,368 @@ public class ChatRoom {
 		}
 
 		//The sender of the request and target are in the chat room, but the sender of the request
-		//is not authorized to route for the target. This may occur in legitimate circumstances if this node has
+		//is not a route to the target. This may occur in legitimate circumstances if this node has
 		//a direct connection to a peer that the sender of the request invited.
-		if (!senderPubKeyHash.equals(new ByteArray(participants.get(targetPubKeyHash).peerNode.peerECDSAPubKeyHash))) {
+		if (!routes.isRoute(targetPubKeyHash, senderPubKeyHash)) {
 			return l10n(prefix+"senderUnauthorized");
 		}
 
 		return null;
 	}
 
-	//TODO: Log persistance.
 	/**
-	 * Retrieves the message log and handles change flagging.
-	 * @param onlyIfUpdated If true, the HTMLNode is only returned if it has changed, and null otherwise.
-	 * @return Log HTMLNode or null if onlyIfUpdated is true. Log HTMLNode if onlyIfUpdated is false.
+	 * Retrieves the message log.
+	 * @return All lines held in memory, oldest first.
 	 */
-	public HTMLNode getLog(boolean onlyIfUpdated) {
-		if (messagesUpdated || !onlyIfUpdated) {
-			messagesUpdated = false;
-			return log;
-		} else {
-			return null;
-		}
+	public List<LogLine> getLog() {
+		return log.getLines();
 	}
 
 	/**
-	 * Gets the participants listing. Returns null if onlyIfUpdated is false. This is done so that changing the
-	 * change tracking variable is ChatRoom-side, which avoids possible race conditions like another change occurring
-	 * between a Toadlet-side check and set, which would cause a change to be invisible.
-	 * @param onlyIfUpdated If true, returns the listing only if it has changed,
-	 * @return If onlyIfUpdated is true, return the HTMLNode if it has changed and null if it hasn't.
-	 * If onlyIfUpdated is false, it always returns the HTMLNode.
+	 * Retrieves the lines added to the message log since a given line. Change tracking is done by the caller
+	 * through the sequence number, so any number of readers can follow the log independently.
+	 * @param seq Sequence number of the last line the caller has.
+	 * @return The new lines, oldest first, or null if the caller missed lines that are no longer held and should
+	 * start over from getLog().
 	 */
-	public HTMLNode getParticipantListing(boolean onlyIfUpdated) {
-		if (participantsUpdated || !onlyIfUpdated) {
-			participantsUpdated = false;
-			return participantListing;
-		} else {
-			return null;
-		}
+	public List<LogLine> getLogSince(long seq) {
+		return log.getLinesSince(seq);
 	}
 
-	public long getGlobalIdentifier() {
-		return globalIdentifier;
+	/**
+	 * @return Sequence number of the most recent line in the message log.
+	 */
+	public long getLastSeq() {
+		return log.getLastSeq();
 	}
 
-	public String getRoomName() {
-		return roomName;
+	/**
+	 * Retrieves lines from before the start of the in-memory log, for scrolling back.
+	 * @param seq Sequence number of the oldest line the caller has.
+	 * @param count Maximum number of lines to return.
+	 * @return Up to count lines from history that came just before seq, oldest first. Empty if history is not
+	 * kept.
+	 */
+	public List<LogLine> getHistoryBefore(long seq, int count) {
+		if (history == null) {
+			return Collections.emptyList();
+		}
+		return history.readBefore(seq, count);
 	}
 
 	/**
-	 * Returns whether a participant with that nickname is already in the room. Used to prevent nickname conflicts
-	 * when sending invites.
-	 * @param name Name to check for
-	 * @return True if a participant in the room has that name, false if not.
+	 * Asks the participant who invited this node for what was said in the room before it joined: up to BACKFILL_LINES
+	 * lines from the last BACKFILL_AGE. They are added to the log as they arrive.
+	 * @param invitedBy The peer that invited this node.
+	 * @return False if the peer cannot send history or the request could not be queued.
 	 */
-	public boolean nameExists(String name) {
-		for (Participant participant : participants.values()) {
-			if (participant.name.equals(name)) {
-				return true;
-			}
+	public boolean requestHistory(DarknetPeerNode invitedBy) {
+		if (!sender.supports(invitedBy, ChatSender.CAPABILITY_HISTORY)) {
+			return false;
 		}
-		return false;
+		backfillFrom = new ByteArray(invitedBy.peerECDSAPubKeyHash);
+		backfillParts = null;
+		backfillNext = 0;
+		Logger.minor(this, "Asking "+invitedBy.getName()+" for earlier history of room '"+roomName+"' ("+globalIdentifier+")");
+		return sendBase(invitedBy, ChatFrame.historyRequest(globalIdentifier, BACKFILL_LINES,
+		        System.currentTimeMillis() - BACKFILL_AGE));
 	}
 
 	/**
-	 * Attempts to add a message to the chat room log.
-	 * @param composedBy The public key hash of the composer of the message.
-	 * @param timeComposed The time at which the message was composed.
-	 * @param deliveredBy The public key hash of the darknet peer node that delivered the message.
-	 * @param message The message to add.
-	 * @return True if the message was added; false if the message's composer is not in this chat room or the
-	 * sender is not in this chat room.
+	 * Sends a directly connected participant who asked what was said in the room recently, oldest first, in parts
+	 * of at most BACKFILL_PAGE_BYTES sent BACKFILL_INTERVAL apart. A participant is sent one history at a time.
+	 * @param frame The HISTORY_REQUEST frame.
+	 * @param darkPeer The peer that asked.
 	 */
-	public boolean receiveMessage(ByteArray composedBy, Date timeComposed, ByteArray deliveredBy, String message) {
-		String error = checkPresenceAndAuthorization("message.", composedBy, deliveredBy);
-		if (error != null) {
-			assert(composedBy != null && deliveredBy != null);
-			Logger.warning(this, l10n("messageReceived",
-				new String[]{"composerName", "composerHash", "fromName", "fromHash"},
-				new String[]{findName(composedBy, deliveredBy),
-				        Base64.encode(composedBy.getBytes()),
-				        peerNodes.get(deliveredBy).getName(),
-				        Base64.encode(deliveredBy.getBytes())})
-				+ ' ' + error + ' ' + l10n("roomInfo",
-				new String[]{"roomName", "globalIdentifier"},
+	public void receiveHistoryRequest(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ByteArray requestedBy = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		Participant participant = participants.get(requestedBy);
+		if (participant == null || !participant.directlyConnected || !backfilling.add(requestedBy)) {
+			Logger.minor(this, "Ignoring request for history from "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return;
+		}
+		int count = Math.max(0, Math.min(frame.maxLines, MAX_BACKFILL_LINES));
+		List<LogLine> lines;
+		if (history != null) {
+			lines = history.readBefore(history.getLastSeq() + 1, count);
+		} else {
+			lines = log.getLines();
+			lines = lines.subList(Math.max(0, lines.size() - count), lines.size());
+		}
+
+		List<byte[]> pages = new ArrayList<byte[]>();
+		ByteArrayOutputStream page = new ByteArrayOutputStream(BACKFILL_PAGE_BYTES);
+		for (LogLine line : lines) {
+			if (line.timeReceived < frame.since) {
+				continue;
+			}
+			byte[] record = HistoryStore.record(line);
+			if (page.size() != 0 && page.size() + record.length > BACKFILL_PAGE_BYTES) {
+				pages.add(page.toByteArray());
+				page.reset();
+			}
+			page.write(record, 0, record.length);
+		}
+		//Sent even if empty, so that the participant knows there is nothing.
+		pages.add(page.toByteArray());
+		Logger.minor(this, "Sending "+darkPeer.getName()+" "+lines.size()+" lines of history in "+pages.size()+" parts in room '"+roomName+"' ("+globalIdentifier+")");
+		sendHistoryPart(darkPeer, pages, 0);
+	}
+
+	private void sendHistoryPart(final DarknetPeerNode darkPeer, final List<byte[]> pages, final int part) {
+		final ByteArray key = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		if (!participants.containsKey(key)) {
+			backfilling.remove(key);
+			return;
+		}
+		//Live messages come first: if the queue to the peer is full, this part is tried again later.
+		boolean sent = !sender.isFull(darkPeer) &&
+		        sendBase(darkPeer, ChatFrame.history(globalIdentifier, pages.get(part), part, pages.size()));
+		if (sent && part + 1 == pages.size()) {
+			backfilling.remove(key);
+			return;
+		}
+		final int next = sent ? part + 1 : part;
+		later(new Runnable() {
+			public void run() {
+				sendHistoryPart(darkPeer, pages, next);
+			}
+		}, BACKFILL_INTERVAL);
+	}
+
+	/**
+	 * Handles part of the history asked for with requestHistory(). Parts are added to the log in order, between
+	 * lines marking the start and end of the earlier history. Names are styled as this node styles them.
+	 * @param frame The HISTORY frame.
+	 * @param darkPeer The peer that sent it.
+	 */
+	public void receiveHistory(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ByteArray from = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		if (!from.equals(backfillFrom) || frame.part < backfillNext || frame.part >= frame.parts ||
+		        frame.parts > MAX_BACKFILL_LINES) {
+			Logger.minor(this, "Ignoring history part "+frame.part+" of "+frame.parts+" from "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return;
+		}
+		if (backfillParts == null || backfillParts.length != frame.parts) {
+			backfillParts = new ChatFrame[frame.parts];
+		}
+		backfillParts[frame.part] = frame;
+
+		Calendar now = Calendar.getInstance();
+		now.setTime(new Date());
+		while (backfillNext < backfillParts.length && backfillParts[backfillNext] != null) {
+			if (backfillNext == 0) {
+				append(LogLine.systemLine(now.getTimeInMillis(), l10n("historyStart", "name",
+				        participants.containsKey(from) ? participants.get(from).name : darkPeer.getName())));
+			}
+			try {
+				for (LogLine line : HistoryStore.readRecords(backfillParts[backfillNext].data)) {
+					appendBackfilled(line, from);
+				}
+			} catch (IOException e) {
+				Logger.warning(this, "Skipping damaged history part "+backfillNext+" from "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+"): "+e.getMessage());
+			}
+			backfillParts[backfillNext++] = null;
+		}
+		if (backfillNext == backfillParts.length) {
+			append(LogLine.systemLine(now.getTimeInMillis(), l10n("historyEnd")));
+			backfillFrom = null;
+			backfillParts = null;
+		}
+		signalChange();
+	}
+
+	/**
+	 * Adds a line of history from another node to the log, as this node would have: its own lines have no author,
+	 * and names are styled here from the author. The other node's styling is ignored, as it ends up in a style
+	 * attribute.
+	 * @param line The line as the other node stored it.
+	 * @param from Public key hash of the node it is from, which is the author of lines without one.
+	 */
+	private void appendBackfilled(LogLine line, ByteArray from) {
+		ByteArray author = line.author;
+		String nameStyle = null;
+		if (!line.isSystemLine()) {
+			if (author == null) {
+				author = from;
+			}
+			if (author.equals(ownPubKeyHash)) {
+				author = null;
+				nameStyle = username.nameStyle;
+			} else if (author.getBytes().length < 4) {
+				//Too short to be a public key hash, or to color by.
+				Logger.warning(this, "Skipping history line with an invalid author in room '"+roomName+"' ("+globalIdentifier+")");
+				return;
+			} else {
+				nameStyle = new NameEntry(line.name, author).nameStyle;
+			}
+		}
+		LogLine stored = append(new LogLine(line.timeReceived, line.timeComposed, author, line.name, nameStyle,
+		        line.text, line.message));
+		if (stored.message) {
+			index(stored);
+		}
+	}
+
+	/**
+	 * @param sender Sends this room's frames to peers. Must be set before the room is used.
+	 */
+	public void setSender(ChatSender sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * @param mailbox Runs every task that changes this room. Must be set before the room is used.
+	 */
+	public void setMailbox(Mailbox mailbox) {
+		this.mailbox = mailbox;
+	}
+
+	/**
+	 * Queues a task that reads or changes this room, to run after those already queued. Anything other than the
+	 * room's own tasks must call in through this.
+	 * @param task Task to run.
+	 */
+	public void post(Runnable task) {
+		mailbox.post(task);
+	}
+
+	/**
+	 * Queues a task whose result is wanted, such as whether a message was sent.
+	 * @param task Task to run.
+	 * @return The task's result once it has run.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return mailbox.submit(task);
+	}
+
+	/**
+	 * Posts a task to this room's mailbox after a delay.
+	 * @param task Task to run.
+	 * @param delay Time in milliseconds to wait.
+	 */
+	private void later(final Runnable task, long delay) {
+		sender.queueTimedJob(new Runnable() {
+			public void run() {
+				post(task);
+			}
+		}, delay);
+	}
+
+	/**
+	 * @param searchIndex Index to add messages said from now on to. Can be null to stop indexing.
+	 */
+	public void setSearchIndex(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+
+	/**
+	 * Gets the participants listing. Change tracking is done by the caller through getParticipantsVersion(); read
+	 * the version before the listing so that a change in between is seen again rather than missed.
+	 * @return This node, the participants, and pending invites sorted by name.
+	 */
+	public List<ParticipantRecord> getParticipantListing() {
+		return participantListing;
+	}
+
+	/**
+	 * @return Version of the participants listing. Changes whenever the listing does.
+	 */
+	public long getParticipantsVersion() {
+		return participantsVersion;
+	}
+
+	/**
+	 * Blocks until a line is added to the log, the participants listing changes, or who is typing changes, or the
+	 * timeout passes. Returns immediately if any has already changed from what the caller has.
+	 * @param seq Sequence number of the last line the caller has.
+	 * @param participantsVersion Version of the participants listing the caller has.
+	 * @param typingVersion Version of who is typing the caller has.
+	 * @param timeout Longest time to wait in milliseconds.
+	 * @throws InterruptedException If the waiting thread is interrupted.
+	 */
+	public void waitForChange(long seq, long participantsVersion, long typingVersion, long timeout)
+	        throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (changeMonitor) {
+			while (log.getLastSeq() == seq && this.participantsVersion == participantsVersion &&
+			        this.typingVersion == typingVersion) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return;
+				}
+				changeMonitor.wait(remaining);
+			}
+		}
+	}
+
+	private void signalChange() {
+		synchronized (changeMonitor) {
+			changeMonitor.notifyAll();
+		}
+	}
+
+	public long getGlobalIdentifier() {
+		return globalIdentifier;
+	}
+
+	public String getRoomName() {
+		return roomName;
+	}
+
+	/**
+	 * Returns whether a participant with that nickname is already in the room. Used to prevent nickname conflicts
+	 * when sending invites.
+	 * @param name Name to check for
+	 * @return True if a participant in the room has that name, false if not.
+	 */
+	public boolean nameExists(String name) {
+		for (Participant participant : participants.values()) {
+			if (participant.name.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Attempts to add a message to the chat room log, and relays it to the other directly connected participants.
+	 * @param frame The MESSAGE frame received. If it does not name its composer, the composer is the sender.
+	 * @param deliveredBy The public key hash of the darknet peer node that delivered the message.
+	 * @return True if the message was added; false if the message's composer is not in this chat room or the
+	 * sender is not in this chat room.
+	 */
+	public boolean receiveMessage(ChatFrame frame, ByteArray deliveredBy) {
+		long timeReceived = System.currentTimeMillis();
+		ByteArray composedBy = frame.pubKeyHash == null ? deliveredBy : frame.pubKeyHash;
+		Participant sender = participants.get(deliveredBy);
+		if (sender != null && frame.hopSeq != 0 && !receivedOverHop(sender.peerNode, frame.hopSeq)) {
+			Logger.minor(this, "Dropped duplicate message "+frame.hopSeq+" from "+sender.name+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return true;
+		}
+		//Acknowledged above all the same, so that the sender does not keep sending it again.
+		if (frame.hops > MAX_HOPS) {
+			Logger.normal(this, "Dropped message "+frame.messageId+" after "+frame.hops+" hops in room '"+roomName+"' ("+globalIdentifier+")");
+			return true;
+		}
+		//Checked after the hop sequence number, so that a copy that arrived over another path is still
+		//acknowledged, and before authorization, as copies of this node's own messages can come back around.
+		if (!recentIds.add(frame.messageId)) {
+			Logger.minor(this, "Dropped duplicate message "+frame.messageId+" delivered by "+(sender == null ? "a nonparticipant" : sender.name)+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return true;
+		}
+
+		String error = checkPresenceAndAuthorization("message.", composedBy, deliveredBy);
+		if (error != null) {
+			assert(composedBy != null && deliveredBy != null);
+			Logger.warning(this, l10n("messageReceived",
+				new String[]{"composerName", "composerHash", "fromName", "fromHash"},
+				new String[]{findName(composedBy, deliveredBy),
+				        Base64.encode(composedBy.getBytes()),
+				        peerNodes.get(deliveredBy).getName(),
+				        Base64.encode(deliveredBy.getBytes())})
+				+ ' ' + error + ' ' + l10n("roomInfo",
+				new String[]{"roomName", "globalIdentifier"},
 				new String[]{roomName, String.valueOf(globalIdentifier)}));
 			Logger.minor(this, "participants contains the following key hashes:");
 			for (ByteArray keyHash : participants.keySet()) {
@@ -436,26 +1359,213 @@ public class ChatRoom {
 		}
 
 		Participant composer = participants.get(composedBy);
-		Participant sender = participants.get(deliveredBy);
 
-		Logger.minor(this, "Received chat message composed by "+composer.name+" delivered by "+sender.name+" in room '"+roomName+"' ("+globalIdentifier+")");
+		Logger.minor(this, "Received chat message composed by "+composer.name+" delivered by "+sender.name+" in room '"+roomName+"' ("+globalIdentifier+") hops="+frame.hops);
+		recordLatency(frame, deliveredBy, timeReceived);
 
 		Calendar now = Calendar.getInstance();
 		now.setTime(new Date());
-		String tooltip=l10n("composed", "time", N2NChatPlugin.composedFormat.format(timeComposed.getTime()));
-		addLine(composer, now, tooltip, ": "+message);
+		index(addLine(composer, now, new Date(frame.timeComposed), ": "+frame.text, true));
+		//Whoever sent a message has stopped typing it, whether or not they said so.
+		if (updateTyping(composedBy, frame.timeComposed, false)) {
+			typingChanged();
+		}
+
+		//Copies of this message arriving over other paths are dropped by identifier, so relaying to everyone
+		//directly connected other than the sender cannot loop. Messages from nodes that do not identify them
+		//(messageId zero) are not deduplicated.
+		//One frame for every recipient, so that it is encoded at most once.
+		if (frame.hops == MAX_HOPS) {
+			return true;
+		}
+		ChatFrame relayed = frame.relayedFor(composedBy).withHops(frame.hops + 1,
+		        frame.hopTimes == null ? null : append(frame.hopTimes, timeReceived));
+		for (Participant participant : relayTargets(sender)) {
+			sendMessage(participant.peerNode, relayed);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records how long a message took to get here, overall by the number of hops it took, and over the last hop
+	 * by the participant that delivered it. Times are by different nodes' clocks, so are only as accurate as those
+	 * agree.
+	 * @param frame The MESSAGE frame.
+	 * @param deliveredBy The public key hash of the darknet peer node that delivered the message.
+	 * @param timeReceived Time the message was received.
+	 */
+	private void recordLatency(ChatFrame frame, ByteArray deliveredBy, long timeReceived) {
+		if (frame.hops == 0) {
+			//From a node that does not count hops, and so does not trace them either.
+			return;
+		}
+		long timeSent = frame.hopTimes == null || frame.hopTimes.length == 0 ? frame.timeComposed :
+		        frame.hopTimes[0];
+		histogram(latencyByHops, frame.hops).record(timeReceived - timeSent);
+		if (frame.hopTimes != null && frame.hopTimes.length != 0) {
+			histogram(latencyByPeer, deliveredBy).record(timeReceived - frame.hopTimes[frame.hopTimes.length - 1]);
+		}
+	}
+
+	private static <K> LatencyHistogram histogram(ConcurrentHashMap<K, LatencyHistogram> histograms, K key) {
+		LatencyHistogram histogram = histograms.get(key);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			LatencyHistogram existing = histograms.putIfAbsent(key, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
 
-		//TODO: How to avoid duplicate sending? Currently more than one node can't be directly connected
-		//TODO: to any one participant, so for now it should be okay. When there's more interconnected routing,
-		//TODO: should there be some kind of message/join/leave identifier so that duplicates can be dropped?
-		//TODO: TCP sequence identifiers might be good to look into.
+	private static long[] append(long[] times, long time) {
+		long[] appended = Arrays.copyOf(times, times.length + 1);
+		appended[times.length] = time;
+		return appended;
+	}
+
+	/**
+	 * @return Latency of messages received here from when they were sent, by the number of hops they took.
+	 */
+	public Map<Integer, LatencyHistogram> getLatencyByHops() {
+		return Collections.unmodifiableMap(latencyByHops);
+	}
+
+	/**
+	 * @return Latency of messages received here over their last hop, by the public key hash of the participant
+	 * that delivered them.
+	 */
+	public Map<ByteArray, LatencyHistogram> getLatencyByPeer() {
+		return Collections.unmodifiableMap(latencyByPeer);
+	}
+
+	/**
+	 * @param ownPubKeyHash Public key hash of this node, so that it can find itself in the relay tree.
+	 * @param maxFanOut Most relay tree links this node takes.
+	 */
+	public void setRelayOverlay(ByteArray ownPubKeyHash, int maxFanOut) {
+		this.ownPubKeyHash = ownPubKeyHash;
+		this.maxFanOut = maxFanOut;
+		announceLinks();
+	}
+
+	/**
+	 * Handles a participant announcing who it is directly linked with: keeps it for the relay tree if newer than
+	 * the last one from them, and relays it to every other directly connected participant.
+	 * @param frame The LINKS frame. If it does not name who is announcing, it is the sender.
+	 * @param darkPeer The peer that delivered it.
+	 */
+	public void receiveLinks(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ByteArray deliveredBy = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		ByteArray announcedBy = frame.pubKeyHash == null ? deliveredBy : frame.pubKeyHash;
+		if (!recentIds.add(frame.messageId) || announcedBy.equals(ownPubKeyHash)) {
+			return;
+		}
+		if (!participants.containsKey(announcedBy) || !participants.containsKey(deliveredBy)) {
+			Logger.minor(this, "Ignoring links from a nonparticipant delivered by "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return;
+		}
+		ChatFrame previous = linkAnnouncements.get(announcedBy);
+		if (previous != null && previous.timeComposed >= frame.timeComposed) {
+			return;
+		}
+		ChatFrame relayed = frame.relayedFor(announcedBy);
+		linkAnnouncements.put(announcedBy, relayed);
+		relayTree = null;
+		//Links are flooded rather than sent along the tree, as the tree is built from them.
 		for (Participant participant : participants.values()) {
-			if (participant.directlyConnected && participant != sender) {
-				sendMessage(participant.peerNode, timeComposed, message, composedBy);
+			if (participant.directlyConnected && !participant.pubKeyHash.equals(deliveredBy)) {
+				sendBase(participant.peerNode, relayed);
 			}
 		}
+	}
 
-		return true;
+	/**
+	 * Announces to the room which participants this node is directly linked with.
+	 */
+	private void announceLinks() {
+		ByteArray self = ownPubKeyHash;
+		if (self == null || sender == null) {
+			return;
+		}
+		List<ByteArray> direct = new ArrayList<ByteArray>();
+		for (Participant participant : participants.values()) {
+			if (participant.directlyConnected) {
+				direct.add(participant.pubKeyHash);
+			}
+		}
+		ChatFrame frame = ChatFrame.links(globalIdentifier, null, System.currentTimeMillis(),
+		        Collections.unmodifiableList(direct), maxFanOut, ownId());
+		linkAnnouncements.put(self, frame);
+		relayTree = null;
+		for (Participant participant : participants.values()) {
+			if (participant.directlyConnected) {
+				sendBase(participant.peerNode, frame);
+			}
+		}
+	}
+
+	/**
+	 * Announces this node's links now that it has a new directly connected participant, and sends that participant
+	 * everyone else's, so that it can build the same relay tree. Sent after the joins for everyone, so that the
+	 * announcements are not from participants it does not know yet.
+	 * @param darkPeer The new directly connected participant.
+	 */
+	private void directLinkAdded(DarknetPeerNode darkPeer) {
+		announceLinks();
+		ByteArray added = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		for (Map.Entry<ByteArray, ChatFrame> entry : linkAnnouncements.entrySet()) {
+			if (!entry.getKey().equals(added) && !entry.getKey().equals(ownPubKeyHash)) {
+				sendBase(darkPeer, entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Decides which directly connected participants a message is relayed to. Participants that announce their
+	 * links are sent it only if they are this node's neighbors in the relay tree; others, which do not relay along
+	 * the tree, are always sent it. If the message arrived over a link that is not in the tree as this node sees it,
+	 * the sender sees a different tree, so the message is sent to everyone to be safe; copies are dropped by
+	 * identifier.
+	 * @param deliveredBy Participant that delivered the message, which is not sent it back, or null if it was
+	 * composed here.
+	 * @return Directly connected participants to send the message to.
+	 */
+	private List<Participant> relayTargets(Participant deliveredBy) {
+		ByteArray self = ownPubKeyHash;
+		Set<ByteArray> treeNeighbors = null;
+		if (self != null) {
+			if (relayTree == null) {
+				HashMap<ByteArray, List<ByteArray>> links = new HashMap<ByteArray, List<ByteArray>>();
+				HashMap<ByteArray, Integer> fanOuts = new HashMap<ByteArray, Integer>();
+				for (Map.Entry<ByteArray, ChatFrame> entry : linkAnnouncements.entrySet()) {
+					links.put(entry.getKey(), entry.getValue().links);
+					fanOuts.put(entry.getKey(), entry.getValue().maxFanOut);
+				}
+				relayTree = new RelayTree(links, fanOuts);
+			}
+			if (relayTree.contains(self)) {
+				treeNeighbors = relayTree.neighbors(self);
+			}
+		}
+		if (treeNeighbors != null && deliveredBy != null && linkAnnouncements.containsKey(deliveredBy.pubKeyHash) &&
+		        !treeNeighbors.contains(deliveredBy.pubKeyHash)) {
+			treeNeighbors = null;
+		}
+
+		List<Participant> targets = new ArrayList<Participant>();
+		for (Participant participant : participants.values()) {
+			if (!participant.directlyConnected || participant == deliveredBy) {
+				continue;
+			}
+			if (treeNeighbors == null || !linkAnnouncements.containsKey(participant.pubKeyHash) ||
+			        treeNeighbors.contains(participant.pubKeyHash)) {
+				targets.add(participant);
+			}
+		}
+		return targets;
 	}
 
 	private void updateParticipantListing() {
@@ -465,86 +1575,216 @@ public class ChatRoom {
 		names.add(username);
 		Collections.sort(names);
 
-		participantListing = new HTMLNode("ul", "class", "list-pane");
-		participantListing.addChild("li", l10n("participantsPresent", "numberOf",
-			String.valueOf(participants.size() + 1)));
-
-		//List participants with colored name text and routing information on tooltip.
+		List<ParticipantRecord> listing = new ArrayList<ParticipantRecord>(names.size());
 		for (NameEntry entry : names) {
-			String routing = "";
-			String suffix = "";
 			if (entry instanceof Participant) {
-				//It's a participant, list connection information on tooltip.
+				//It's a participant; include connection information.
 				Participant participant = (Participant)entry;
-				if (participant.pubKeyHash.equals(new ByteArray(participant.peerNode.peerECDSAPubKeyHash))) {
-					routing = l10n("connectedDirectly",
-					        new String[] { "nodeName", "nodeID" },
-					        new String[] { participant.peerNode.getName(),
-					                Base64.encode(participant.peerNode.peerECDSAPubKeyHash) });
-				} else {
-					routing = l10n("connectedThrough",
-					        new String[] { "nodeName", "nodeID", "pubKeyHash" },
-					        new String[] { participant.peerNode.getName(),
-					                Base64.encode(participant.peerNode.peerECDSAPubKeyHash),
-					                Base64.encode(participant.pubKeyHash.getBytes()) });
-				}
+				ReliableLink link = participant.directlyConnected ? links.get(participant.pubKeyHash) : null;
+				listing.add(new ParticipantRecord(participant.name, participant.nameStyle, participant.pubKeyHash,
+				        false, false, participant.peerNode.getName(),
+				        new ByteArray(participant.peerNode.peerECDSAPubKeyHash), participant.directlyConnected,
+				        Math.max(0, routes.count(participant.pubKeyHash) - 1), link != null && link.isRetrying(),
+				        link == null ? 0 : link.lost()));
 			} else if (entry.equals(username)) {
-				suffix = " ("+l10n("you")+')';
+				listing.add(new ParticipantRecord(entry.name, entry.nameStyle, null, true, false, null, null, false,
+				        0, false, 0));
 			} else {
 				//It's an invite.TODO: Include which peer this is? It'll only really be an issue
 				//TODO: if usernames can differ from node nicknames.
-				suffix = " ("+l10n("invitePending")+')';
+				listing.add(new ParticipantRecord(entry.name, entry.nameStyle, entry.pubKeyHash, false, true, null,
+				        null, false, 0, false, 0));
 			}
-
-			participantListing.addChild("li",
-			        new String[] { "style", "title" },
-			        new String[] { entry.nameStyle, routing },
-			        entry.name+suffix);
 		}
+		participantListing = Collections.unmodifiableList(listing);
 
-		participantsUpdated = true;
+		participantsVersion++;
+		signalChange();
 	}
 
-	public void sendOwnMessage(String message) {
+	/**
+	 * Adds a message from the local node and sends it to the directly connected participants.
+	 * @param message Text of the message.
+	 * @return False if the queue to one of them is full, in which case the message was neither added nor sent.
+	 */
+	public boolean sendOwnMessage(String message) {
+		List<Participant> targets = relayTargets(null);
+		for (Participant participant : targets) {
+			if (sender.isFull(participant.peerNode)) {
+				Logger.normal(this, "Not sending message in room '" + roomName + "' (" + globalIdentifier +
+				        "): queue to " + participant.peerNode.getName() + " is full");
+				return false;
+			}
+		}
+
 		Calendar now = Calendar.getInstance();
 		now.setTime(new Date());
 
-		addLine(username, now, null, ": " + message);
+		index(addLine(username, now, null, ": " + message, true));
+		//Others stop showing this node typing when they get the message.
+		ownTypingSent = 0;
 
 		//Send this message to others.
-		for (Participant participant : participants.values()) {
-			if (participant.directlyConnected) {
-				sendMessage(participant.peerNode, now.getTime(), message, null);
+		ChatFrame frame = ChatFrame.message(globalIdentifier, null, now.getTimeInMillis(), message, ownId())
+		        .withHops(1, new long[] { now.getTimeInMillis() });
+		for (Participant participant : targets) {
+			sendMessage(participant.peerNode, frame);
+		}
+		return true;
+	}
+
+	/**
+	 * Tells the directly connected participants that this node started or stopped typing, in the ephemeral lane.
+	 * Saying it is still typing is sent at most every TYPING_INTERVAL, and stopping only if it had said it started.
+	 * @param typing True if the user is typing; false if they stopped.
+	 */
+	public void setTyping(boolean typing) {
+		long now = System.currentTimeMillis();
+		if (typing ? now - ownTypingSent < TYPING_INTERVAL : ownTypingSent == 0) {
+			return;
+		}
+		ownTypingSent = typing ? now : 0;
+		sendTyping(ChatFrame.typing(globalIdentifier, null, typing, now), null);
+	}
+
+	/**
+	 * Records whether a participant is typing and relays it on. It is shown for TYPING_TIMEOUT after it was sent
+	 * unless they stop or send a message first, and is never added to the log. Only a state newer than the
+	 * latest known from the participant is taken, which also drops copies arriving over other paths. Anything
+	 * unexpected is dropped quietly, as the next state replaces it anyway.
+	 * @param frame The TYPING frame. If it does not name the participant, the participant is the sender.
+	 * @param darkPeer Peer the frame came from.
+	 */
+	public void receiveTyping(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ByteArray deliveredBy = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		ByteArray typedBy = frame.pubKeyHash == null ? deliveredBy : frame.pubKeyHash;
+		if (typedBy.equals(ownPubKeyHash) || checkPresenceAndAuthorization("message.", typedBy, deliveredBy) != null) {
+			Logger.minor(this, "Dropped typing state delivered by "+darkPeer.getName()+" in room '"+roomName+"' ("+globalIdentifier+")");
+			return;
+		}
+		if (!updateTyping(typedBy, frame.timeComposed, frame.typing)) {
+			return;
+		}
+		typingChanged();
+		sendTyping(frame.relayedFor(typedBy), participants.get(deliveredBy));
+	}
+
+	/**
+	 * @return Names of the participants shown typing, sorted.
+	 */
+	public List<String> getTyping() {
+		long now = System.currentTimeMillis();
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<ByteArray, Typing> entry : typing.entrySet()) {
+			Participant participant = participants.get(entry.getKey());
+			if (participant != null && entry.getValue().until > now) {
+				names.add(participant.name);
+			}
+		}
+		Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+		return names;
+	}
+
+	/**
+	 * @return Version of who is typing. Changes whenever getTyping() does.
+	 */
+	public long getTypingVersion() {
+		return typingVersion;
+	}
+
+	/**
+	 * Replaces a participant's typing state if the new one is newer. A state saying they are typing is shown until
+	 * TYPING_TIMEOUT from now, when readers are woken to stop showing it unless it was replaced.
+	 * @param pubKeyHash Public key hash of the participant.
+	 * @param time Time the state was sent, by the participant's clock.
+	 * @param isTyping Whether they are typing.
+	 * @return True if the state was replaced.
+	 */
+	private boolean updateTyping(final ByteArray pubKeyHash, long time, boolean isTyping) {
+		final Typing state = new Typing(time, isTyping ? System.currentTimeMillis() + TYPING_TIMEOUT : 0);
+		while (true) {
+			Typing last = typing.get(pubKeyHash);
+			if (last != null && last.time >= time) {
+				return false;
+			}
+			if (last == null ? typing.putIfAbsent(pubKeyHash, state) == null : typing.replace(pubKeyHash, last, state)) {
+				break;
+			}
+		}
+		if (isTyping) {
+			later(new Runnable() {
+				public void run() {
+					if (typing.get(pubKeyHash) == state) {
+						typingChanged();
+					}
+				}
+			}, TYPING_TIMEOUT);
+		}
+		return true;
+	}
+
+	private void typingChanged() {
+		typingVersion++;
+		signalChange();
+	}
+
+	/**
+	 * Sends a TYPING frame in the ephemeral lane to the directly connected participants that understand it.
+	 * @param frame The frame.
+	 * @param deliveredBy Participant that delivered it, which is not sent it back, or null if it is this node's.
+	 */
+	private void sendTyping(ChatFrame frame, Participant deliveredBy) {
+		for (Participant participant : relayTargets(deliveredBy)) {
+			if (sender.supports(participant.peerNode, ChatSender.CAPABILITY_TYPING)) {
+				sender.sendEphemeral(participant.peerNode, frame);
 			}
 		}
 	}
 
 	/**
-	 * Adds a line to the message log of format [ Time ] (with optional timestamp tooltip) name[message]. If there
-	 * is a day change, this will add it. Updates the lastLineTime. Used for joins, leaves, and messages.
+	 * Adds a line to the message log, displayed as [ Time ] name[message] with the time composed, if any, on the
+	 * timestamp tooltip. If there is a day change, this will add it. Updates the lastLineTime. Used for joins,
+	 * leaves, and messages.
 	 * @param name Name to display.
 	 * @param time Timestamp to display.
-	 * @param timestampTooltip Tooltip to display, if any. Can be null.
+	 * @param timeComposed Time the message was composed, if any. Can be null.
 	 * @param message What to append to the name in non-colored text.
+	 * @param said True if the line is a message rather than a join or leave.
+	 * @return The line as stored, with its sequence number.
 	 */
-	private void addLine(NameEntry name, Calendar time, String timestampTooltip, String message) {
+	private LogLine addLine(NameEntry name, Calendar time, Date timeComposed, String message, boolean said) {
 		addDateOnDayChange(time);
 		lastLineTime = time;
 
-		HTMLNode messageLine = log.addChild("li", "[ "+ N2NChatPlugin.receivedFormat.format(time.getTime())+" ] ");
+		LogLine line = append(new LogLine(time.getTimeInMillis(), timeComposed == null ? 0 : timeComposed.getTime(),
+		        name.pubKeyHash, name.name, name.nameStyle, message, said));
+		signalChange();
+		return line;
+	}
 
-		if (timestampTooltip != null) {
-			messageLine.addAttribute("title", timestampTooltip);
+	/**
+	 * Adds a message line to the search index, if any.
+	 * @param line Line as stored.
+	 */
+	private void index(LogLine line) {
+		SearchIndex index = searchIndex;
+		if (index != null) {
+			index.add(globalIdentifier, line);
 		}
+	}
 
-		//Ex: BillyBob
-		//With text color based on public key hash.
-		messageLine.addChild("div", "style", name.nameStyle+"display:inline;", name.name);
-
-		//Ex: ": Blah blah blah." or " disconnected."
-		messageLine.addChild("#", message);
-
-		messagesUpdated = true;
+	/**
+	 * Adds a line to the in-memory log and queues it for history. Lines are only added by the constructor and by
+	 * tasks in the mailbox, so they reach history in the order they were numbered without holding the log's lock.
+	 * @param line Line to add.
+	 * @return The line as stored, with its sequence number.
+	 */
+	private LogLine append(LogLine line) {
+		LogLine stored = log.add(line);
+		if (history != null) {
+			history.append(stored);
+		}
+		return stored;
 	}
 
 	/**
@@ -554,52 +1794,154 @@ public class ChatRoom {
 	private void addDateOnDayChange(Calendar now) {
 		if (now.get(Calendar.DAY_OF_YEAR) != lastLineTime.get(Calendar.DAY_OF_YEAR) ||
 		        now.get(Calendar.YEAR) != lastLineTime.get(Calendar.YEAR)) {
-			log.addChild("li", N2NChatPlugin.dayChangeFormat.format(now.getTime()));
+			append(LogLine.systemLine(now.getTimeInMillis(), N2NChatPlugin.dayChangeFormat.format(now.getTime())));
 		}
 	}
 
-	//TODO: is it reasonable to queue chat messages? Desired? Wouldn't they leave the chat room if not connected though?
-	//TODO: Remove peers from chat when they disconnect.
+	//Frames to a peer whose link is down are held by the ChatSender for a while and sent when it reconnects.
+	//Participants whose link stays down are removed when the LivenessService reports them lost.
 	/**
-	 * Basic sending message to darknet peer. Adds globalIdentifier and type to anything else in the SimpleFieldSet.
-	 * Does not queue.
-	 * @param darkPeer The DarknetPeerNode the message will be sent to.
-	 * @param fs The SimpleFieldSet thus far. Can be null.
-	 * @param type The type of the message. (Ex: N2NChatPlugin.MESSAGE)
+	 * Basic sending frame to darknet peer. The ChatSender may hold it briefly to send it together with other frames
+	 * to the same peer.
+	 * @param darkPeer The DarknetPeerNode the frame will be sent to.
+	 * @param frame The frame to send.
+	 * @return False if the queue to the peer is full and the frame was not sent.
 	 */
-	private void sendBase(DarknetPeerNode darkPeer, SimpleFieldSet fs, int type) {
-		if (fs == null) {
-			fs = new SimpleFieldSet(true);
-		}
-		fs.put("globalIdentifier", globalIdentifier);
-		fs.put("type", type);
-		darkPeer.sendNodeToNodeMessage(fs, N2NChatPlugin.N2N_MESSAGE_TYPE_CHAT, true,
-		        System.currentTimeMillis(), false);
+	private boolean sendBase(DarknetPeerNode darkPeer, ChatFrame frame) {
+		return sender.send(darkPeer, frame);
 	}
 
 	/**
 	 * Sends a chat message to the specified darknet peer.
 	 * @param darkPeer The darknet peer to send the message to.
-	 * @param timeComposed The time the message was composed.
-	 * @param message The text of the message to send.
-	 * @param composedBy The public key hash of the participant that composed this message. Can be null, in which
-	 * case receiving nodes are to assume the sender of the message is the composer.
+	 * @param frame The MESSAGE frame. Its pubKeyHash is the composer, or null, in which case receiving nodes are to
+	 * assume the sender of the message is the composer. The same frame can be sent to many peers.
+	 */
+	private void sendMessage(DarknetPeerNode darkPeer, ChatFrame frame) {
+		Logger.minor(this, "Sent message composed " + (frame.pubKeyHash == null ? "locally" : "by " +
+			participants.get(frame.pubKeyHash).name) + " in room '" + roomName + "' (" + globalIdentifier + ") to " + darkPeer.getName());
+		if (sender.supports(darkPeer, ChatSender.CAPABILITY_ACK)) {
+			//Kept until acknowledged. If it cannot be queued now it is sent again when it times out.
+			ReliableLink link = link(darkPeer);
+			frame = frame.withHopSeq(link.sent(frame, System.currentTimeMillis()));
+			scheduleResendCheck(darkPeer, link);
+		}
+		sendBase(darkPeer, frame);
+	}
+
+	/**
+	 * Handles an acknowledgement from a directly connected participant of messages this node sent it.
+	 * @param frame The ACK frame.
+	 * @param darkPeer The peer that sent it.
+	 */
+	public void receiveAck(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ReliableLink link = links.get(new ByteArray(darkPeer.peerECDSAPubKeyHash));
+		if (link == null) {
+			Logger.minor(this, "Ignoring acknowledgement from "+darkPeer.getName()+" in room "+globalIdentifier+", which was sent nothing");
+			return;
+		}
+		boolean wasRetrying = link.isRetrying();
+		int wasLost = link.lost();
+		link.acknowledged(frame.ack, frame.seqs);
+		deliveryChanged(link, wasRetrying, wasLost);
+	}
+
+	/**
+	 * Handles a request from a directly connected participant to send missing messages again.
+	 * @param frame The NACK frame.
+	 * @param darkPeer The peer that sent it.
+	 */
+	public void receiveNack(ChatFrame frame, DarknetPeerNode darkPeer) {
+		ReliableLink link = links.get(new ByteArray(darkPeer.peerECDSAPubKeyHash));
+		if (link == null) {
+			Logger.minor(this, "Ignoring request to resend from "+darkPeer.getName()+" in room "+globalIdentifier+", which was sent nothing");
+			return;
+		}
+		boolean wasRetrying = link.isRetrying();
+		int wasLost = link.lost();
+		List<ReliableLink.Resend> resends = link.requested(frame.seqs, System.currentTimeMillis());
+		Logger.minor(this, darkPeer.getName()+" is missing "+resends.size()+" messages in room "+globalIdentifier);
+		for (ReliableLink.Resend resend : resends) {
+			sendBase(darkPeer, resend.frame.withHopSeq(resend.seq));
+		}
+		deliveryChanged(link, wasRetrying, wasLost);
+	}
+
+	/**
+	 * Records a message received over a hop, asks for any messages found missing, and schedules an
+	 * acknowledgement.
+	 * @param darkPeer The peer that delivered the message.
+	 * @param seq Its hop sequence number.
+	 * @return False if the message was already received and should be dropped.
 	 */
-	private void sendMessage(DarknetPeerNode darkPeer, Date timeComposed, String message, ByteArray composedBy) {
-		SimpleFieldSet fs = new SimpleFieldSet(true);
-		fs.put("timeComposed", timeComposed.getTime());
+	private boolean receivedOverHop(DarknetPeerNode darkPeer, long seq) {
+		ReliableLink link = link(darkPeer);
+		boolean isNew = link.received(seq);
+		long[] missing = link.missing();
+		if (missing.length != 0) {
+			sendBase(darkPeer, ChatFrame.nack(globalIdentifier, missing));
+		}
+		//Duplicates are acknowledged too, as the acknowledgement of the first copy may have been lost.
+		scheduleAck(darkPeer, link);
+		return isNew;
+	}
 
-		//TODO: Why doesn't SFS allow byte arrays?
-		try {
-			fs.putSingle("text", Base64.encode(message.getBytes("UTF-8")));
-		} catch (UnsupportedEncodingException e) {
-			throw new Error("This JVM does not support UTF-8! Cannot encode message.");
+	private ReliableLink link(DarknetPeerNode darkPeer) {
+		ByteArray key = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		ReliableLink link = links.get(key);
+		if (link == null) {
+			link = new ReliableLink(1 + random.nextInt(Integer.MAX_VALUE));
+			ReliableLink existing = links.putIfAbsent(key, link);
+			if (existing != null) {
+				link = existing;
+			}
 		}
+		return link;
+	}
 
-		formatPubKeyHash(composedBy, fs);
-		Logger.minor(this, "Sent message composed " + (composedBy == null ? "locally" : "by " +
-			participants.get(composedBy).name) + " in room '" + roomName + "' (" + globalIdentifier + ") to " + darkPeer.getName());
-		sendBase(darkPeer, fs, N2NChatPlugin.MESSAGE);
+	private void scheduleAck(final DarknetPeerNode darkPeer, final ReliableLink link) {
+		if (!link.scheduleAck()) {
+			return;
+		}
+		later(new Runnable() {
+			public void run() {
+				link.ackSent();
+				sendBase(darkPeer, ChatFrame.ack(globalIdentifier, link.cumulative(), link.selective()));
+			}
+		}, ReliableLink.ACK_DELAY);
+	}
+
+	private void scheduleResendCheck(final DarknetPeerNode darkPeer, final ReliableLink link) {
+		if (!link.scheduleResendCheck()) {
+			return;
+		}
+		final ByteArray key = new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		later(new Runnable() {
+			public void run() {
+				if (links.get(key) != link) {
+					//The participant left.
+					return;
+				}
+				boolean wasRetrying = link.isRetrying();
+				int wasLost = link.lost();
+				for (ReliableLink.Resend resend : link.timedOut(System.currentTimeMillis())) {
+					sendBase(darkPeer, resend.frame.withHopSeq(resend.seq));
+				}
+				deliveryChanged(link, wasRetrying, wasLost);
+				if (link.resendChecked()) {
+					later(this, ReliableLink.RESEND_TIMEOUT);
+				}
+			}
+		}, ReliableLink.RESEND_TIMEOUT);
+	}
+
+	/**
+	 * Updates the participant listing if the delivery state shown for a link changed.
+	 */
+	private void deliveryChanged(ReliableLink link, boolean wasRetrying, int wasLost) {
+		if (link.isRetrying() != wasRetrying || link.lost() != wasLost) {
+			updateParticipantListing();
+		}
 	}
 
 	/**
@@ -609,17 +1951,40 @@ public class ChatRoom {
 	 * @param sendTo The darknet peer to send the notification to.
 	 * @param newParticipant The new participant.
 	 * @param displayJoin Whether the join should generate a message.
+	 * @param messageId Identifier of the join.
+	 * @param hops Number of hops the join took to get here, or zero if it is from here or they were not counted.
 	 */
-	private void sendJoin(DarknetPeerNode sendTo, Participant newParticipant, boolean displayJoin) {
-		SimpleFieldSet fs = formatPubKeyHash(newParticipant.pubKeyHash);
-		try {
-			fs.putSingle("username", Base64.encode(newParticipant.name.getBytes("UTF-8")));
-			fs.put("displayJoin", displayJoin);
-		} catch (UnsupportedEncodingException e) {
-			throw new Error("This JVM does not support UTF-8! Cannot encode join.");
-		}
+	private void sendJoin(DarknetPeerNode sendTo, Participant newParticipant, boolean displayJoin, long messageId,
+	        int hops) {
 		Logger.minor(this, "Sent join of " + newParticipant.name + " in room '"+roomName+"' (" + globalIdentifier + ") to " + sendTo.getName());
-		sendBase(sendTo, fs, N2NChatPlugin.JOIN);
+		sendBase(sendTo, ChatFrame.join(globalIdentifier, newParticipant.pubKeyHash, newParticipant.name,
+		        displayJoin, messageId).withHops(hops + 1, null));
+	}
+
+	/**
+	 * Sends a participant who just joined everyone else in the room as a roster instead of a silent join for each,
+	 * split into parts of at most ROSTER_PART_SIZE participants. They add them once every part has arrived.
+	 * @param sendTo The darknet peer who joined.
+	 * @param others The other participants in the room.
+	 */
+	private void sendRoster(DarknetPeerNode sendTo, List<Participant> others) {
+		if (others.isEmpty()) {
+			return;
+		}
+		long rosterId = ownId();
+		int parts = (others.size() + ROSTER_PART_SIZE - 1) / ROSTER_PART_SIZE;
+		for (int part = 0; part < parts; part++) {
+			List<ByteArray> pubKeyHashes = new ArrayList<ByteArray>(ROSTER_PART_SIZE);
+			List<String> usernames = new ArrayList<String>(ROSTER_PART_SIZE);
+			for (Participant participant : others.subList(part * ROSTER_PART_SIZE,
+			        Math.min(others.size(), (part + 1) * ROSTER_PART_SIZE))) {
+				pubKeyHashes.add(participant.pubKeyHash);
+				usernames.add(participant.name);
+			}
+			sendBase(sendTo, ChatFrame.roster(globalIdentifier, Collections.unmodifiableList(pubKeyHashes),
+			        Collections.unmodifiableList(usernames), part, parts, rosterId));
+		}
+		Logger.minor(this, "Sent roster of " + others.size() + " participants in room '"+roomName+"' (" + globalIdentifier + ") to " + sendTo.getName());
 	}
 
 	/**
@@ -628,10 +1993,21 @@ public class ChatRoom {
 	 * notification.
 	 * @param darkPeer The darknet peer to send the notification to.
 	 * @param pubKeyHash The public key hash of the participant that has left.
+	 * @param messageId Identifier of the leave.
+	 * @param hops Number of hops the leave took to get here, or zero if it is from here or they were not counted.
 	 */
-	private void sendLeave(DarknetPeerNode darkPeer, ByteArray pubKeyHash) {
+	private void sendLeave(DarknetPeerNode darkPeer, ByteArray pubKeyHash, long messageId, int hops) {
 		Logger.minor(this, "Sent leave in room "+globalIdentifier+" to "+darkPeer.getName());
-		sendBase(darkPeer, formatPubKeyHash(pubKeyHash), N2NChatPlugin.LEAVE);
+		sendBase(darkPeer, ChatFrame.leave(globalIdentifier, pubKeyHash, messageId).withHops(hops + 1, null));
+	}
+
+	/**
+	 * @return A new message identifier, already recorded as seen so that copies echoed back are dropped.
+	 */
+	private long ownId() {
+		long messageId = ChatFrame.newMessageId();
+		recentIds.add(messageId);
+		return messageId;
 	}
 
 	/**
@@ -649,15 +2025,10 @@ public class ChatRoom {
 			return false;
 		}
 
-		SimpleFieldSet fs = new SimpleFieldSet(true);
-		try {
-			fs.putSingle("username", Base64.encode(username.getBytes("UTF-8")));
-			fs.putSingle("roomName", Base64.encode(roomName.getBytes("UTF-8")));
-		} catch (UnsupportedEncodingException e) {
-			throw new Error("JVM does not support UTF-8! Cannot encode username string!");
+		if (!sendBase(darkPeer, ChatFrame.offerInvite(globalIdentifier, username, roomName))) {
+			return false;
 		}
 		Logger.minor(this, "Sent invite offer for room " + globalIdentifier + " to " + darkPeer.getName());
-		sendBase(darkPeer, fs, N2NChatPlugin.OFFER_INVITE);
 		sentInvites.put(pubKeyHash, new NameEntry(username, pubKeyHash));
 		updateParticipantListing();
 		return true;
@@ -665,8 +2036,10 @@ public class ChatRoom {
 
 	public boolean sendInviteRetract(DarknetPeerNode darkPeer) {
 		if (sentInvites.containsKey(new ByteArray(darkPeer.peerECDSAPubKeyHash))) {
+			if (!sendBase(darkPeer, ChatFrame.invite(N2NChatPlugin.RETRACT_INVITE, globalIdentifier))) {
+				return false;
+			}
 			Logger.minor(this, "Retracted "+darkPeer.getName()+"'s invite to room "+globalIdentifier);
-			sendBase(darkPeer, null, N2NChatPlugin.RETRACT_INVITE);
 			sentInvites.remove(new ByteArray(darkPeer.peerECDSAPubKeyHash));
 			updateParticipantListing();
 			return true;
@@ -706,26 +2079,6 @@ public class ChatRoom {
 		return receiveInvite(darkPeer, false);
 	}
 
-	/**
-	 * Returns a SimpleFieldSet with the applicable pubKeyHash field.
-	 * @param pubKeyHash The key hash to add. Can be null, in which case the field will not be added.
-	 * @param fs To add fields to. Can be null, in which case a new one will be created.
-	 * @return Empty or unmodified SimpleFieldSet if pubKeyHash is null.
-	 */
-	private SimpleFieldSet formatPubKeyHash(ByteArray pubKeyHash, SimpleFieldSet fs) {
-		if (fs == null) {
-			fs = new SimpleFieldSet(true);
-		}
-		if (pubKeyHash != null) {
-			fs.putSingle("pubKeyHash", Base64.encode(pubKeyHash.getBytes()));
-		}
-		return fs;
-	}
-
-	private SimpleFieldSet formatPubKeyHash(ByteArray pubKeyHash) {
-		return formatPubKeyHash(pubKeyHash, null);
-	}
-
 	private String l10n(String key) {
 		return l10n.getBase().getString("room." + key);
 	}
@@ -738,6 +2091,49 @@ public class ChatRoom {
 		return l10n.getBase().getString("room." + key, pattern, value);
 	}
 
+	/**
+	 * Snapshot of one entry in the participants listing: this node, a participant, or a pending invite.
+	 */
+	public static class ParticipantRecord {
+
+		public final String name;
+		public final String nameStyle;
+		/** Public key hash of the participant or invited peer. Null for this node. */
+		public final ByteArray pubKeyHash;
+		/** True if this entry is the local node. */
+		public final boolean self;
+		/** True if this entry is an invite that has not been answered yet. */
+		public final boolean invitePending;
+		/** For participants, the name of the peer their traffic goes through. Null otherwise. */
+		public final String routedByName;
+		/** For participants, the public key hash of the peer their traffic goes through. Null otherwise. */
+		public final ByteArray routedBy;
+		/** True if the participant is directly connected to this node. */
+		public final boolean directlyConnected;
+		/** Number of routes to the participant other than routedBy, which can take over if it leaves. */
+		public final int backupRoutes;
+		/** True if messages to this directly connected participant had to be sent again and are still unconfirmed. */
+		public final boolean deliveryRetrying;
+		/** Number of messages to this directly connected participant that were given up on. */
+		public final int undelivered;
+
+		ParticipantRecord(String name, String nameStyle, ByteArray pubKeyHash, boolean self, boolean invitePending,
+		        String routedByName, ByteArray routedBy, boolean directlyConnected, int backupRoutes,
+		        boolean deliveryRetrying, int undelivered) {
+			this.name = name;
+			this.nameStyle = nameStyle;
+			this.pubKeyHash = pubKeyHash;
+			this.self = self;
+			this.invitePending = invitePending;
+			this.routedByName = routedByName;
+			this.routedBy = routedBy;
+			this.directlyConnected = directlyConnected;
+			this.backupRoutes = backupRoutes;
+			this.deliveryRetrying = deliveryRetrying;
+			this.undelivered = undelivered;
+		}
+	}
+
 	/**
 	 * Used to keep track of participants in a chat room. Records whether they are directly connected, whether this
 	 * node routes for them, what DarknetPeerNode is used to contact them, and what CSS styling their name uses.
@@ -767,6 +2163,21 @@ public class ChatRoom {
 		}
 	}
 
+	/**
+	 * A participant's latest typing state.
+	 */
+	private static class Typing {
+		/** Time the state was sent, by the participant's clock. */
+		public final long time;
+		/** Time, by this node's clock, until which they are shown typing. Zero if they stopped. */
+		public final long until;
+
+		public Typing(long time, long until) {
+			this.time = time;
+			this.until = until;
+		}
+	}
+
 	/** Base class for Participant. Tracks name and name CSS styling. Used for pending invites and one's own name
 	 * in the participants panel. This is done so they can all be alphabetically sorted by name and still colored.
 	 * It also includes the public key hash used to style, if applicable, for use in tooltips.
@@ -0,0 +1,733 @@
+package plugins.N2NChat.core;
+
+import freenet.io.comm.ByteCounter;
+import freenet.io.comm.DMT;
+import freenet.io.comm.NotConnectedException;
+import freenet.node.DarknetPeerNode;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends chat frames to darknet peers for all rooms. Frames for a peer are held for a short window and then sent
+ * together as one N2N message, so that a burst of messages, or a peer in many rooms, costs one packet instead of
+ * many. Peers that understand the binary format get the frames in it; otherwise they are sent as a legacy BUNDLE if
+ * the peer understands bundles, or else each on its own. See ChatFrameCodec.
+ * <p>
+ * Sending is done by a small pool of worker threads, so a slow peer does not hold up the others or whoever queued
+ * the frame. At most one worker sends to a given peer at a time, which keeps frames in order. Each peer's queue is
+ * bounded: once it is full further frames are refused, and callers report that rather than letting work pile up.
+ * <p>
+ * Frames for a peer that is not connected are held, up to MAX_HELD_FRAMES for up to MAX_HELD_AGE, and sent in order
+ * ahead of anything newer once it reconnects, so that a short link flap does not lose messages. They are not kept
+ * across restarts.
+ * <p>
+ * Transient signals such as typing go in a separate ephemeral lane: see sendEphemeral(). They are never held, are
+ * dropped rather than queued while the peer is busy, and ride at the end of whatever is sent next.
+ * <p>
+ * Every message sent lists this node's capabilities, which older versions ignore. A peer's capabilities are updated
+ * from each message received from it, so a peer that downgrades falls back to what it still understands.
+ */
+public class ChatSender {
+
+	/** Default time in milliseconds frames are held so that they can be sent together. */
+	public static final long DEFAULT_WINDOW = 50;
+
+	/** Most frames sent in one bundle. Larger batches are split. */
+	public static final int MAX_BUNDLE_FRAMES = 16;
+
+	/** Most frames waiting to be sent to one peer. Frames beyond this are refused. */
+	public static final int MAX_QUEUED_FRAMES = 256;
+
+	/** Default number of threads sending to peers. */
+	public static final int DEFAULT_WORKERS = 4;
+
+	/** Most frames held for a disconnected peer. The oldest are dropped beyond this. */
+	public static final int MAX_HELD_FRAMES = 1024;
+
+	/** Time in milliseconds frames are held for a disconnected peer before being dropped. */
+	public static final long MAX_HELD_AGE = 10 * 60 * 1000;
+
+	/** Queued frames at which a peer is too busy for ephemeral frames, which are dropped instead. */
+	public static final int EPHEMERAL_LOAD_LIMIT = MAX_QUEUED_FRAMES / 8;
+
+	/** Least time in milliseconds between flushes a peer's ephemeral frames schedule on their own. */
+	public static final long EPHEMERAL_INTERVAL = 1000;
+
+	/** Time in milliseconds between checks for whether peers with held frames have reconnected. */
+	private static final long RETRY_INTERVAL = 2000;
+
+	/** Time in milliseconds to wait for queued frames to be sent when closing. */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	/** Capability of understanding BUNDLE frames. */
+	public static final String CAPABILITY_BUNDLE = "bundle";
+
+	/** Capability of understanding the binary format. See ChatFrameCodec. */
+	public static final String CAPABILITY_BINARY = "binary";
+
+	/** Capability of acknowledging messages and understanding hop sequence numbers. See ReliableLink. */
+	public static final String CAPABILITY_ACK = "ack";
+
+	/** Capability of understanding ROSTER frames. */
+	public static final String CAPABILITY_ROSTER = "roster";
+
+	/** Capability of understanding DIGEST frames. See MembershipDigest. */
+	public static final String CAPABILITY_DIGEST = "digest";
+
+	/** Capability of answering HISTORY_REQUEST frames. */
+	public static final String CAPABILITY_HISTORY = "history";
+
+	/** Capability of answering PING frames. See LivenessService. */
+	public static final String CAPABILITY_PING = "ping";
+
+	/** Capability of understanding TYPING frames. */
+	public static final String CAPABILITY_TYPING = "typing";
+
+	/** Capabilities of this node, separated by commas. */
+	public static final String CAPABILITIES = CAPABILITY_BUNDLE + ',' + CAPABILITY_BINARY + ',' + CAPABILITY_ACK +
+	        ',' + CAPABILITY_ROSTER + ',' + CAPABILITY_DIGEST + ',' + CAPABILITY_HISTORY + ',' + CAPABILITY_PING +
+	        ',' + CAPABILITY_TYPING;
+
+	private final Clock clock;
+	/** Counts bytes of binary messages, which are sent directly rather than through the node's N2N methods. */
+	private final ByteCounter counter;
+	private final ExecutorService workers;
+	private volatile long window;
+	/** Whether the retry job is scheduled. Guarded by this. */
+	private boolean retryScheduled;
+	/** Whether close() was called, after which held frames are not retried. Guarded by this. */
+	private boolean closed;
+	/** Frames waiting to be sent. Key is public key hash of the peer. Guarded by this. */
+	private final HashMap<ByteArray, Outbox> outboxes;
+	/** Key is public key hash of the peer. Peers that have not sent anything yet are absent. */
+	private final ConcurrentHashMap<ByteArray, Set<String>> peerCapabilities;
+
+	/**
+	 * A peer frames are sent to. Peers with the same key are the same peer.
+	 */
+	interface Peer {
+		/** Public key hash of the peer. */
+		ByteArray getKey();
+
+		String getName();
+
+		boolean isConnected();
+
+		/**
+		 * Sends a legacy message through the node. It is not queued by the node if the peer is not connected.
+		 */
+		void send(SimpleFieldSet fs);
+
+		/**
+		 * @return False if the peer is not connected, so nothing was sent.
+		 */
+		boolean sendBinary(byte[] data);
+	}
+
+	/**
+	 * Runs jobs later and tells the time.
+	 */
+	interface Clock {
+		/** Time in milliseconds since the epoch. */
+		long now();
+
+		/**
+		 * @param job Job to run. It must not block.
+		 * @param delay Time in milliseconds to wait.
+		 */
+		void queueTimedJob(Runnable job, long delay);
+	}
+
+	/**
+	 * @param ticker Runs flushes once the window has passed.
+	 * @param counter Counts bytes of binary messages sent. Ex: node.nodeStats.nodeToNodeCounter
+	 * @param workers Number of threads sending to peers.
+	 */
+	public ChatSender(final Ticker ticker, ByteCounter counter, int workers) {
+		this(new Clock() {
+			public long now() {
+				return System.currentTimeMillis();
+			}
+
+			public void queueTimedJob(Runnable job, long delay) {
+				ticker.queueTimedJob(job, delay);
+			}
+		}, counter, Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			private int created = 0;
+
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "N2NChat sender " + ++created);
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+	}
+
+	/**
+	 * @param clock Runs flushes once the window has passed.
+	 * @param counter Counts bytes of binary messages sent to DarknetPeerNodes. Can be null if there are none.
+	 * @param workers Sends to peers. Shut down by close().
+	 */
+	ChatSender(Clock clock, ByteCounter counter, ExecutorService workers) {
+		this.clock = clock;
+		this.counter = counter;
+		this.workers = workers;
+		this.window = DEFAULT_WINDOW;
+		this.outboxes = new HashMap<ByteArray, Outbox>();
+		this.peerCapabilities = new ConcurrentHashMap<ByteArray, Set<String>>();
+	}
+
+	/**
+	 * @param window Time in milliseconds frames are held so that they can be sent together. Zero sends each frame
+	 * immediately.
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * Queues a frame to be sent to a peer. Frames to the same peer are sent in the order they were queued.
+	 * @param darkPeer Peer to send to.
+	 * @param frame Frame to send.
+	 * @return False if the peer's queue is full, in which case the frame was not queued.
+	 */
+	public boolean send(DarknetPeerNode darkPeer, ChatFrame frame) {
+		return send(new NodePeer(darkPeer), frame);
+	}
+
+	boolean send(Peer peer, ChatFrame frame) {
+		ByteArray key = peer.getKey();
+		Outbox outbox;
+		synchronized (this) {
+			outbox = outboxes.get(key);
+			if (outbox == null) {
+				outbox = new Outbox(key, peer);
+				outboxes.put(key, outbox);
+			}
+			if (outbox.frames.size() >= MAX_QUEUED_FRAMES) {
+				Logger.warning(this, "Queue to " + peer.getName() + " is full; refusing frame of type " +
+				        frame.type);
+				return false;
+			}
+			outbox.frames.add(frame);
+			if (outbox.scheduled) {
+				return true;
+			}
+			outbox.scheduled = true;
+		}
+		schedule(outbox, window);
+		return true;
+	}
+
+	/**
+	 * Queues a frame in the ephemeral lane: it replaces any ephemeral frame to the peer not yet sent from the same
+	 * participant in the same room, and is sent after the peer's other frames. Ephemeral frames only schedule a
+	 * flush of their own every EPHEMERAL_INTERVAL; otherwise they wait for the next one. They are not held while the
+	 * peer is disconnected and are never sent again, so only use this for state that a later frame replaces.
+	 * @param darkPeer Peer to send to.
+	 * @param frame Frame to send.
+	 * @return False if the frame was dropped because the peer is disconnected or busy.
+	 */
+	public boolean sendEphemeral(DarknetPeerNode darkPeer, ChatFrame frame) {
+		return sendEphemeral(new NodePeer(darkPeer), frame);
+	}
+
+	boolean sendEphemeral(Peer peer, ChatFrame frame) {
+		if (!peer.isConnected()) {
+			return false;
+		}
+		ByteArray key = peer.getKey();
+		Outbox outbox;
+		long delay;
+		synchronized (this) {
+			outbox = outboxes.get(key);
+			if (outbox == null) {
+				outbox = new Outbox(key, peer);
+				outboxes.put(key, outbox);
+			} else if (outbox.frames.size() >= EPHEMERAL_LOAD_LIMIT || !outbox.held.isEmpty()) {
+				Logger.minor(this, "Dropping ephemeral frame of type " + frame.type + " to busy peer " +
+				        peer.getName());
+				return false;
+			}
+			outbox.ephemeral.put(new EphemeralKey(frame.globalIdentifier, frame.pubKeyHash), frame);
+			if (outbox.scheduled || outbox.ephemeralScheduled) {
+				return true;
+			}
+			outbox.ephemeralScheduled = true;
+			delay = Math.max(window, outbox.lastEphemeral + EPHEMERAL_INTERVAL - clock.now());
+		}
+		scheduleEphemeral(outbox, delay);
+		return true;
+	}
+
+	/**
+	 * @param darkPeer Peer to check.
+	 * @return True if the peer's queue is full, so that a frame sent to it now would be refused.
+	 */
+	public synchronized boolean isFull(DarknetPeerNode darkPeer) {
+		Outbox outbox = outboxes.get(new ByteArray(darkPeer.peerECDSAPubKeyHash));
+		return outbox != null && outbox.frames.size() >= MAX_QUEUED_FRAMES;
+	}
+
+	/**
+	 * Sends everything queued right away and stops the workers once it is sent. Frames held for peers that are
+	 * still disconnected are dropped. Used when the plugin is unloading.
+	 */
+	public void close() {
+		List<Outbox> pending;
+		synchronized (this) {
+			closed = true;
+			pending = new ArrayList<Outbox>(outboxes.values());
+		}
+		for (Outbox outbox : pending) {
+			dispatch(outbox);
+		}
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				Logger.warning(this, "Timed out sending queued chat frames while closing.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs a job after a delay on the node's ticker.
+	 * @param job Job to run. It must not block.
+	 * @param delay Time in milliseconds to wait.
+	 */
+	public void queueTimedJob(Runnable job, long delay) {
+		clock.queueTimedJob(job, delay);
+	}
+
+	/**
+	 * Records what a peer can do, from a message it sent.
+	 * @param darkPeer Peer the message came from.
+	 * @param advertised Value of the message's capabilities field, or null if it had none.
+	 */
+	public void receivedCapabilities(DarknetPeerNode darkPeer, String advertised) {
+		receivedCapabilities(new ByteArray(darkPeer.peerECDSAPubKeyHash), advertised);
+	}
+
+	void receivedCapabilities(ByteArray key, String advertised) {
+		Set<String> capabilities;
+		if (advertised == null || advertised.isEmpty()) {
+			capabilities = Collections.emptySet();
+		} else {
+			capabilities = new HashSet<String>();
+			Collections.addAll(capabilities, advertised.split(","));
+		}
+		peerCapabilities.put(key, capabilities);
+	}
+
+	/**
+	 * @param darkPeer Peer to check.
+	 * @param capability Capability to check for.
+	 * @return True if the last message from the peer said it has the capability.
+	 */
+	public boolean supports(DarknetPeerNode darkPeer, String capability) {
+		return supports(new ByteArray(darkPeer.peerECDSAPubKeyHash), capability);
+	}
+
+	private boolean supports(ByteArray key, String capability) {
+		Set<String> capabilities = peerCapabilities.get(key);
+		return capabilities != null && capabilities.contains(capability);
+	}
+
+	/**
+	 * Has a worker flush the outbox after a delay, so that frames queued meanwhile are sent with it.
+	 */
+	private void schedule(final Outbox outbox, long delay) {
+		if (delay <= 0) {
+			dispatch(outbox);
+			return;
+		}
+		clock.queueTimedJob(new Runnable() {
+			public void run() {
+				dispatch(outbox);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Has the outbox flushed after a delay for its ephemeral frames, unless a flush is scheduled for other frames by
+	 * then, which takes them instead.
+	 */
+	private void scheduleEphemeral(final Outbox outbox, long delay) {
+		clock.queueTimedJob(new Runnable() {
+			public void run() {
+				synchronized (ChatSender.this) {
+					outbox.ephemeralScheduled = false;
+					if (outbox.scheduled || outbox.ephemeral.isEmpty()) {
+						return;
+					}
+					outbox.scheduled = true;
+				}
+				dispatch(outbox);
+			}
+		}, delay);
+	}
+
+	private void dispatch(final Outbox outbox) {
+		Runnable flush = new Runnable() {
+			public void run() {
+				flush(outbox);
+			}
+		};
+		try {
+			workers.execute(flush);
+		} catch (RejectedExecutionException e) {
+			//Closed. Send from this thread rather than losing the frames.
+			flush.run();
+		}
+	}
+
+	/**
+	 * Sends everything in the outbox: first any frames held while the peer was disconnected, then new ones, then
+	 * ephemeral ones. If the peer is not connected, the frames are held instead and ephemeral ones dropped. If more
+	 * is queued while sending, another flush is dispatched for it right away; otherwise the outbox is removed unless
+	 * it still holds frames or sent ephemeral ones within EPHEMERAL_INTERVAL, which the next ones must wait out.
+	 */
+	private void flush(Outbox outbox) {
+		boolean connected = outbox.peer.isConnected();
+		List<ChatFrame> frames;
+		int ephemeral;
+		synchronized (this) {
+			if (outbox.sending) {
+				//The flush already in progress will pick up anything new.
+				return;
+			}
+			if (!connected) {
+				hold(outbox, outbox.frames);
+				outbox.frames.clear();
+				outbox.ephemeral.clear();
+				outbox.scheduled = false;
+				return;
+			}
+			outbox.sending = true;
+			frames = releaseHeld(outbox);
+			frames.addAll(outbox.frames);
+			outbox.frames.clear();
+			ephemeral = outbox.ephemeral.size();
+			if (ephemeral != 0) {
+				frames.addAll(outbox.ephemeral.values());
+				outbox.ephemeral.clear();
+				outbox.lastEphemeral = clock.now();
+			}
+		}
+		List<ChatFrame> unsent = Collections.emptyList();
+		try {
+			if (!frames.isEmpty()) {
+				unsent = sendFrames(outbox.peer, frames);
+			}
+		} catch (RuntimeException e) {
+			Logger.error(this, "Failed to send " + frames.size() + " frames to " + outbox.peer.getName(), e);
+		} finally {
+			long ephemeralDelay;
+			synchronized (this) {
+				outbox.sending = false;
+				//Ephemeral frames are last, so any that were not sent are at the end; they are not held.
+				hold(outbox, unsent.subList(0, Math.max(0, unsent.size() - ephemeral)));
+				if (!outbox.frames.isEmpty()) {
+					ephemeralDelay = -1;
+				} else {
+					outbox.scheduled = false;
+					if (!outbox.ephemeral.isEmpty()) {
+						if (outbox.ephemeralScheduled) {
+							return;
+						}
+						outbox.ephemeralScheduled = true;
+						ephemeralDelay = EPHEMERAL_INTERVAL;
+					} else {
+						if (outbox.held.isEmpty() && clock.now() - outbox.lastEphemeral >= EPHEMERAL_INTERVAL) {
+							outboxes.remove(outbox.key);
+						}
+						return;
+					}
+				}
+			}
+			if (ephemeralDelay < 0) {
+				dispatch(outbox);
+			} else {
+				scheduleEphemeral(outbox, ephemeralDelay);
+			}
+		}
+	}
+
+	/**
+	 * Keeps frames for a peer that is not connected, to be sent when it reconnects, dropping the oldest once there
+	 * are too many. Must be called with this locked.
+	 */
+	private void hold(Outbox outbox, List<ChatFrame> frames) {
+		if (frames.isEmpty()) {
+			return;
+		}
+		long now = clock.now();
+		for (ChatFrame frame : frames) {
+			outbox.held.addLast(new HeldFrame(frame, now));
+		}
+		int dropped = 0;
+		while (outbox.held.size() > MAX_HELD_FRAMES) {
+			outbox.held.removeFirst();
+			dropped++;
+		}
+		if (dropped != 0) {
+			Logger.normal(this, "Dropped " + dropped + " of the oldest frames held for " +
+			        outbox.peer.getName() + " while it is disconnected");
+		}
+		Logger.minor(this, "Holding " + outbox.held.size() + " frames for " + outbox.peer.getName() +
+		        " until it reconnects");
+		if (!retryScheduled && !closed) {
+			retryScheduled = true;
+			clock.queueTimedJob(retry, RETRY_INTERVAL);
+		}
+	}
+
+	/**
+	 * Takes the held frames that have not expired, oldest first. Must be called with this locked.
+	 */
+	private List<ChatFrame> releaseHeld(Outbox outbox) {
+		List<ChatFrame> frames = new ArrayList<ChatFrame>(outbox.held.size() + outbox.frames.size());
+		long oldest = clock.now() - MAX_HELD_AGE;
+		int expired = 0;
+		for (HeldFrame held : outbox.held) {
+			if (held.timeHeld < oldest) {
+				expired++;
+			} else {
+				frames.add(held.frame);
+			}
+		}
+		outbox.held.clear();
+		if (expired != 0) {
+			Logger.normal(this, "Dropped " + expired + " frames held too long for " + outbox.peer.getName());
+		}
+		if (!frames.isEmpty()) {
+			Logger.normal(this, "Sending " + frames.size() + " frames held for " + outbox.peer.getName());
+		}
+		return frames;
+	}
+
+	/**
+	 * Checks peers with held frames. Those that have reconnected are flushed; expired frames of the rest are
+	 * dropped. Runs every RETRY_INTERVAL while any frames are held.
+	 */
+	private final Runnable retry = new Runnable() {
+		public void run() {
+			List<Outbox> reconnected = new ArrayList<Outbox>();
+			synchronized (ChatSender.this) {
+				retryScheduled = false;
+				boolean stillHeld = false;
+				long oldest = clock.now() - MAX_HELD_AGE;
+				for (Iterator<Outbox> it = outboxes.values().iterator(); it.hasNext(); ) {
+					Outbox outbox = it.next();
+					if (outbox.held.isEmpty() || outbox.scheduled) {
+						continue;
+					}
+					if (outbox.peer.isConnected()) {
+						outbox.scheduled = true;
+						reconnected.add(outbox);
+						continue;
+					}
+					while (!outbox.held.isEmpty() && outbox.held.peekFirst().timeHeld < oldest) {
+						outbox.held.removeFirst();
+					}
+					if (outbox.held.isEmpty()) {
+						Logger.normal(ChatSender.this, "Dropped frames held too long for " +
+						        outbox.peer.getName());
+						it.remove();
+					} else {
+						stillHeld = true;
+					}
+				}
+				if (stillHeld && !closed) {
+					retryScheduled = true;
+					clock.queueTimedJob(this, RETRY_INTERVAL);
+				}
+			}
+			for (Outbox outbox : reconnected) {
+				dispatch(outbox);
+			}
+		}
+	};
+
+	/**
+	 * Sends frames in whichever format the peer understands.
+	 * @return Frames that were not sent because the peer disconnected, in order.
+	 */
+	private List<ChatFrame> sendFrames(Peer peer, List<ChatFrame> frames) {
+		boolean binary = supports(peer.getKey(), CAPABILITY_BINARY);
+		if (!binary && (frames.size() == 1 || !supports(peer.getKey(), CAPABILITY_BUNDLE))) {
+			for (ChatFrame frame : frames) {
+				transmit(peer, ChatFrameCodec.toFieldSet(frame));
+			}
+			return Collections.emptyList();
+		}
+		for (int start = 0; start < frames.size(); start += MAX_BUNDLE_FRAMES) {
+			List<ChatFrame> batch = frames.subList(start, Math.min(frames.size(), start + MAX_BUNDLE_FRAMES));
+			if (binary) {
+				if (!transmitBinary(peer, batch)) {
+					return new ArrayList<ChatFrame>(frames.subList(start, frames.size()));
+				}
+			} else if (batch.size() == 1) {
+				transmit(peer, ChatFrameCodec.toFieldSet(batch.get(0)));
+			} else {
+				SimpleFieldSet bundle = new SimpleFieldSet(true);
+				bundle.put("type", N2NChatPlugin.BUNDLE);
+				bundle.put("count", batch.size());
+				for (int i = 0; i < batch.size(); i++) {
+					bundle.put(String.valueOf(i), ChatFrameCodec.toFieldSet(batch.get(i)));
+				}
+				Logger.minor(this, "Sending " + batch.size() + " frames in one bundle to " + peer.getName());
+				transmit(peer, bundle);
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Sends a legacy message. It is not queued by the node if the peer is not connected, as frames are held here
+	 * instead.
+	 */
+	private static void transmit(Peer peer, SimpleFieldSet fs) {
+		fs.putOverwrite("capabilities", CAPABILITIES);
+		peer.send(fs);
+	}
+
+	/**
+	 * Sends frames as one binary message.
+	 * @return False if the peer is not connected, so nothing was sent.
+	 */
+	private boolean transmitBinary(Peer peer, List<ChatFrame> frames) {
+		byte[] data = ChatFrameCodec.encode(frames, CAPABILITIES);
+		if (!peer.sendBinary(data)) {
+			return false;
+		}
+		Logger.minor(this, "Sent " + frames.size() + " frames in " + data.length + " bytes to " + peer.getName());
+		return true;
+	}
+
+	/**
+	 * Sends to a darknet peer through the node.
+	 */
+	private class NodePeer implements Peer {
+		private final DarknetPeerNode darkPeer;
+
+		public NodePeer(DarknetPeerNode darkPeer) {
+			this.darkPeer = darkPeer;
+		}
+
+		public ByteArray getKey() {
+			return new ByteArray(darkPeer.peerECDSAPubKeyHash);
+		}
+
+		public String getName() {
+			return darkPeer.getName();
+		}
+
+		public boolean isConnected() {
+			return darkPeer.isConnected();
+		}
+
+		public void send(SimpleFieldSet fs) {
+			darkPeer.sendNodeToNodeMessage(fs, N2NChatPlugin.N2N_MESSAGE_TYPE_CHAT, true, System.currentTimeMillis(),
+			        true);
+		}
+
+		public boolean sendBinary(byte[] data) {
+			try {
+				darkPeer.sendAsync(DMT.createNodeToNodeMessage(N2NChatPlugin.N2N_MESSAGE_TYPE_CHAT, data), null,
+				        counter);
+				return true;
+			} catch (NotConnectedException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Frames waiting to be sent to one peer. Fields other than the final ones are guarded by the ChatSender.
+	 */
+	private static class Outbox {
+		public final ByteArray key;
+		public final Peer peer;
+		public final List<ChatFrame> frames;
+		/** Frames kept while the peer is disconnected, oldest first. Sent before frames when it reconnects. */
+		public final ArrayDeque<HeldFrame> held;
+		/** Whether a flush is scheduled or running. If not, the next frame queued schedules one. */
+		public boolean scheduled;
+		/** Whether a worker is sending from this outbox. */
+		public boolean sending;
+		/** Ephemeral frames waiting to be sent, only the latest from each participant in each room. */
+		public final HashMap<EphemeralKey, ChatFrame> ephemeral;
+		/** Whether a flush for the ephemeral frames alone is scheduled. */
+		public boolean ephemeralScheduled;
+		/** Time ephemeral frames were last sent, in milliseconds since the epoch. */
+		public long lastEphemeral;
+
+		public Outbox(ByteArray key, Peer peer) {
+			this.key = key;
+			this.peer = peer;
+			this.frames = new ArrayList<ChatFrame>();
+			this.held = new ArrayDeque<HeldFrame>();
+			this.ephemeral = new HashMap<EphemeralKey, ChatFrame>();
+		}
+	}
+
+	/**
+	 * Which ephemeral frames replace each other: those about the same participant in the same room.
+	 */
+	private static class EphemeralKey {
+		public final long globalIdentifier;
+		/** Null for the sender itself. */
+		public final ByteArray pubKeyHash;
+
+		public EphemeralKey(long globalIdentifier, ByteArray pubKeyHash) {
+			this.globalIdentifier = globalIdentifier;
+			this.pubKeyHash = pubKeyHash;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(globalIdentifier ^ (globalIdentifier >>> 32)) * 31 +
+			        (pubKeyHash == null ? 0 : pubKeyHash.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof EphemeralKey)) {
+				return false;
+			}
+			EphemeralKey other = (EphemeralKey)o;
+			return globalIdentifier == other.globalIdentifier && (pubKeyHash == null ? other.pubKeyHash == null :
+			        pubKeyHash.equals(other.pubKeyHash));
+		}
+	}
+
+	private static class HeldFrame {
+		public final ChatFrame frame;
+		/** Time the frame could not be sent, in milliseconds since the epoch. */
+		public final long timeHeld;
+
+		public HeldFrame(ChatFrame frame, long timeHeld) {
+			this.frame = frame;
+			this.timeHeld = timeHeld;
+		}
+	}
+}
@@ -0,0 +1,636 @@
+package plugins.N2NChat.core;
+
+import freenet.support.Logger;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Append-only on-disk history of one chat room. Lines are stored in segment files of up to SEGMENT_SIZE bytes, named
+ * after the sequence number of their first line. Each segment keeps a sparse in-memory index of every
+ * INDEX_INTERVAL-th line's offset so a line can be found without reading the whole segment. Full segments are read
+ * through read-only memory maps.
+ * <p>
+ * Appends are queued and written by a shared writer in batches, each followed by a single sync, so callers never
+ * wait for the disk. Reads also see lines that are queued or being written.
+ * <p>
+ * Record format: int length of the rest of the record, long seq, long timeReceived, long timeComposed, then author,
+ * name, nameStyle, and text, each as an int length followed by that many bytes (UTF-8 for strings), or -1 for null,
+ * then a byte of flags.
+ */
+public class HistoryStore implements Closeable {
+
+	/** Size in bytes after which a new segment is started. */
+	public static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/** One line in this many is in the sparse index. */
+	private static final int INDEX_INTERVAL = 64;
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/** File in the directory holding the room's name, so history can be listed without being in the room. */
+	private static final String NAME_FILE = "name";
+
+	/** Bit in the flags byte at the end of a record set if the line is a message. */
+	private static final int FLAG_MESSAGE = 1;
+
+	private final File directory;
+	private final Executor writer;
+	private final int segmentSize;
+	/** Ordered by first sequence number. Guarded by this. */
+	private final ArrayList<Segment> segments;
+	/** Lines waiting to be written. Guarded by this. */
+	private ArrayList<LogLine> pending;
+	/** Lines taken from pending by the write in progress, if any. Guarded by this. */
+	private List<LogLine> writing;
+	/** Whether a write of pending is queued on the writer. Guarded by this. */
+	private boolean writeQueued;
+	/** Sequence number of the last line appended, written or not. Guarded by this. */
+	private long lastSeq;
+	private boolean closed;
+	/** Held while writing. */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Opens or creates the history in a directory. Existing segments are scanned to rebuild the index, and a
+	 * partially written record at the end of the last segment, such as from a crash, is discarded.
+	 * @param directory Directory for this room's segment files. Created if it does not exist.
+	 * @param writer Runs batched writes. Shared by all stores; should run one task at a time.
+	 * @throws IOException If the directory could not be created or the segments could not be read.
+	 */
+	public HistoryStore(File directory, Executor writer) throws IOException {
+		this(directory, writer, SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize Size in bytes after which a new segment is started. Smaller than usual for tests.
+	 */
+	HistoryStore(File directory, Executor writer, int segmentSize) throws IOException {
+		this.directory = directory;
+		this.writer = writer;
+		this.segmentSize = segmentSize;
+		this.segments = new ArrayList<Segment>();
+		this.pending = new ArrayList<LogLine>();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create history directory " + directory);
+		}
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.add(new Segment(file,
+						        Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+					} catch (NumberFormatException e) {
+						Logger.warning(this, "Ignoring unexpected file in history directory: " + file);
+					}
+				}
+			}
+		}
+		Collections.sort(segments, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return a.firstSeq < b.firstSeq ? -1 : (a.firstSeq == b.firstSeq ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			segment.scan(i == segments.size() - 1);
+			if (segment.getLastSeq() != 0) {
+				lastSeq = segment.getLastSeq();
+			}
+		}
+	}
+
+	/**
+	 * @return Sequence number of the last line appended, or zero if there are none.
+	 */
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Queues a line to be written. Returns immediately.
+	 * @param line Line to append. Its sequence number must be higher than that of the last line appended.
+	 */
+	public synchronized void append(LogLine line) {
+		if (closed) {
+			return;
+		}
+		if (line.seq <= lastSeq) {
+			Logger.error(this, "Refusing to append line " + line.seq + " after " + lastSeq + " in " + directory);
+			return;
+		}
+		lastSeq = line.seq;
+		pending.add(line);
+		if (!writeQueued) {
+			writeQueued = true;
+			writer.execute(new Runnable() {
+				public void run() {
+					writePending();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads lines in order, including those not yet written.
+	 * @param fromSeq Sequence number to start at.
+	 * @param count Maximum number of lines to read.
+	 * @return Up to count lines with sequence numbers of at least fromSeq, oldest first.
+	 */
+	public List<LogLine> read(long fromSeq, int count) {
+		List<LogLine> lines = new ArrayList<LogLine>();
+		Segment[] snapshot;
+		List<LogLine> unwritten = new ArrayList<LogLine>();
+		//Lines not yet written are taken before the segments are read, so that a line written in between is read
+		//from its segment rather than missed.
+		synchronized (this) {
+			snapshot = segments.toArray(new Segment[segments.size()]);
+			if (writing != null) {
+				unwritten.addAll(writing);
+			}
+			unwritten.addAll(pending);
+		}
+		try {
+			for (int i = 0; i < snapshot.length && lines.size() < count; i++) {
+				Segment segment = snapshot[i];
+				boolean lastSegment = i == snapshot.length - 1;
+				if (!lastSegment && snapshot[i + 1].firstSeq <= fromSeq) {
+					continue;
+				}
+				segment.read(fromSeq, count - lines.size(), lines);
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Failed to read history from " + directory, e);
+		}
+		long next = lines.isEmpty() ? fromSeq : Math.max(fromSeq, lines.get(lines.size() - 1).seq + 1);
+		for (int i = 0; i < unwritten.size() && lines.size() < count; i++) {
+			if (unwritten.get(i).seq >= next) {
+				lines.add(unwritten.get(i));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @param seq Sequence number of the line.
+	 * @return The line, or null if there is none.
+	 */
+	public LogLine get(long seq) {
+		List<LogLine> lines = read(seq, 1);
+		if (lines.isEmpty() || lines.get(0).seq != seq) {
+			return null;
+		}
+		return lines.get(0);
+	}
+
+	/**
+	 * @return Name the room had when it was last joined, or null if unknown.
+	 */
+	public String getRoomName() {
+		File file = new File(directory, NAME_FILE);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			return string(FileUtils.readFileToByteArray(file));
+		} catch (IOException e) {
+			Logger.error(this, "Failed to read room name from " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param roomName Name of the room, for listing history without being in the room.
+	 */
+	public void setRoomName(String roomName) {
+		File file = new File(directory, NAME_FILE);
+		try {
+			FileUtils.writeByteArrayToFile(file, utf8(roomName));
+		} catch (IOException e) {
+			Logger.error(this, "Failed to write room name to " + file, e);
+		}
+	}
+
+	/**
+	 * Reads the lines just before a given line.
+	 * @param beforeSeq Sequence number to stop before.
+	 * @param count Maximum number of lines to read.
+	 * @return Up to count lines with sequence numbers less than beforeSeq, oldest first.
+	 */
+	public List<LogLine> readBefore(long beforeSeq, int count) {
+		long fromSeq = Math.max(1, beforeSeq - count);
+		List<LogLine> lines = read(fromSeq, count);
+		int end = lines.size();
+		while (end > 0 && lines.get(end - 1).seq >= beforeSeq) {
+			end--;
+		}
+		return new ArrayList<LogLine>(lines.subList(0, end));
+	}
+
+	/**
+	 * Waits for pending lines to be written and closes the segment files. Lines appended afterwards are ignored.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		writePending();
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending lines as a batch followed by one sync. Runs on the writer, and when closing.
+	 */
+	private void writePending() {
+		//The store is not locked while writing so that append() never waits on the disk. Writes are serialized
+		//by writeLock instead, so the active segment cannot change under this.
+		synchronized (writeLock) {
+			List<LogLine> batch;
+			Segment active;
+			synchronized (this) {
+				batch = pending;
+				pending = new ArrayList<LogLine>();
+				writing = batch;
+				writeQueued = false;
+				active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			}
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				List<LogLine> bufferedLines = new ArrayList<LogLine>();
+				for (LogLine line : batch) {
+					byte[] record = encode(line);
+					int activeSize = active == null ? 0 : active.getSize();
+					if (active == null || (activeSize + buffer.size() > 0 &&
+					        activeSize + buffer.size() + record.length > segmentSize)) {
+						if (active != null) {
+							active.write(buffer.toByteArray(), bufferedLines);
+							active.seal();
+						}
+						buffer.reset();
+						bufferedLines.clear();
+						active = new Segment(new File(directory, segmentName(line.seq)), line.seq);
+						active.scan(true);
+						synchronized (this) {
+							segments.add(active);
+						}
+					}
+					buffer.write(record);
+					bufferedLines.add(line);
+				}
+				active.write(buffer.toByteArray(), bufferedLines);
+			} catch (IOException e) {
+				Logger.error(this, "Failed to write " + batch.size() + " lines of history to " + directory, e);
+			} finally {
+				synchronized (this) {
+					writing = null;
+				}
+			}
+		}
+	}
+
+	private static String segmentName(long firstSeq) {
+		return String.format("%020d", firstSeq) + SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * @param line Line to write.
+	 * @return The line as a record, in the same format as on disk, so that lines can be sent to other nodes.
+	 */
+	static byte[] record(LogLine line) {
+		try {
+			return encode(line);
+		} catch (IOException e) {
+			throw new Error("Impossible: writing to memory failed", e);
+		}
+	}
+
+	/**
+	 * @param records Records one after another, as from record().
+	 * @return The lines, oldest first, with the sequence numbers they were written with.
+	 * @throws IOException If a record is damaged.
+	 */
+	static List<LogLine> readRecords(byte[] records) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(records);
+		List<LogLine> lines = new ArrayList<LogLine>();
+		try {
+			while (buffer.hasRemaining()) {
+				int length = buffer.getInt();
+				if (length < 0 || length > buffer.remaining()) {
+					throw new IOException("Record length " + length + " is invalid");
+				}
+				ByteBuffer record = buffer.slice();
+				record.limit(length);
+				lines.add(decode(record));
+				buffer.position(buffer.position() + length);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Record is truncated");
+		}
+		return lines;
+	}
+
+	private static byte[] encode(LogLine line) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeLong(line.seq);
+		out.writeLong(line.timeReceived);
+		out.writeLong(line.timeComposed);
+		writeBytes(out, line.author == null ? null : line.author.getBytes());
+		writeBytes(out, utf8(line.name));
+		writeBytes(out, utf8(line.nameStyle));
+		writeBytes(out, utf8(line.text));
+		out.writeByte(line.message ? FLAG_MESSAGE : 0);
+		out.flush();
+		byte[] record = bytes.toByteArray();
+		ByteBuffer.wrap(record).putInt(0, record.length - 4);
+		return record;
+	}
+
+	private static LogLine decode(ByteBuffer buffer) {
+		long seq = buffer.getLong();
+		long timeReceived = buffer.getLong();
+		long timeComposed = buffer.getLong();
+		byte[] author = readBytes(buffer);
+		String name = string(readBytes(buffer));
+		String nameStyle = string(readBytes(buffer));
+		String text = string(readBytes(buffer));
+		boolean message = (buffer.get() & FLAG_MESSAGE) != 0;
+		return new LogLine(timeReceived, timeComposed, author == null ? null : new ByteArray(author), name,
+		        nameStyle, text, message).withSeq(seq);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static byte[] utf8(String string) {
+		try {
+			return string == null ? null : string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("This JVM does not support UTF-8! Cannot encode history.");
+		}
+	}
+
+	private static String string(byte[] bytes) {
+		try {
+			return bytes == null ? null : new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("This JVM does not support UTF-8! Cannot decode history.");
+		}
+	}
+
+	/**
+	 * One segment file. The last segment is open for appending; earlier ones are sealed and read through a memory
+	 * map. Only the store's writer appends, without holding the segment's lock so that reads can proceed; the
+	 * size and index are only updated, and reads only look at records within the size, under the lock.
+	 */
+	private static class Segment {
+
+		public final File file;
+		public final long firstSeq;
+		/** Sequence number of the last line written, or zero if none. */
+		private long lastSeq;
+		/** Bytes of complete records written. */
+		private int size;
+
+		/** Sequence numbers of every INDEX_INTERVAL-th line, and their offsets. */
+		private long[] indexSeqs = new long[16];
+		private int[] indexOffsets = new int[16];
+		private int indexCount;
+		private int lineCount;
+
+		/** Open for appending while this is the last segment; null once sealed. */
+		private FileChannel channel;
+		/** Map of a sealed segment, created on first read. */
+		private MappedByteBuffer map;
+
+		public Segment(File file, long firstSeq) {
+			this.file = file;
+			this.firstSeq = firstSeq;
+		}
+
+		/**
+		 * Reads record headers to build the index, and truncates a partial last record.
+		 * @param open Whether to keep the segment open for appending.
+		 */
+		public synchronized void scan(boolean open) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			FileChannel fileChannel = raf.getChannel();
+			long fileSize = fileChannel.size();
+			if (fileSize > 0) {
+				MappedByteBuffer scanMap = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+				int position = 0;
+				while (position + 4 <= fileSize) {
+					int length = scanMap.getInt(position);
+					if (length < 8 || position + 4 + length > fileSize) {
+						break;
+					}
+					indexLine(scanMap.getLong(position + 4), position);
+					position += 4 + length;
+				}
+				size = position;
+				if (position != fileSize) {
+					Logger.warning(this, "Discarding " + (fileSize - position) + " bytes of partial record at the end of " +
+					        file);
+					fileChannel.truncate(position);
+				}
+			}
+			if (open) {
+				fileChannel.position(size);
+				channel = fileChannel;
+			} else {
+				fileChannel.close();
+			}
+		}
+
+		/**
+		 * Appends complete records and syncs them to disk.
+		 * @param records Encoded records.
+		 * @param lines The lines encoded in records, in order.
+		 */
+		public void write(byte[] records, List<LogLine> lines) throws IOException {
+			FileChannel appending;
+			synchronized (this) {
+				appending = channel;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(records);
+			while (buffer.hasRemaining()) {
+				appending.write(buffer);
+			}
+			appending.force(false);
+			indexRecords(records, lines);
+		}
+
+		private synchronized void indexRecords(byte[] records, List<LogLine> lines) {
+			int offset = size;
+			ByteBuffer headers = ByteBuffer.wrap(records);
+			for (LogLine line : lines) {
+				indexLine(line.seq, offset);
+				offset += 4 + headers.getInt(offset - size);
+			}
+			size = offset;
+		}
+
+		/**
+		 * Stops appending to this segment. It will be memory mapped when read.
+		 */
+		public synchronized void seal() throws IOException {
+			channel.force(false);
+			channel.close();
+			channel = null;
+		}
+
+		public synchronized void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Logger.error(this, "Failed to close history segment " + file, e);
+				}
+				channel = null;
+			}
+			map = null;
+		}
+
+		/**
+		 * Reads lines starting at a sequence number.
+		 * @param fromSeq First sequence number wanted.
+		 * @param count Maximum number of lines to add.
+		 * @param lines Read lines are added to this.
+		 */
+		public synchronized void read(long fromSeq, int count, List<LogLine> lines) throws IOException {
+			if (lineCount == 0 || fromSeq > lastSeq) {
+				return;
+			}
+			//Start from the last indexed line at or before fromSeq.
+			int slot = 0;
+			int low = 0;
+			int high = indexCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (indexSeqs[middle] <= fromSeq) {
+					slot = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			int position = indexOffsets[slot];
+			int added = 0;
+			while (position < size && added < count) {
+				ByteBuffer header = bytesAt(position, 12);
+				int length = header.getInt(0);
+				long seq = header.getLong(4);
+				if (seq >= fromSeq) {
+					lines.add(decode(bytesAt(position + 4, length)));
+					added++;
+				}
+				position += 4 + length;
+			}
+		}
+
+		/**
+		 * Gets bytes of written records: a slice of the memory map if sealed, or read from the open file.
+		 * @param position Offset in the segment.
+		 * @param length Number of bytes.
+		 * @return Buffer positioned at zero containing exactly the requested bytes.
+		 */
+		private ByteBuffer bytesAt(int position, int length) throws IOException {
+			if (channel != null) {
+				ByteBuffer read = ByteBuffer.allocate(length);
+				while (read.hasRemaining()) {
+					if (channel.read(read, position + read.position()) < 0) {
+						throw new IOException("Unexpected end of " + file);
+					}
+				}
+				read.flip();
+				return read;
+			}
+			ByteBuffer record = map().duplicate();
+			record.position(position);
+			record.limit(position + length);
+			return record.slice();
+		}
+
+		private MappedByteBuffer map() throws IOException {
+			if (map == null) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+				} finally {
+					raf.close();
+				}
+			}
+			return map;
+		}
+
+		public synchronized int getSize() {
+			return size;
+		}
+
+		public synchronized long getLastSeq() {
+			return lastSeq;
+		}
+
+		private void indexLine(long seq, int offset) {
+			if (lineCount % INDEX_INTERVAL == 0) {
+				if (indexCount == indexSeqs.length) {
+					indexSeqs = Arrays.copyOf(indexSeqs, indexCount * 2);
+					indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+				}
+				indexSeqs[indexCount] = seq;
+				indexOffsets[indexCount] = offset;
+				indexCount++;
+			}
+			lineCount++;
+			lastSeq = seq;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package plugins.N2NChat.core;
+
+/**
+ * Counts of latencies falling into fixed buckets, so that how long messages take can be kept track of indefinitely
+ * in constant space. Percentiles are approximate: they are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+	/** Upper bound in milliseconds, inclusive, of each bucket. The last takes everything longer. */
+	public static final long[] BOUNDS = { 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000,
+	        Long.MAX_VALUE };
+
+	private final long[] counts = new long[BOUNDS.length];
+	private long count;
+	private long total;
+	private long max;
+
+	/**
+	 * @param latency Latency in milliseconds. Negative values, which clock differences between nodes can cause,
+	 * are counted as zero.
+	 */
+	public synchronized void record(long latency) {
+		latency = Math.max(0, latency);
+		int bucket = 0;
+		while (latency > BOUNDS[bucket]) {
+			bucket++;
+		}
+		counts[bucket]++;
+		count++;
+		total += latency;
+		max = Math.max(max, latency);
+	}
+
+	/**
+	 * @return Number of latencies recorded.
+	 */
+	public synchronized long count() {
+		return count;
+	}
+
+	/**
+	 * @return Mean latency in milliseconds, or zero if none were recorded.
+	 */
+	public synchronized long mean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * @return Longest latency recorded in milliseconds, or zero if none were.
+	 */
+	public synchronized long max() {
+		return max;
+	}
+
+	/**
+	 * @return Number of latencies in each bucket, in the order of BOUNDS.
+	 */
+	public synchronized long[] counts() {
+		return counts.clone();
+	}
+
+	/**
+	 * @param fraction Fraction of latencies, from 0 to 1, that are to be at most the result. Ex: 0.95
+	 * @return Upper bound of the bucket the percentile falls in, but no more than the longest latency recorded.
+	 * Zero if none were recorded.
+	 */
+	public synchronized long percentile(double fraction) {
+		long rank = (long)Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			seen += counts[bucket];
+			if (seen >= rank && seen != 0) {
+				return Math.min(BOUNDS[bucket], max);
+			}
+		}
+		return 0;
+	}
+}
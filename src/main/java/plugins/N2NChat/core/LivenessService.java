@@ -0,0 +1,208 @@
+package plugins.N2NChat.core;
+
+import freenet.node.DarknetPeerNode;
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Watches whether directly connected participants in any room are still there, for the whole plugin. Anything
+ * received from a peer shows it is alive; a peer not heard from for KEEPALIVE_INTERVAL is sent a PING, which costs a
+ * few bytes and is answered with a PONG, so that idle rooms are still watched. A peer not heard from for
+ * DEAD_TIMEOUT is reported lost, and reported returned once it is heard from again.
+ * <p>
+ * All timeouts are kept in one TimerWheel advanced by a single ticker job, so there is no thread or scan per room or
+ * per peer: hearing from a peer only records the time, and its timeout, when it expires, is moved to where it would
+ * have been. Only peers that listed ping in their capabilities are watched, as older versions would not answer.
+ * Participants reached through others are not watched; they are removed if the participant they are reached
+ * through is.
+ */
+public class LivenessService {
+
+	/** Time in milliseconds a watched peer may be silent before it is sent a PING. */
+	public static final long KEEPALIVE_INTERVAL = 30 * 1000;
+
+	/** Time in milliseconds a watched peer may be silent before it is reported lost. */
+	public static final long DEAD_TIMEOUT = 90 * 1000;
+
+	/**
+	 * Time in milliseconds a lost peer is still sent PINGs, so that its return is noticed, before being dropped. PINGs
+	 * are only sent while the peer is connected.
+	 */
+	public static final long FORGET_AFTER = 10 * 60 * 1000;
+
+	/**
+	 * Told about peers being lost and returning. Called without the service locked.
+	 */
+	public interface Listener {
+		/**
+		 * @param pubKeyHash Public key hash of a peer.
+		 * @return True if the peer is a directly connected participant in any room, and so should be watched.
+		 */
+		boolean isParticipant(ByteArray pubKeyHash);
+
+		/**
+		 * @param peer A watched peer that has not been heard from for DEAD_TIMEOUT.
+		 */
+		void peerLost(DarknetPeerNode peer);
+
+		/**
+		 * @param peer A peer reported lost that has been heard from again.
+		 */
+		void peerReturned(DarknetPeerNode peer);
+	}
+
+	private static class Watch {
+		final ByteArray key;
+		DarknetPeerNode peer;
+		long lastHeard;
+		/** Time the peer was reported lost, or zero if it was not. */
+		long lostSince;
+
+		Watch(ByteArray key, DarknetPeerNode peer, long lastHeard) {
+			this.key = key;
+			this.peer = peer;
+			this.lastHeard = lastHeard;
+		}
+	}
+
+	private final ChatSender sender;
+	private final Listener listener;
+	/** Guarded by this. */
+	private final TimerWheel<Watch> wheel;
+	/** Key is the public key hash of the peer. Guarded by this. */
+	private final HashMap<ByteArray, Watch> watches;
+	private volatile boolean stopped;
+
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			if (stopped) {
+				return;
+			}
+			advance(System.currentTimeMillis());
+			sender.queueTimedJob(this, TimerWheel.DEFAULT_TICK);
+		}
+	};
+
+	/**
+	 * @param sender Sends PINGs, and runs the wheel on its ticker.
+	 * @param listener Told about peers being lost and returning.
+	 */
+	public LivenessService(ChatSender sender, Listener listener) {
+		this.sender = sender;
+		this.listener = listener;
+		this.wheel = new TimerWheel<Watch>(TimerWheel.DEFAULT_TICK, TimerWheel.DEFAULT_SLOTS,
+		        System.currentTimeMillis());
+		this.watches = new HashMap<ByteArray, Watch>();
+	}
+
+	/**
+	 * Starts advancing the wheel every tick.
+	 */
+	public void start() {
+		sender.queueTimedJob(tick, TimerWheel.DEFAULT_TICK);
+	}
+
+	/**
+	 * Stops advancing the wheel. Peers are no longer sent PINGs or reported.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Records that a message was received from a peer. Starts watching it if it is not watched yet and can answer
+	 * PINGs, and reports it returned if it was lost.
+	 * @param peer Peer the message came from.
+	 */
+	public void heard(DarknetPeerNode peer) {
+		if (!sender.supports(peer, ChatSender.CAPABILITY_PING)) {
+			return;
+		}
+		ByteArray key = new ByteArray(peer.peerECDSAPubKeyHash);
+		long now = System.currentTimeMillis();
+		boolean returned;
+		synchronized (this) {
+			Watch watch = watches.get(key);
+			if (watch == null) {
+				watch = new Watch(key, peer, now);
+				watches.put(key, watch);
+				wheel.schedule(watch, now + KEEPALIVE_INTERVAL);
+				return;
+			}
+			watch.peer = peer;
+			watch.lastHeard = now;
+			returned = watch.lostSince != 0;
+			watch.lostSince = 0;
+		}
+		if (returned) {
+			Logger.normal(this, "Heard from " + peer.getName() + " again");
+			listener.peerReturned(peer);
+		}
+	}
+
+	/**
+	 * @return Number of peers watched, including lost ones still sent PINGs.
+	 */
+	public synchronized int size() {
+		return watches.size();
+	}
+
+	/**
+	 * Expires the timeouts due by now: peers silent for long enough are sent a PING or reported lost, lost peers
+	 * are forgotten after FORGET_AFTER, and peers heard from since their timeout was set are given a new one.
+	 * @param now Current time in milliseconds.
+	 */
+	private void advance(long now) {
+		List<DarknetPeerNode> pings = new ArrayList<DarknetPeerNode>();
+		List<DarknetPeerNode> lost = new ArrayList<DarknetPeerNode>();
+		List<Watch> idle = new ArrayList<Watch>();
+		synchronized (this) {
+			for (Watch watch : wheel.advance(now)) {
+				long silent = now - watch.lastHeard;
+				if (watch.lostSince != 0) {
+					if (now - watch.lostSince >= FORGET_AFTER) {
+						watches.remove(watch.key);
+						continue;
+					}
+					pings.add(watch.peer);
+					wheel.schedule(watch, now + KEEPALIVE_INTERVAL);
+				} else if (silent >= DEAD_TIMEOUT) {
+					watch.lostSince = now;
+					lost.add(watch.peer);
+					wheel.schedule(watch, now + KEEPALIVE_INTERVAL);
+				} else if (silent >= KEEPALIVE_INTERVAL) {
+					idle.add(watch);
+				} else {
+					//Heard from since; the timeout moves to where it would have been.
+					wheel.schedule(watch, watch.lastHeard + KEEPALIVE_INTERVAL);
+				}
+			}
+		}
+		//Asked outside the lock, as the listener looks through rooms.
+		for (Watch watch : idle) {
+			boolean participant = listener.isParticipant(watch.key);
+			synchronized (this) {
+				if (!participant) {
+					watches.remove(watch.key);
+					continue;
+				}
+				long silent = now - watch.lastHeard;
+				wheel.schedule(watch, now + Math.max(0, Math.min(KEEPALIVE_INTERVAL, DEAD_TIMEOUT - silent)));
+			}
+			pings.add(watch.peer);
+		}
+		for (DarknetPeerNode peer : pings) {
+			//The sender would hold it until the peer connects, and the next PING will do by then.
+			if (peer.isConnected()) {
+				sender.send(peer, ChatFrame.ping(N2NChatPlugin.PING, ChatFrame.newMessageId()));
+			}
+		}
+		for (DarknetPeerNode peer : lost) {
+			Logger.normal(this, "Not heard from " + peer.getName() + " for " + DEAD_TIMEOUT / 1000 + " seconds");
+			listener.peerLost(peer);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package plugins.N2NChat.core;
+
+/**
+ * A single line in a chat room's message log. Lines are immutable once created so that they can be handed to
+ * toadlet threads without copying.
+ */
+public class LogLine {
+
+	/**
+	 * Rough per-line overhead in bytes for the object headers and references, used when estimating how much
+	 * memory a line holds.
+	 */
+	private static final int OVERHEAD = 64;
+
+	/**
+	 * Position of this line in its room's log. Assigned by MessageLog when the line is added; lines added later
+	 * have higher numbers. Zero if the line has not been added to a log.
+	 */
+	public final long seq;
+	/** Time the line was added to the log, in milliseconds since the epoch. */
+	public final long timeReceived;
+	/** Time the message was composed, in milliseconds since the epoch, or zero if not applicable. */
+	public final long timeComposed;
+	/** Public key hash of the participant the line is about, or null for this node and system lines. */
+	public final ByteArray author;
+	/** Name to display, or null if this is a system line such as a day change. */
+	public final String name;
+	/** CSS styling for the name. Null if name is null. */
+	public final String nameStyle;
+	/** Text following the name, or the whole line if this is a system line. */
+	public final String text;
+	/** True if the line is something a participant said, rather than a join, leave, or system line. */
+	public final boolean message;
+
+	/**
+	 * @param timeReceived Time the line was added to the log.
+	 * @param timeComposed Time the message was composed, or zero if not applicable.
+	 * @param author Public key hash of the participant the line is about. Null for this node and system lines.
+	 * @param name Name to display. Null for system lines.
+	 * @param nameStyle CSS styling for the name. Null for system lines.
+	 * @param text Text following the name, or the whole line if this is a system line.
+	 */
+	public LogLine(long timeReceived, long timeComposed, ByteArray author, String name, String nameStyle,
+	        String text) {
+		this(timeReceived, timeComposed, author, name, nameStyle, text, false);
+	}
+
+	/**
+	 * @param message True if the line is something a participant said.
+	 */
+	public LogLine(long timeReceived, long timeComposed, ByteArray author, String name, String nameStyle,
+	        String text, boolean message) {
+		this(0, timeReceived, timeComposed, author, name, nameStyle, text, message);
+	}
+
+	private LogLine(long seq, long timeReceived, long timeComposed, ByteArray author, String name,
+	        String nameStyle, String text, boolean message) {
+		this.seq = seq;
+		this.timeReceived = timeReceived;
+		this.timeComposed = timeComposed;
+		this.author = author;
+		this.name = name;
+		this.nameStyle = nameStyle;
+		this.text = text;
+		this.message = message;
+	}
+
+	/**
+	 * Creates a system line, which has no name and is displayed as-is. Used for day changes.
+	 * @param timeReceived Time the line was added to the log.
+	 * @param text Text of the line.
+	 * @return A line without a name.
+	 */
+	public static LogLine systemLine(long timeReceived, String text) {
+		return new LogLine(timeReceived, 0, null, null, null, text);
+	}
+
+	/**
+	 * @param seq Sequence number to assign.
+	 * @return A copy of this line with the given sequence number.
+	 */
+	LogLine withSeq(long seq) {
+		return new LogLine(seq, timeReceived, timeComposed, author, name, nameStyle, text, message);
+	}
+
+	/**
+	 * @return True if this line has no name, such as a day change.
+	 */
+	public boolean isSystemLine() {
+		return name == null;
+	}
+
+	/**
+	 * Estimates the heap used by this line. Strings are counted at two bytes per character.
+	 * @return Approximate size of this line in bytes.
+	 */
+	public int estimatedSize() {
+		int authorLength = author == null ? 0 : author.getBytes().length;
+		return OVERHEAD + authorLength + 2 * (length(name) + length(nameStyle) + length(text));
+	}
+
+	private static int length(String string) {
+		return string == null ? 0 : string.length();
+	}
+}
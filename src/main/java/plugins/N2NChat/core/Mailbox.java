@@ -0,0 +1,118 @@
+package plugins.N2NChat.core;
+
+import freenet.support.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tasks for one room, run one at a time in the order they were posted. Any thread may post; the tasks are run on an
+ * executor, at most one drain at a time, so whatever they touch is only ever touched by one thread at once and needs
+ * no lock. Posting does not wait for the task to run.
+ * <p>
+ * A drain runs at most MAX_BATCH tasks and then goes to the back of the executor's queue, so that a busy room does
+ * not starve others sharing its worker. See RoomWorkers.
+ */
+public class Mailbox implements Runnable {
+
+	/** Most tasks run in one drain before giving other rooms on the same worker a turn. */
+	public static final int MAX_BATCH = 64;
+
+	private final Executor worker;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	/** Whether a drain is queued on the worker or running. If not, the next task posted queues one. */
+	private final AtomicBoolean scheduled;
+
+	/**
+	 * @param worker Runs the drains. Should run one thing at a time, so that mailboxes sharing it take turns.
+	 */
+	public Mailbox(Executor worker) {
+		this.worker = worker;
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.scheduled = new AtomicBoolean();
+	}
+
+	/**
+	 * Queues a task to be run after those already posted.
+	 * @param task Task to run. It must not wait for this mailbox.
+	 */
+	public void post(Runnable task) {
+		tasks.add(task);
+		if (scheduled.compareAndSet(false, true)) {
+			execute();
+		}
+	}
+
+	/**
+	 * Queues a task whose result is wanted.
+	 * @param task Task to run.
+	 * @return The task's result once it has run. Cancelled if the task is dropped because the workers stopped. Must
+	 * not be waited on from a task in this mailbox.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		post(future);
+		return future;
+	}
+
+	/**
+	 * @return Number of tasks posted and not yet started.
+	 */
+	public int size() {
+		return tasks.size();
+	}
+
+	/**
+	 * Runs the tasks posted so far, up to MAX_BATCH, then queues another drain if more are waiting. Called by the
+	 * worker. A task that throws an Error ends the drain, but the next drain is still queued before the Error is
+	 * passed on, so the mailbox is never left marked scheduled with nothing to run it.
+	 */
+	public void run() {
+		try {
+			for (int i = 0; i < MAX_BATCH; i++) {
+				Runnable task = tasks.poll();
+				if (task == null) {
+					break;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Logger.error(this, "Room task failed", e);
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			//Something posted after the last poll above found the drain still scheduled, so it is run by this one.
+			if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+				execute();
+			}
+		}
+	}
+
+	private void execute() {
+		try {
+			worker.execute(this);
+		} catch (RejectedExecutionException e) {
+			//The workers are stopped because the plugin is unloading. Whoever is waiting on a dropped task is told
+			//it was cancelled rather than left waiting.
+			int dropped = 0;
+			for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+				if (task instanceof Future) {
+					((Future<?>)task).cancel(false);
+				}
+				dropped++;
+			}
+			Logger.normal(this, "Dropped " + dropped + " room tasks posted after the workers stopped");
+			scheduled.set(false);
+			//Posted while dropping; dropped the same way.
+			if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+				execute();
+			}
+		}
+	}
+}
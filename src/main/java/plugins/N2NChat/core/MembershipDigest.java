@@ -0,0 +1,67 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact summary of who is in a room, so that two nodes can tell whether they agree on it without listing everyone.
+ * <p>
+ * Each participant's public key hash is reduced to a 63-bit fingerprint, and the participants are split into BUCKETS
+ * by the top bits of theirs. A bucket's value is the XOR of its fingerprints, so it does not depend on order and
+ * changes whenever anyone in it joins or leaves. Nodes that disagree need only compare the participants in buckets
+ * whose values differ.
+ */
+public class MembershipDigest {
+
+	/** Number of buckets participants are split into. */
+	public static final int BUCKETS = 16;
+
+	/**
+	 * @param pubKeyHash Public key hash of a participant.
+	 * @return Its fingerprint: FNV-1a over the bytes, without the sign bit so that it is never negative.
+	 */
+	public static long fingerprint(ByteArray pubKeyHash) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : pubKeyHash.getBytes()) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return hash & Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param pubKeyHash Public key hash of a participant.
+	 * @return The bucket it is in, from zero to BUCKETS - 1.
+	 */
+	public static int bucket(ByteArray pubKeyHash) {
+		return (int)(fingerprint(pubKeyHash) >>> 59);
+	}
+
+	/**
+	 * @param members Public key hashes of everyone in the room, including the node making the digest.
+	 * @return The value of each bucket.
+	 */
+	public static long[] of(Collection<ByteArray> members) {
+		long[] buckets = new long[BUCKETS];
+		for (ByteArray member : members) {
+			buckets[bucket(member)] ^= fingerprint(member);
+		}
+		return buckets;
+	}
+
+	/**
+	 * @param ours Digest of this node's view of the room.
+	 * @param theirs Digest received from another node. If it does not have BUCKETS buckets, every bucket differs.
+	 * @return Buckets whose values differ, in order.
+	 */
+	public static List<Integer> differing(long[] ours, long[] theirs) {
+		List<Integer> differing = new ArrayList<Integer>();
+		for (int bucket = 0; bucket < ours.length; bucket++) {
+			if (theirs.length != ours.length || ours[bucket] != theirs[bucket]) {
+				differing.add(bucket);
+			}
+		}
+		return differing;
+	}
+}
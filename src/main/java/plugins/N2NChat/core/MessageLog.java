@@ -0,0 +1,133 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-capacity ring buffer holding the most recent lines of a chat room. Once either the line or byte limit is
+ * reached the oldest lines are evicted, so that memory used by a room stays flat no matter how long it is open;
+ * they remain in the room's HistoryStore, if any. Each added line is given a sequence number one higher than the last, which lets
+ * readers ask for only the lines they have not seen yet.
+ */
+public class MessageLog {
+
+	private LogLine[] lines;
+	/** Index of the oldest line. */
+	private int head;
+	private int size;
+	private final int maxBytes;
+	private int bytes;
+	/** Sequence number of the most recently added line; zero if none have been added. */
+	private long lastSeq;
+
+	/**
+	 * @param maxLines Maximum number of lines to keep. Must be at least one.
+	 * @param maxBytes Maximum estimated size of the kept lines in bytes. The most recent line is always kept even if
+	 * it alone exceeds this.
+	 */
+	public MessageLog(int maxLines, int maxBytes) {
+		if (maxLines < 1) {
+			throw new IllegalArgumentException("A message log must hold at least one line, not " + maxLines);
+		}
+		this.lines = new LogLine[maxLines];
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Appends a line, evicting the oldest lines as needed to stay within the limits.
+	 * @param line Line to add. Its sequence number is ignored.
+	 * @return The line as stored, with its sequence number assigned.
+	 */
+	public synchronized LogLine add(LogLine line) {
+		line = line.withSeq(++lastSeq);
+		if (size == lines.length) {
+			evictOldest();
+		}
+		lines[(head + size) % lines.length] = line;
+		size++;
+		bytes += line.estimatedSize();
+		while (bytes > maxBytes && size > 1) {
+			evictOldest();
+		}
+		return line;
+	}
+
+	/**
+	 * Replaces the contents of this log with lines read back from history, keeping their sequence numbers so that
+	 * numbering continues from where it left off. Lines that do not fit are dropped oldest first.
+	 * @param restored Lines to hold, oldest first, with their sequence numbers assigned.
+	 * @param lastSeq Sequence number to continue numbering after. The last restored line's number is used if it is
+	 * higher.
+	 */
+	public synchronized void restore(List<LogLine> restored, long lastSeq) {
+		while (size > 0) {
+			evictOldest();
+		}
+		for (LogLine line : restored) {
+			if (size == lines.length) {
+				evictOldest();
+			}
+			lines[(head + size) % lines.length] = line;
+			size++;
+			bytes += line.estimatedSize();
+			while (bytes > maxBytes && size > 1) {
+				evictOldest();
+			}
+		}
+		this.lastSeq = restored.isEmpty() ? lastSeq : Math.max(lastSeq, restored.get(restored.size() - 1).seq);
+	}
+
+	/**
+	 * @return The lines currently held, oldest first.
+	 */
+	public synchronized List<LogLine> getLines() {
+		List<LogLine> list = new ArrayList<LogLine>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(lines[(head + i) % lines.length]);
+		}
+		return list;
+	}
+
+	/**
+	 * Gets the lines added after the given sequence number.
+	 * @param seq Sequence number of the last line already seen; zero for all lines.
+	 * @return The held lines with a higher sequence number, oldest first, or null if some lines after seq have
+	 * already been evicted or seq is newer than the last line, in which case the caller should start over from
+	 * getLines().
+	 */
+	public synchronized List<LogLine> getLinesSince(long seq) {
+		long firstSeq = lastSeq - size + 1;
+		if (seq > lastSeq || (seq < firstSeq - 1 && seq != 0)) {
+			return null;
+		}
+		int skip = (int) Math.max(0, seq - firstSeq + 1);
+		List<LogLine> list = new ArrayList<LogLine>(size - skip);
+		for (int i = skip; i < size; i++) {
+			list.add(lines[(head + i) % lines.length]);
+		}
+		return list;
+	}
+
+	/**
+	 * @return Sequence number of the most recently added line, or zero if none have been added.
+	 */
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized int estimatedBytes() {
+		return bytes;
+	}
+
+	private void evictOldest() {
+		LogLine evicted = lines[head];
+		lines[head] = null;
+		head = (head + 1) % lines.length;
+		size--;
+		bytes -= evicted.estimatedSize();
+	}
+}
@@ -19,25 +19,27 @@ import freenet.clients.http.*;
 import freenet.l10n.BaseL10n.LANGUAGE;
 import freenet.l10n.PluginL10n;
 import freenet.node.DarknetPeerNode;
-import freenet.node.FSParseException;
 import freenet.node.NodeToNodeMessageListener;
 import freenet.node.PeerNode;
 import freenet.pluginmanager.*;
-import freenet.support.Base64;
-import freenet.support.IllegalBase64Exception;
 import freenet.support.Logger;
-import freenet.support.SimpleFieldSet;
 
 import plugins.N2NChat.webui.DisplayChatToadlet;
 import plugins.N2NChat.webui.MainPageToadlet;
+import plugins.N2NChat.webui.SearchToadlet;
 import plugins.N2NChat.webui.StaticResourceToadlet;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class interfaces with Freenet. It is the class that is loaded by the node.
@@ -72,6 +74,51 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	/** Type identifier for a participant leaving */
 	public static final int LEAVE = 7;
 
+	/** Type identifier for several frames sent together. See ChatSender. */
+	public static final int BUNDLE = 8;
+
+	/** Type identifier for an acknowledgement of messages received over a hop. See ReliableLink. */
+	public static final int ACK = 9;
+
+	/** Type identifier for a request to send missing messages again. See ReliableLink. */
+	public static final int NACK = 10;
+
+	/** Type identifier for a participant announcing who it is directly linked with. See RelayTree. */
+	public static final int LINKS = 11;
+
+	/** Type identifier for part of the membership of a room, sent to a participant who just joined it. */
+	public static final int ROSTER = 12;
+
+	/** Type identifier for a summary of who is in a room, to check that peers agree. See MembershipDigest. */
+	public static final int DIGEST = 13;
+
+	/** Type identifier for a participant who just joined asking for what was said before. */
+	public static final int HISTORY_REQUEST = 14;
+
+	/** Type identifier for part of what was said in a room before a participant joined. */
+	public static final int HISTORY = 15;
+
+	/** Type identifier for asking a peer to show it is still there. Not for any room. See LivenessService. */
+	public static final int PING = 16;
+
+	/** Type identifier for answering a PING. */
+	public static final int PONG = 17;
+
+	/** Type identifier for a participant starting or stopping typing. Sent in the ephemeral lane; never logged. */
+	public static final int TYPING = 18;
+
+	/** Default number of lines each room keeps in memory. */
+	public static final int DEFAULT_LOG_LINES = 1000;
+
+	/** Time in milliseconds between giving rooms the current darknet peers, so that they can re-evaluate routes. */
+	public static final long PEER_CHECK_INTERVAL = 10 * 1000;
+
+	/** Default estimated size in bytes of the lines each room keeps in memory. */
+	public static final int DEFAULT_LOG_BYTES = 512 * 1024;
+
+	/** Directory within the node's user directory holding one history directory per room. */
+	public static final String HISTORY_DIRECTORY = "n2n-chat" + File.separator + "history";
+
 	/** The version. */
 	public static final String VERSION = "0.0.1";
 
@@ -81,14 +128,8 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	 **/
 	public static final SimpleDateFormat dayChangeFormat = new SimpleDateFormat("EEEE, MMMM dd, yyyy");
 
-	/** Date format used for the "time received" timestamp on messages. Ex: 04:48:30 PM */
-	public static final SimpleDateFormat receivedFormat = new SimpleDateFormat("hh:mm:ss a");
-
-	/** Date format used for the "time composed" timestamp on messages. Ex: 04:48:30 PM, June 1, 2011*/
-	public static final SimpleDateFormat composedFormat = new SimpleDateFormat("hh:mm:ss a, MMMM dd, yyyy");
-
 	/** Key is global identifier*/
-	public HashMap<Long, chatInvite> receivedInvites;
+	public ConcurrentHashMap<Long, chatInvite> receivedInvites;
 
 	/** Prefix for strings to pass through l10n. Used to put room names in chat menu.*/
 	public static final String l10nRaw = "RAWSTRING.";
@@ -108,12 +149,104 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	/** The l10n helper. */
 	private PluginL10n l10n;
 
-	/** HashMap containing all chat rooms this node is present in. The key is the global identifier. */
-	private HashMap<Long, ChatRoom> chatRooms;
+	/** All chat rooms this node is present in. The key is the global identifier. */
+	private ConcurrentHashMap<Long, ChatRoom> chatRooms;
+
+	/** Run the rooms' mailboxes, each room on the worker its global identifier pins it to. */
+	private RoomWorkers roomWorkers;
 
 	private MainPageToadlet mpt;
 	private DisplayChatToadlet displayChatToadlet;
 	private StaticResourceToadlet srt;
+	private SearchToadlet searchToadlet;
+
+	/** Writes room history to disk, one batch at a time, so that the listener never waits on the disk. */
+	private ExecutorService historyWriter;
+
+	/**
+	 * Histories of the rooms this node is in. The key is the global identifier. A room's history is closed once
+	 * the room is left, and only opened again to read search results or if the room is joined again.
+	 */
+	private HashMap<Long, HistoryStore> histories;
+
+	/**
+	 * Every room this node has history for, whether or not it is still in it. The value is the name the room had
+	 * when last joined, or null if unknown.
+	 */
+	private HashMap<Long, String> historyNames;
+
+	/** Messages in all rooms, fed by the rooms and rebuilt from histories when the plugin starts. */
+	private SearchIndex searchIndex;
+
+	/** Sends frames for all rooms, coalescing those to the same peer. */
+	private ChatSender chatSender;
+
+	/** Notices directly connected participants that stop answering, in every room. */
+	private LivenessService liveness;
+
+	/** Passes peers lost and returned to the rooms they are directly connected participants in. */
+	private final LivenessService.Listener livenessListener = new LivenessService.Listener() {
+		public boolean isParticipant(ByteArray pubKeyHash) {
+			for (ChatRoom chatRoom : chatRooms.values()) {
+				if (chatRoom.isDirectlyConnected(pubKeyHash)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void peerLost(final DarknetPeerNode peer) {
+			for (final ChatRoom chatRoom : chatRooms.values()) {
+				chatRoom.post(new Runnable() {
+					public void run() {
+						chatRoom.peerLost(peer);
+					}
+				});
+			}
+		}
+
+		public void peerReturned(final DarknetPeerNode peer) {
+			for (final ChatRoom chatRoom : chatRooms.values()) {
+				chatRoom.post(new Runnable() {
+					public void run() {
+						chatRoom.peerReturned(peer);
+					}
+				});
+			}
+		}
+	};
+
+	/** Most relay tree links this node takes in each room. See RelayTree. */
+	//TODO: Make this configurable once there is a way to store configuration.
+	private final int relayFanOut = RelayTree.DEFAULT_MAX_FAN_OUT;
+
+	/** Time in milliseconds each room holds joins and leaves so that bursts are shown and relayed once. */
+	//TODO: Make this configurable once there is a way to store configuration.
+	private final long presenceWindow = PresenceDebouncer.DEFAULT_WINDOW;
+
+	/** Set when the plugin is unloaded, to stop periodic jobs. */
+	private volatile boolean terminated;
+
+	/**
+	 * Gives every room the current darknet peers, so that routes through others are replaced by direct links to
+	 * peers that connected since, and then runs again after PEER_CHECK_INTERVAL.
+	 */
+	private final Runnable peerCheck = new Runnable() {
+		public void run() {
+			if (terminated) {
+				return;
+			}
+			final DarknetPeerNode[] peers = pluginRespirator.getNode().getDarknetConnections();
+			for (final ChatRoom chatRoom : chatRooms.values()) {
+				chatRoom.post(new Runnable() {
+					public void run() {
+						chatRoom.updatePeerNodes(peers);
+					}
+				});
+			}
+			chatSender.queueTimedJob(this, PEER_CHECK_INTERVAL);
+		}
+	};
 
 	/**l10n key for chat menu name */
 	private static final String chatMenu = "N2NChatPlugin.menuName";
@@ -146,6 +279,66 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 		return chatRooms.get(globalIdentifier);
 	}
 
+	/**
+	 * Returns the toadlet serving CSS and Javascript, used by pages to link to them.
+	 * @return The static resource toadlet
+	 */
+	public StaticResourceToadlet staticResources() {
+		return srt;
+	}
+
+	/**
+	 * @return Sender of frames for all rooms.
+	 */
+	public ChatSender chatSender() {
+		return chatSender;
+	}
+
+	/**
+	 * @return Index of messages in all rooms, including those this node has left.
+	 */
+	public SearchIndex searchIndex() {
+		return searchIndex;
+	}
+
+	/**
+	 * Reads the lines search results refer to. The history of a room this node has left is opened just for this.
+	 * Locked so that a room's history is not closed, or opened again by joining, while it is read.
+	 * @param hits Results to read.
+	 * @return The line of each hit, in the same order, or null where it could not be read.
+	 */
+	public synchronized List<LogLine> readHits(List<SearchIndex.Hit> hits) {
+		List<LogLine> lines = new ArrayList<LogLine>();
+		HashMap<Long, HistoryStore> opened = new HashMap<Long, HistoryStore>();
+		try {
+			for (SearchIndex.Hit hit : hits) {
+				HistoryStore history = histories.get(hit.globalIdentifier);
+				if (history == null) {
+					if (!opened.containsKey(hit.globalIdentifier)) {
+						opened.put(hit.globalIdentifier, openForReading(hit.globalIdentifier));
+					}
+					history = opened.get(hit.globalIdentifier);
+				}
+				lines.add(history == null ? null : history.get(hit.seq));
+			}
+		} finally {
+			for (HistoryStore history : opened.values()) {
+				if (history != null) {
+					history.close();
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @return Global identifier and name of every room with history, including those this node has left. The name
+	 * is null if unknown.
+	 */
+	public synchronized HashMap<Long, String> getHistoryRooms() {
+		return new HashMap<Long, String>(historyNames);
+	}
+
 	public Collection<ChatRoom> getRooms() {
 		return chatRooms.values();
 	}
@@ -158,18 +351,165 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	// MODIFIERS
 	//
 
-	public ChatRoom removeChatRoom(long globalIdentifier) {
-		return chatRooms.remove(globalIdentifier);
+	/**
+	 * Removes a room so that no more frames are handed to it. Its history is closed once the room has run what it
+	 * already has queued.
+	 * @param globalIdentifier Global identifier of the room.
+	 * @return The room removed, or null if this node was not in it.
+	 */
+	public ChatRoom removeChatRoom(final long globalIdentifier) {
+		ChatRoom chatRoom = chatRooms.remove(globalIdentifier);
+		if (chatRoom != null) {
+			chatRoom.post(new Runnable() {
+				public void run() {
+					closeHistory(globalIdentifier);
+				}
+			});
+		}
+		return chatRoom;
 	}
 
-	public ChatRoom addChatRoom(long globalIdentifier, String roomName, String username) {
-		return chatRooms.put(globalIdentifier, new ChatRoom(roomName, globalIdentifier, username,
-		        pluginRespirator.getNode().getDarknetConnections(), l10n));
+	/**
+	 * Closes the history of a room unless it has been joined again.
+	 * @param globalIdentifier Global identifier of the room.
+	 */
+	private synchronized void closeHistory(long globalIdentifier) {
+		if (chatRooms.containsKey(globalIdentifier)) {
+			return;
+		}
+		HistoryStore history = histories.remove(globalIdentifier);
+		if (history != null) {
+			history.close();
+		}
 	}
 
-	public ChatRoom addChatRoom(long globalIdentifier, String roomName, String username, DarknetPeerNode invitedBy) {
-		return chatRooms.put(globalIdentifier, new ChatRoom(roomName, globalIdentifier, username,
-		        pluginRespirator.getNode().getDarknetConnections(), l10n, invitedBy));
+	//Locked with opening and closing histories, so that a history cannot be closed between being opened for a room
+	//and the room being added.
+	public synchronized ChatRoom addChatRoom(long globalIdentifier, String roomName, String username) {
+		return putChatRoom(new ChatRoom(roomName, globalIdentifier, username,
+		        pluginRespirator.getNode().getDarknetConnections(), l10n, openHistory(globalIdentifier, roomName)));
+	}
+
+	public synchronized ChatRoom addChatRoom(long globalIdentifier, String roomName, String username,
+	        DarknetPeerNode invitedBy) {
+		return putChatRoom(new ChatRoom(roomName, globalIdentifier, username,
+		        pluginRespirator.getNode().getDarknetConnections(), l10n, openHistory(globalIdentifier, roomName),
+		        invitedBy));
+	}
+
+	/**
+	 * Connects a new room to plugin-wide services, then makes it available.
+	 * @param chatRoom Newly created room.
+	 * @return The room previously present with the same global identifier, if any.
+	 */
+	private ChatRoom putChatRoom(ChatRoom chatRoom) {
+		chatRoom.setSender(chatSender);
+		chatRoom.setMailbox(roomWorkers.mailbox(chatRoom.getGlobalIdentifier()));
+		chatRoom.setSearchIndex(searchIndex);
+		chatRoom.setRelayOverlay(new ByteArray(pluginRespirator.getNode().getDarknetPubKeyHash()), relayFanOut);
+		chatRoom.setPresenceWindow(presenceWindow);
+		return chatRooms.put(chatRoom.getGlobalIdentifier(), chatRoom);
+	}
+
+	/**
+	 * Opens the on-disk history of a room, creating it if this node has not been in the room before. Each history
+	 * is opened only once; later calls return the same store.
+	 * @param globalIdentifier Global identifier of the room.
+	 * @param roomName Current name of the room, or null to leave the recorded name unchanged.
+	 * @return The room's history, or null if it could not be opened, in which case the room is not persisted.
+	 */
+	private synchronized HistoryStore openHistory(long globalIdentifier, String roomName) {
+		HistoryStore history = histories.get(globalIdentifier);
+		if (history == null) {
+			File directory = historyDirectory(globalIdentifier);
+			try {
+				history = new HistoryStore(directory, historyWriter);
+			} catch (IOException e) {
+				Logger.error(this, "Failed to open history for room " + globalIdentifier + " in " + directory +
+				        "; it will not be saved.", e);
+				return null;
+			}
+			histories.put(globalIdentifier, history);
+			historyNames.put(globalIdentifier, history.getRoomName());
+		}
+		if (roomName != null && !roomName.equals(historyNames.get(globalIdentifier))) {
+			history.setRoomName(roomName);
+			historyNames.put(globalIdentifier, roomName);
+		}
+		return history;
+	}
+
+	/**
+	 * Opens the history of a room this node is not in, without creating it. The caller must close it. Must be called
+	 * with this locked, so that the room is not joined meanwhile: opening a history another store is writing to
+	 * could discard a record being written as partial.
+	 * @param globalIdentifier Global identifier of the room.
+	 * @return The history, or null if there is none or it could not be opened.
+	 */
+	private HistoryStore openForReading(long globalIdentifier) {
+		File directory = historyDirectory(globalIdentifier);
+		if (!directory.isDirectory()) {
+			return null;
+		}
+		try {
+			return new HistoryStore(directory, historyWriter);
+		} catch (IOException e) {
+			Logger.error(this, "Failed to open history for room " + globalIdentifier + " in " + directory, e);
+			return null;
+		}
+	}
+
+	private File historyDirectory() {
+		return new File(pluginRespirator.getNode().getUserDir(), HISTORY_DIRECTORY);
+	}
+
+	private File historyDirectory(long globalIdentifier) {
+		return new File(historyDirectory(), Long.toHexString(globalIdentifier));
+	}
+
+	/**
+	 * Adds the history of every room this node has been in to the search index. Histories of rooms this node is not
+	 * in are only open while they are indexed.
+	 */
+	private void rebuildSearchIndex() {
+		File[] directories = historyDirectory().listFiles();
+		if (directories == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		for (File directory : directories) {
+			long globalIdentifier;
+			try {
+				globalIdentifier = Long.parseUnsignedLong(directory.getName(), 16);
+			} catch (NumberFormatException e) {
+				Logger.warning(this, "Ignoring unexpected file in history directory: " + directory);
+				continue;
+			}
+			HistoryStore history;
+			boolean opened;
+			synchronized (this) {
+				history = histories.get(globalIdentifier);
+				opened = history == null;
+				if (opened) {
+					history = openForReading(globalIdentifier);
+				}
+				if (history != null && !historyNames.containsKey(globalIdentifier)) {
+					historyNames.put(globalIdentifier, history.getRoomName());
+				}
+			}
+			if (history == null) {
+				continue;
+			}
+			try {
+				searchIndex.rebuild(globalIdentifier, history);
+			} finally {
+				if (opened) {
+					history.close();
+				}
+			}
+		}
+		Logger.normal(this, "Indexed " + searchIndex.size() + " messages from " + directories.length +
+		        " rooms in " + (System.currentTimeMillis() - start) + " ms");
 	}
 
 	//
@@ -182,22 +522,49 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	@Override
 	public void runPlugin(PluginRespirator pr) {
 		this.pluginRespirator = pr;
-		this.chatRooms = new HashMap<Long, ChatRoom>();
-		this.receivedInvites = new HashMap<Long, chatInvite>();
+		this.chatRooms = new ConcurrentHashMap<Long, ChatRoom>();
+		this.roomWorkers = new RoomWorkers(RoomWorkers.DEFAULT_WORKERS);
+		this.receivedInvites = new ConcurrentHashMap<Long, chatInvite>();
+		this.histories = new HashMap<Long, HistoryStore>();
+		this.historyNames = new HashMap<Long, String>();
+		this.searchIndex = new SearchIndex();
+		this.chatSender = new ChatSender(pr.getNode().getTicker(), pr.getNode().nodeStats.nodeToNodeCounter,
+		        ChatSender.DEFAULT_WORKERS);
+		this.liveness = new LivenessService(chatSender, livenessListener);
 		this.tc = pr.getToadletContainer();
+		this.historyWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "N2NChat history writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 
 		//TODO: Need to store and retrieve config somehow.
+		//Static resources are loaded first so that pages can link to them.
+		srt = new StaticResourceToadlet(pr);
 		mpt = new MainPageToadlet(this);
 		pr.getPageMaker().addNavigationCategory(mpt.path(), chatMenu, "N2NChatPlugin.menuName.tooltip", this);
 		tc.register(mpt, chatMenu, mpt.path(), true, "N2NChatPlugin.mainPage", "N2NChatPlugin.mainPage.tooltip", false, mpt);
 		tc.register(mpt, null, mpt.path(), true, false);
 
 		displayChatToadlet = new DisplayChatToadlet(this);
-		srt = new StaticResourceToadlet(pr);
 		tc.register(displayChatToadlet, null, displayChatToadlet.path(), true, false);
 		tc.register(srt, null, srt.path(), true, false);
 
+		searchToadlet = new SearchToadlet(this);
+		tc.register(searchToadlet, chatMenu, searchToadlet.path(), true, "N2NChatPlugin.search",
+		        "N2NChatPlugin.search.tooltip", false, searchToadlet);
+
+		pr.getNode().executor.execute(new Runnable() {
+			public void run() {
+				rebuildSearchIndex();
+			}
+		}, "N2NChat search index rebuild");
+
 		pr.getNode().registerNodeToNodeMessageListener(N2N_MESSAGE_TYPE_CHAT, N2NChatListener);
+		chatSender.queueTimedJob(peerCheck, PEER_CHECK_INTERVAL);
+		liveness.start();
 	}
 
 	/**
@@ -205,10 +572,25 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	 */
 	@Override
 	public void terminate() {
+		terminated = true;
+		liveness.stop();
 		//Disconnect from all chats
-		for (ChatRoom chatRoom : chatRooms.values()) {
-			chatRoom.disconnect();
+		for (final ChatRoom chatRoom : chatRooms.values()) {
+			chatRoom.post(new Runnable() {
+				public void run() {
+					chatRoom.disconnect();
+				}
+			});
 		}
+		//Run what the rooms have queued, then send the leaves now rather than after the plugin is gone.
+		roomWorkers.close();
+		chatSender.close();
+		synchronized (this) {
+			for (HistoryStore history : histories.values()) {
+				history.close();
+			}
+		}
+		historyWriter.shutdown();
 
 		//Unregister category
 		pluginRespirator().getPageMaker().removeNavigationCategory(chatMenu);
@@ -217,6 +599,7 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 		tc.unregister(mpt);
 		tc.unregister(displayChatToadlet);
 		tc.unregister(srt);
+		tc.unregister(searchToadlet);
 	}
 
 	//
@@ -294,20 +677,17 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 	// CHAT-SPECIFIC METHODS
 	//
 
-	public static void sendInvite(long globalIdentifier, DarknetPeerNode darkPeer, int type) {
-		SimpleFieldSet fs = new SimpleFieldSet(true);
-		fs.put("type", type);
-		fs.put("globalIdentifier", globalIdentifier);
-		darkPeer.sendNodeToNodeMessage(fs, N2N_MESSAGE_TYPE_CHAT, true, System.currentTimeMillis(), false);
+	public void sendInvite(long globalIdentifier, DarknetPeerNode darkPeer, int type) {
+		chatSender.send(darkPeer, ChatFrame.invite(type, globalIdentifier));
 	}
 
 
-	public static void sendInviteAccept(DarknetPeerNode darkPeer, long globalIdentifier) {
+	public void sendInviteAccept(DarknetPeerNode darkPeer, long globalIdentifier) {
 		Logger.minor(N2NChatPlugin.class, "Sent invite accept for room " + globalIdentifier + " to " + darkPeer.getName());
 		sendInvite(globalIdentifier, darkPeer, ACCEPT_INVITE);
 	}
 
-	public static void sendInviteReject(DarknetPeerNode darkPeer, long globalIdentifier) {
+	public void sendInviteReject(DarknetPeerNode darkPeer, long globalIdentifier) {
 		Logger.minor(N2NChatPlugin.class, "Sent invite reject for room " + globalIdentifier + " to " + darkPeer.getName());
 		sendInvite(globalIdentifier, darkPeer, REJECT_INVITE);
 	}
@@ -333,54 +713,43 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 			}
 			DarknetPeerNode darkSource = (DarknetPeerNode) source;
 			freenet.support.Logger.normal(this, "Received N2N chat from " +darkSource.getName()+" (" + darkSource.getPeer() + ")");
-			SimpleFieldSet fs = null;
+			ChatFrameCodec.Decoded decoded;
 			try {
-				fs = new SimpleFieldSet(new String(data, "UTF-8"), false, true, false);
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+				decoded = ChatFrameCodec.decode(data);
 			} catch (IOException e) {
-				Logger.error(this, "IOException while parsing node to node message data", e);
+				Logger.error(this, "Failed to read chat message from "+darkSource.getName()+": "+e.getMessage());
 				return;
 			}
 
-			/*Fields are parsed in the order that they are needed, with those types that need the fewest
-			pieces of information from fields checked for first.
-			 */
-
-			//Get global identifier.
-			long globalIdentifier;
-			try {
-				globalIdentifier = fs.getLong("globalIdentifier");
-			} catch (FSParseException e) {
-				//Could not parse global identifier. Dropping.
-				//TODO: Add localized error message.
-				Logger.error(this, "Failed to parse global identifier from " + ((DarknetPeerNode) source).getName() + '.');
-				return;
+			chatSender.receivedCapabilities(darkSource, decoded.capabilities);
+			liveness.heard(darkSource);
+			for (ChatFrame frame : decoded.frames) {
+				handleFrame(frame, darkSource);
 			}
+		}
 
-			//We already know it's a chat message, but what kind?
-			try {
-				type = fs.getInt("type");
-			} catch (FSParseException e) {
-				Logger.error(this, "Failed to read message type in message about room "+globalIdentifier);
-				return;
-			}
+		/**
+		 * Handles one chat frame.
+		 * @param frame The frame.
+		 * @param darkSource Peer the frame came from.
+		 */
+		private void handleFrame(final ChatFrame frame, final DarknetPeerNode darkSource) {
+			int type = frame.type;
+			long globalIdentifier = frame.globalIdentifier;
 
 			/*/A darknet peer offered this node an invite. Add it to the list of offered invites to allow
 			the user to accept or reject it. If there is an existing invite for this room, it is replaced.
 			 */
 			if (type == OFFER_INVITE) {
-				try {
-					String username = new String(Base64.decode(fs.get("username")));
-					String roomName = new String(Base64.decode(fs.get("roomName")));
-					receivedInvites.put(globalIdentifier, new chatInvite(username, roomName,
-					        darkSource));
-					Logger.minor(this, "Received invitation offer from "+darkSource.getName()+
-					        " to room '"+roomName+"' ("+globalIdentifier+") with username '"+username+"'");
-					mpt.updateInvitationTable();
-				} catch (IllegalBase64Exception e) {
-					Logger.error(this, "Invalid base64 encoding on user/room name", e);
+				if (frame.username == null || frame.roomName == null) {
+					Logger.error(this, "Invitation offer from "+darkSource.getName()+" is missing user/room name");
+					return;
 				}
+				receivedInvites.put(globalIdentifier, new chatInvite(frame.username, frame.roomName,
+				        darkSource));
+				Logger.minor(this, "Received invitation offer from "+darkSource.getName()+
+				        " to room '"+frame.roomName+"' ("+globalIdentifier+") with username '"+frame.username+"'");
+				mpt.updateInvitationTable();
 				return;
 			} else if (type == RETRACT_INVITE) {
 				if (receivedInvites.containsKey(globalIdentifier) &&
@@ -391,78 +760,111 @@ public class N2NChatPlugin implements FredPlugin, FredPluginL10n, FredPluginBase
 					mpt.updateInvitationTable();
 				}
 				return;
+			//A peer checked that this node is still there. Being heard from is all a PONG is for.
+			} else if (type == PING) {
+				chatSender.send(darkSource, ChatFrame.ping(PONG, frame.messageId));
+				return;
+			} else if (type == PONG) {
+				return;
 			}
 
 			//Check that the requested room exists.
-			if (!chatRooms.containsKey(globalIdentifier)) {
+			final ChatRoom chatRoom = chatRooms.get(globalIdentifier);
+			if (chatRoom == null) {
 				Logger.error(this, l10n.getBase().getString("N2NChatPlugin.nonexistentRoom",
 				        new String[] { "globalIdentifier", "type" },
 				        new String[] { String.valueOf(globalIdentifier), String.valueOf(type) }));
 				return;
 			}
+			//Handled by the room's worker, so that this thread returns at once and the room is only changed by
+			//one thread.
+			chatRoom.post(new Runnable() {
+				public void run() {
+					handleRoomFrame(chatRoom, frame, darkSource);
+				}
+			});
+		}
+
+		/**
+		 * Handles one chat frame for a room. Run in the room's mailbox.
+		 * @param chatRoom Room the frame is for.
+		 * @param frame The frame.
+		 * @param darkSource Peer the frame came from.
+		 */
+		private void handleRoomFrame(ChatRoom chatRoom, ChatFrame frame, DarknetPeerNode darkSource) {
+			int type = frame.type;
 
 			//TODO: Do these need to fire web pushing events?
 
 			//A darknet peer accepted an invite this node offered. Add them to the chat room.
 			if (type == ACCEPT_INVITE) {
-				Logger.minor(this, "Received invite accept for room '"+chatRooms.get(globalIdentifier).getRoomName()+"' (" + globalIdentifier + ") from " + darkSource.getName());
-				chatRooms.get(globalIdentifier).receiveInviteAccept(darkSource);
+				Logger.minor(this, "Received invite accept for room '"+chatRoom.getRoomName()+"' (" + chatRoom.getGlobalIdentifier() + ") from " + darkSource.getName());
+				chatRoom.receiveInviteAccept(darkSource);
 				return;
 			//A darknet peer rejected an invite this node offered; remove it from list of pending invites.
 			} else if (type == REJECT_INVITE) {
-				chatRooms.get(globalIdentifier).receiveInviteReject(darkSource);
+				chatRoom.receiveInviteReject(darkSource);
+				return;
+			//A darknet peer acknowledged messages or asked for missing ones.
+			} else if (type == ACK) {
+				chatRoom.receiveAck(frame, darkSource);
+				return;
+			} else if (type == NACK) {
+				chatRoom.receiveNack(frame, darkSource);
+				return;
+			//A participant announced who it is directly linked with.
+			} else if (type == LINKS) {
+				chatRoom.receiveLinks(frame, darkSource);
+				return;
+			//The participant who invited this node sent who else is in the room.
+			} else if (type == ROSTER) {
+				chatRoom.receiveRoster(frame, darkSource);
+				return;
+			//A participant summarized who it thinks is in the room.
+			} else if (type == DIGEST) {
+				chatRoom.receiveDigest(frame, darkSource);
+				return;
+			//A participant who just joined asked for what was said before.
+			} else if (type == HISTORY_REQUEST) {
+				chatRoom.receiveHistoryRequest(frame, darkSource);
+				return;
+			} else if (type == HISTORY) {
+				chatRoom.receiveHistory(frame, darkSource);
+				return;
+			//A participant started or stopped typing.
+			} else if (type == TYPING) {
+				chatRoom.receiveTyping(frame, darkSource);
 				return;
 			}
 
-			//Get identity hash for use in a message, join, or leave.
-			ByteArray pubKeyHash;
-			try {
-				pubKeyHash = new ByteArray(Base64.decode(fs.getString("pubKeyHash")));
-			} catch (FSParseException e) {
-				//pubKeyHash was not included. This means it pertains to the sender.
-				Logger.minor(this, "Public key hash was not included; assuming sender.");
+			//Identity hash for use in a message, join, or leave. If not included, it pertains to the sender.
+			ByteArray pubKeyHash = frame.pubKeyHash;
+			if (pubKeyHash == null) {
 				pubKeyHash = new ByteArray(darkSource.peerECDSAPubKeyHash);
-			} catch (IllegalBase64Exception e) {
-				//Could not parse identity hash. Dropping.
-				//TODO: Add localized, logged error message.
-				Logger.error(this, "Failed to parse public key hash from "+darkSource.getName()+'.');
-				return;
 			}
 
 			//A message was received. Attempt to add the message.
 			if (type == MESSAGE) {
-				try {
-					chatRooms.get(globalIdentifier).receiveMessage(
-					        pubKeyHash,
-					        new Date(fs.getLong("timeComposed")),
-					        new ByteArray(darkSource.peerECDSAPubKeyHash),
-					        new String(Base64.decode(fs.get("text"))));
-				} catch (FSParseException e) {
-					//TODO: Add localized, logged error message.
-					Logger.error(this, "Failed to parse date from " + darkSource.getName() + '.');
-				} catch (IllegalBase64Exception e) {
-					Logger.error(this, "Invalid base64 encoding on message text", e);
+				if (frame.text == null) {
+					Logger.error(this, "Message from "+darkSource.getName()+" has no text.");
+					return;
 				}
+				chatRoom.receiveMessage(frame,
+				        new ByteArray(darkSource.peerECDSAPubKeyHash));
 				return;
 			//Someone joined a chat room.
 			} else if (type == JOIN) {
-				try {
-					boolean displayJoin = true;
-					try {
-						displayJoin = fs.getBoolean("displayJoin");
-					} catch (FSParseException e) {
-						Logger.error(this, "Join message did not include whether to display. Defaulting to display.", e);
-					}
-					chatRooms.get(globalIdentifier).joinedParticipant(pubKeyHash,
- 					        new String(Base64.decode(fs.get("username"))), darkSource, displayJoin);
-				} catch (IllegalBase64Exception e) {
-					Logger.error(this, "Invalid base64 encoding on username", e);
+				if (frame.username == null) {
+					Logger.error(this, "Join from "+darkSource.getName()+" has no username.");
+					return;
 				}
+				chatRoom.joinedParticipant(pubKeyHash, frame.username, darkSource,
+				        frame.displayJoin, frame.messageId, frame.hops);
 				return;
 			//Someone left a chat room.
 			} else if (type == LEAVE) {
-				chatRooms.get(globalIdentifier).removeParticipant(pubKeyHash,
-				        new ByteArray(darkSource.peerECDSAPubKeyHash), false);
+				chatRoom.removeParticipant(pubKeyHash,
+				        new ByteArray(darkSource.peerECDSAPubKeyHash), false, frame.messageId, frame.hops);
 				return;
 			}
 			Logger.warning(this, "Received chat message of unknown type "+type+" from "+darkSource.getName());
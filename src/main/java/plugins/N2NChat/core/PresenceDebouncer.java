@@ -0,0 +1,148 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces participants joining and leaving a room over a window, so that someone on a link that keeps dropping
+ * does not fill the log, the participants listing, and the network with churn. A leave followed by a join of the
+ * same participant within the window cancels out, and whatever did change is reported once when the window ends.
+ * <p>
+ * Leaves are held together with what relays them, which is dropped if the participant rejoins: nodes that had not
+ * been told of the leave never see them go. Joins are not held, as messages from the participant may follow them.
+ */
+public class PresenceDebouncer {
+
+	/** Default time in milliseconds changes are held before being shown and relayed. */
+	public static final long DEFAULT_WINDOW = 5 * 1000;
+
+	/** How a participant's presence changed over a window. */
+	public static class Change {
+		public final ByteArray pubKeyHash;
+		public final String name;
+		/** True if they joined; false if they left. */
+		public final boolean joined;
+		/** True if they left because their connection was lost rather than by leaving. */
+		public final boolean lostConnection;
+
+		Change(ByteArray pubKeyHash, String name, boolean joined, boolean lostConnection) {
+			this.pubKeyHash = pubKeyHash;
+			this.name = name;
+			this.joined = joined;
+			this.lostConnection = lostConnection;
+		}
+	}
+
+	/** What a window ended with. */
+	public static class Summary {
+		/** Participants whose presence changed, in the order they first did. */
+		public final List<Change> changes;
+		/** Relays of leaves that were not cancelled, to be run now. */
+		public final List<Runnable> relays;
+
+		Summary(List<Change> changes, List<Runnable> relays) {
+			this.changes = Collections.unmodifiableList(changes);
+			this.relays = Collections.unmodifiableList(relays);
+		}
+	}
+
+	private static class Pending {
+		/** Whether the participant was present before the window. */
+		final boolean wasPresent;
+		String name;
+		boolean present;
+		boolean lostConnection;
+		/** Relays the leave, if they are not present and it is being held. */
+		Runnable relay;
+
+		Pending(boolean wasPresent) {
+			this.wasPresent = wasPresent;
+		}
+	}
+
+	/** Key is the public key hash of the participant. */
+	private final LinkedHashMap<ByteArray, Pending> pending = new LinkedHashMap<ByteArray, Pending>();
+
+	/**
+	 * @return True if no changes are being held, so that the next one starts a window.
+	 */
+	public synchronized boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * @param pubKeyHash Public key hash of a participant.
+	 * @return True if a leave of theirs is being held, so a join of theirs now cancels it and should not be relayed
+	 * either.
+	 */
+	public synchronized boolean holdsRelay(ByteArray pubKeyHash) {
+		Pending change = pending.get(pubKeyHash);
+		return change != null && change.relay != null;
+	}
+
+	/**
+	 * Records a participant joining. Cancels any leave of theirs being held.
+	 * @param pubKeyHash Public key hash of the participant.
+	 * @param name Their name.
+	 * @param display Whether the join would be shown. One that would not is only recorded if it undoes a change
+	 * already being held.
+	 * @return True if the join was recorded, and will be reported when the window ends.
+	 */
+	public synchronized boolean joined(ByteArray pubKeyHash, String name, boolean display) {
+		Pending change = pending.get(pubKeyHash);
+		if (change == null) {
+			if (!display) {
+				return false;
+			}
+			change = new Pending(false);
+			pending.put(pubKeyHash, change);
+		}
+		change.name = name;
+		change.present = true;
+		change.relay = null;
+		return true;
+	}
+
+	/**
+	 * Records a participant leaving.
+	 * @param pubKeyHash Public key hash of the participant.
+	 * @param name Their name.
+	 * @param lostConnection True if their connection was lost rather than them leaving.
+	 * @param relay Relays the leave when the window ends, unless they rejoin first. Null if there is nothing to
+	 * relay.
+	 */
+	public synchronized void left(ByteArray pubKeyHash, String name, boolean lostConnection, Runnable relay) {
+		Pending change = pending.get(pubKeyHash);
+		if (change == null) {
+			change = new Pending(true);
+			pending.put(pubKeyHash, change);
+		}
+		change.name = name;
+		change.present = false;
+		change.lostConnection = lostConnection;
+		change.relay = relay;
+	}
+
+	/**
+	 * Ends the window: returns what changed and stops holding it.
+	 * @return Participants who are not as they were before the window, and the held relays.
+	 */
+	public synchronized Summary flush() {
+		List<Change> changes = new ArrayList<Change>();
+		List<Runnable> relays = new ArrayList<Runnable>();
+		for (Map.Entry<ByteArray, Pending> entry : pending.entrySet()) {
+			Pending change = entry.getValue();
+			if (change.present != change.wasPresent) {
+				changes.add(new Change(entry.getKey(), change.name, change.present, change.lostConnection));
+			}
+			if (change.relay != null) {
+				relays.add(change.relay);
+			}
+		}
+		pending.clear();
+		return new Summary(changes, relays);
+	}
+}
@@ -0,0 +1,49 @@
+package plugins.N2NChat.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Message identifiers seen recently in a room, so that a message, join, or leave that arrives more than once, for
+ * example over two paths, is only handled once. Holds at most a fixed number of identifiers; the least recently seen
+ * are forgotten first, so memory use does not grow with the life of the room.
+ */
+public class RecentIds {
+
+	/** Identifiers remembered per room by default. */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final LinkedHashMap<Long, Boolean> ids;
+
+	/**
+	 * @param capacity Most identifiers to remember.
+	 */
+	public RecentIds(final int capacity) {
+		this.ids = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Records an identifier as seen.
+	 * @param id Identifier of a message, join, or leave. Zero means it has none, and is never a duplicate.
+	 * @return True if it was not seen recently; false if it is a duplicate and should be dropped.
+	 */
+	public synchronized boolean add(long id) {
+		if (id == 0) {
+			return true;
+		}
+		//Also refreshes the identifier if present, as copies still arriving should keep it remembered.
+		return ids.put(id, Boolean.TRUE) == null;
+	}
+
+	/**
+	 * @return Number of identifiers remembered.
+	 */
+	public synchronized int size() {
+		return ids.size();
+	}
+}
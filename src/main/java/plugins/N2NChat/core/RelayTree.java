@@ -0,0 +1,137 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Spanning tree over the direct links between the participants of a room, along which messages are relayed instead
+ * of to every directly connected participant. Each participant announces its links and the most tree links it will
+ * take, its fan-out; every node builds the tree from the same announcements, and so builds the same tree.
+ * <p>
+ * A link is used only if both ends announced it. The tree is grown greedily from the participant with the lowest
+ * public key hash, always extending from the tree node with the fewest tree links so far, so that relaying is spread
+ * out rather than left to whoever invited the most people. Fan-out limits are exceeded only where a participant
+ * could not be reached otherwise. Participants that cannot reach each other over announced links get separate trees.
+ */
+public class RelayTree {
+
+	/** Most tree links a participant takes unless configured otherwise. */
+	public static final int DEFAULT_MAX_FAN_OUT = 4;
+
+	/** Orders public key hashes as unsigned bytes, so that every node picks the same root and breaks ties alike. */
+	static final Comparator<ByteArray> ORDER = new Comparator<ByteArray>() {
+		public int compare(ByteArray a, ByteArray b) {
+			byte[] x = a.getBytes();
+			byte[] y = b.getBytes();
+			for (int i = 0; i < Math.min(x.length, y.length); i++) {
+				int difference = (x[i] & 0xFF) - (y[i] & 0xFF);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return x.length - y.length;
+		}
+	};
+
+	private final HashMap<ByteArray, Set<ByteArray>> tree;
+
+	/**
+	 * Builds the tree.
+	 * @param links Each announcing participant's directly linked participants.
+	 * @param maxFanOut Each announcing participant's fan-out. Those missing get DEFAULT_MAX_FAN_OUT.
+	 */
+	public RelayTree(Map<ByteArray, ? extends Collection<ByteArray>> links, Map<ByteArray, Integer> maxFanOut) {
+		tree = new HashMap<ByteArray, Set<ByteArray>>();
+
+		//Only links both ends announced, in a fixed order.
+		List<ByteArray> nodes = new ArrayList<ByteArray>(links.keySet());
+		Collections.sort(nodes, ORDER);
+		HashMap<ByteArray, List<ByteArray>> edges = new HashMap<ByteArray, List<ByteArray>>();
+		for (ByteArray node : nodes) {
+			List<ByteArray> neighbors = new ArrayList<ByteArray>();
+			for (ByteArray neighbor : links.get(node)) {
+				Collection<ByteArray> back = links.get(neighbor);
+				if (!neighbor.equals(node) && back != null && back.contains(node)) {
+					neighbors.add(neighbor);
+				}
+			}
+			Collections.sort(neighbors, ORDER);
+			edges.put(node, neighbors);
+			tree.put(node, new HashSet<ByteArray>());
+		}
+
+		HashSet<ByteArray> reached = new HashSet<ByteArray>();
+		for (ByteArray root : nodes) {
+			if (reached.contains(root)) {
+				continue;
+			}
+			//Grow a tree from the lowest node not yet reached.
+			List<ByteArray> component = new ArrayList<ByteArray>();
+			component.add(root);
+			reached.add(root);
+			while (true) {
+				ByteArray from = null;
+				ByteArray to = null;
+				boolean fromFull = true;
+				for (ByteArray candidate : component) {
+					ByteArray next = firstUnreached(edges.get(candidate), reached);
+					if (next == null) {
+						continue;
+					}
+					boolean full = tree.get(candidate).size() >= fanOut(maxFanOut, candidate);
+					//Prefer nodes with room, then the fewest tree links, then the order nodes were reached.
+					if (from == null || (fromFull && !full) || (fromFull == full &&
+					        tree.get(candidate).size() < tree.get(from).size())) {
+						from = candidate;
+						to = next;
+						fromFull = full;
+					}
+				}
+				if (from == null) {
+					break;
+				}
+				tree.get(from).add(to);
+				tree.get(to).add(from);
+				reached.add(to);
+				component.add(to);
+			}
+		}
+	}
+
+	private static ByteArray firstUnreached(List<ByteArray> neighbors, Set<ByteArray> reached) {
+		for (ByteArray neighbor : neighbors) {
+			if (!reached.contains(neighbor)) {
+				return neighbor;
+			}
+		}
+		return null;
+	}
+
+	private static int fanOut(Map<ByteArray, Integer> maxFanOut, ByteArray node) {
+		Integer fanOut = maxFanOut.get(node);
+		//At least one, so that every participant can be reached.
+		return fanOut == null ? DEFAULT_MAX_FAN_OUT : Math.max(1, fanOut);
+	}
+
+	/**
+	 * @return True if the participant announced its links, and so is part of a tree.
+	 */
+	public boolean contains(ByteArray node) {
+		return tree.containsKey(node);
+	}
+
+	/**
+	 * @return The participants the given one relays to and from in the tree. Empty if it is not part of one.
+	 */
+	public Set<ByteArray> neighbors(ByteArray node) {
+		Set<ByteArray> neighbors = tree.get(node);
+		return neighbors == null ? Collections.<ByteArray>emptySet() : Collections.unmodifiableSet(neighbors);
+	}
+}
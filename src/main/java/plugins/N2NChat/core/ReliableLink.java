@@ -0,0 +1,324 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Delivery state of one room's messages over one hop: to and from one directly connected peer.
+ * <p>
+ * Each message sent over the hop gets the next sequence number and is kept in a bounded resend buffer until the
+ * peer acknowledges it, either cumulatively (everything up to a number) or selectively (numbers received past a
+ * gap). The receiving side tracks which numbers it has, drops duplicates, and reports gaps so that the sender can
+ * retransmit them. A message that goes unacknowledged for RESEND_TIMEOUT is retransmitted, up to MAX_RESENDS times.
+ * <p>
+ * Sequence numbers start at a random value. A number received far from the expected one means the peer started
+ * over, for example after a restart, and resets the receiving side.
+ */
+public class ReliableLink {
+
+	/** Most messages kept for retransmission. Older ones are given up on once exceeded. */
+	public static final int RESEND_BUFFER = 256;
+
+	/** Time in milliseconds after which an unacknowledged message is sent again. */
+	public static final long RESEND_TIMEOUT = 5000;
+
+	/** Time in milliseconds acknowledgements are held so that one covers several messages. */
+	public static final long ACK_DELAY = 200;
+
+	/** Most times a message is sent again before it is given up on. */
+	public static final int MAX_RESENDS = 5;
+
+	/** Received sequence numbers further than this from the expected one mean the sender started over. */
+	static final long RESET_DISTANCE = 4 * RESEND_BUFFER;
+
+	//Sending side.
+	private long nextSeq;
+	/** Messages not yet acknowledged, in order of sequence number. */
+	private final LinkedHashMap<Long, Pending> unacknowledged;
+	/** Number of messages given up on. */
+	private int lost;
+	/** Whether any unacknowledged message has had to be sent again. */
+	private boolean retrying;
+
+	//Receiving side.
+	/** Highest sequence number such that it and everything before it were received. Zero if nothing was. */
+	private long lastContiguous;
+	/** Sequence numbers received past a gap. */
+	private final TreeSet<Long> receivedAhead;
+	/** Missing sequence numbers already asked for. They are not asked for again; the sender's timeout covers them. */
+	private final TreeSet<Long> requested;
+
+	/** Whether an acknowledgement is waiting to be sent. */
+	private boolean ackScheduled;
+	/** Whether a check for unacknowledged messages is scheduled. */
+	private boolean resendScheduled;
+
+	/**
+	 * @param firstSeq Sequence number of the first message sent. Must be positive.
+	 */
+	public ReliableLink(long firstSeq) {
+		this.nextSeq = firstSeq;
+		this.unacknowledged = new LinkedHashMap<Long, Pending>();
+		this.receivedAhead = new TreeSet<Long>();
+		this.requested = new TreeSet<Long>();
+	}
+
+	/**
+	 * A message to send again and the sequence number it was first sent with.
+	 */
+	public static class Resend {
+		public final long seq;
+		public final ChatFrame frame;
+
+		Resend(long seq, ChatFrame frame) {
+			this.seq = seq;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Records a message as sent.
+	 * @param frame The message, without a hop sequence number.
+	 * @param now Current time in milliseconds.
+	 * @return Sequence number to send it with.
+	 */
+	public synchronized long sent(ChatFrame frame, long now) {
+		long seq = nextSeq++;
+		unacknowledged.put(seq, new Pending(frame, now));
+		if (unacknowledged.size() > RESEND_BUFFER) {
+			Iterator<Long> oldest = unacknowledged.keySet().iterator();
+			oldest.next();
+			oldest.remove();
+			lost++;
+		}
+		return seq;
+	}
+
+	/**
+	 * Records an acknowledgement from the peer.
+	 * @param cumulative Every message up to and including this was received.
+	 * @param selective Further messages received past a gap. Can be null.
+	 */
+	public synchronized void acknowledged(long cumulative, long[] selective) {
+		for (Iterator<Long> it = unacknowledged.keySet().iterator(); it.hasNext(); ) {
+			if (it.next() > cumulative) {
+				break;
+			}
+			it.remove();
+		}
+		if (selective != null) {
+			for (long seq : selective) {
+				unacknowledged.remove(seq);
+			}
+		}
+		updateRetrying();
+	}
+
+	/**
+	 * Gets messages the peer reported missing, to send again.
+	 * @param seqs Sequence numbers reported missing.
+	 * @param now Current time in milliseconds.
+	 * @return Those still in the resend buffer.
+	 */
+	public synchronized List<Resend> requested(long[] seqs, long now) {
+		if (seqs == null) {
+			return new ArrayList<Resend>(0);
+		}
+		List<Resend> resends = new ArrayList<Resend>(seqs.length);
+		for (long seq : seqs) {
+			Pending pending = unacknowledged.get(seq);
+			if (pending != null) {
+				resends.add(resend(seq, pending, now));
+			}
+		}
+		return resends;
+	}
+
+	/**
+	 * Gets messages that have gone unacknowledged too long, to send again. Those sent too many times are given up
+	 * on instead.
+	 * @param now Current time in milliseconds.
+	 * @return Messages to send again.
+	 */
+	public synchronized List<Resend> timedOut(long now) {
+		List<Resend> resends = new ArrayList<Resend>();
+		for (Iterator<Map.Entry<Long, Pending>> it = unacknowledged.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Long, Pending> entry = it.next();
+			Pending pending = entry.getValue();
+			if (now - pending.timeSent < RESEND_TIMEOUT) {
+				continue;
+			}
+			if (pending.resends >= MAX_RESENDS) {
+				it.remove();
+				lost++;
+			} else {
+				resends.add(resend(entry.getKey(), pending, now));
+			}
+		}
+		updateRetrying();
+		return resends;
+	}
+
+	private Resend resend(long seq, Pending pending, long now) {
+		pending.resends++;
+		pending.timeSent = now;
+		retrying = true;
+		return new Resend(seq, pending.frame);
+	}
+
+	private void updateRetrying() {
+		if (!retrying) {
+			return;
+		}
+		for (Pending pending : unacknowledged.values()) {
+			if (pending.resends != 0) {
+				return;
+			}
+		}
+		retrying = false;
+	}
+
+	/**
+	 * @return Number of messages sent that have not been acknowledged.
+	 */
+	public synchronized int unacknowledged() {
+		return unacknowledged.size();
+	}
+
+	/**
+	 * @return True if a message had to be sent again and is still unacknowledged.
+	 */
+	public synchronized boolean isRetrying() {
+		return retrying;
+	}
+
+	/**
+	 * @return Number of messages given up on.
+	 */
+	public synchronized int lost() {
+		return lost;
+	}
+
+	/**
+	 * Records a message as received.
+	 * @param seq Its sequence number.
+	 * @return False if it was already received and should be dropped.
+	 */
+	public synchronized boolean received(long seq) {
+		if (lastContiguous == 0 || Math.abs(seq - lastContiguous) > RESET_DISTANCE) {
+			//First message, or the sender started over.
+			lastContiguous = seq - 1;
+			receivedAhead.clear();
+			requested.clear();
+		}
+		if (seq <= lastContiguous || !receivedAhead.add(seq)) {
+			return false;
+		}
+		requested.remove(seq);
+		if (receivedAhead.size() > RESEND_BUFFER) {
+			//The sender has given up on the gap by now.
+			lastContiguous = receivedAhead.first() - 1;
+		}
+		while (!receivedAhead.isEmpty() && receivedAhead.first() == lastContiguous + 1) {
+			lastContiguous = receivedAhead.pollFirst();
+		}
+		requested.headSet(lastContiguous, true).clear();
+		return true;
+	}
+
+	/**
+	 * Gets missing sequence numbers that have not been asked for yet, and records them as asked for.
+	 * @return Missing sequence numbers, in order. Empty if there are none.
+	 */
+	public synchronized long[] missing() {
+		if (receivedAhead.isEmpty()) {
+			return new long[0];
+		}
+		List<Long> missing = new ArrayList<Long>();
+		for (long seq = lastContiguous + 1; seq < receivedAhead.last(); seq++) {
+			if (!receivedAhead.contains(seq) && requested.add(seq)) {
+				missing.add(seq);
+			}
+		}
+		return toArray(missing);
+	}
+
+	/**
+	 * @return Highest sequence number such that it and everything before it were received.
+	 */
+	public synchronized long cumulative() {
+		return lastContiguous;
+	}
+
+	/**
+	 * @return Sequence numbers received past a gap, in order.
+	 */
+	public synchronized long[] selective() {
+		return toArray(receivedAhead);
+	}
+
+	/**
+	 * @return True if the caller should schedule an acknowledgement; false if one is already scheduled.
+	 */
+	public synchronized boolean scheduleAck() {
+		if (ackScheduled) {
+			return false;
+		}
+		ackScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Called when the scheduled acknowledgement is sent.
+	 */
+	public synchronized void ackSent() {
+		ackScheduled = false;
+	}
+
+	/**
+	 * @return True if the caller should schedule a check for timed out messages; false if one is already scheduled.
+	 */
+	public synchronized boolean scheduleResendCheck() {
+		if (resendScheduled) {
+			return false;
+		}
+		resendScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Called when the scheduled check runs.
+	 * @return True if messages are still unacknowledged, so another check should be scheduled.
+	 */
+	public synchronized boolean resendChecked() {
+		resendScheduled = !unacknowledged.isEmpty();
+		return resendScheduled;
+	}
+
+	private static long[] toArray(Iterable<Long> values) {
+		List<Long> list = new ArrayList<Long>();
+		for (Long value : values) {
+			list.add(value);
+		}
+		long[] array = new long[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	private static class Pending {
+		public final ChatFrame frame;
+		public long timeSent;
+		public int resends;
+
+		public Pending(ChatFrame frame, long timeSent) {
+			this.frame = frame;
+			this.timeSent = timeSent;
+		}
+	}
+}
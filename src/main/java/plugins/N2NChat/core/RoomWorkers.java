@@ -0,0 +1,79 @@
+package plugins.N2NChat.core;
+
+import freenet.support.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads that run the rooms' mailboxes. Each room is pinned to one worker by its global identifier, so a room's
+ * tasks always run on the same thread, while different rooms run in parallel on as many threads as there are
+ * workers. A worker shared by several rooms runs their mailboxes in turn. See Mailbox.
+ */
+public class RoomWorkers {
+
+	/** Default number of workers: one per processor. */
+	public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+	/** Time in milliseconds to wait for posted tasks to run when closing. */
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	private final ExecutorService[] workers;
+
+	/**
+	 * @param count Number of worker threads.
+	 */
+	public RoomWorkers(int count) {
+		workers = new ExecutorService[Math.max(1, count)];
+		for (int i = 0; i < workers.length; i++) {
+			final String name = "N2NChat room worker " + (i + 1);
+			workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param globalIdentifier Room to make a mailbox for.
+	 * @return A mailbox run by the worker the room is pinned to.
+	 */
+	public Mailbox mailbox(long globalIdentifier) {
+		return new Mailbox(workers[index(globalIdentifier, workers.length)]);
+	}
+
+	/**
+	 * @param globalIdentifier Global identifier of a room.
+	 * @param count Number of workers.
+	 * @return Index of the worker the room is pinned to. Global identifiers are random, so rooms spread evenly.
+	 */
+	static int index(long globalIdentifier, int count) {
+		int hash = (int)(globalIdentifier ^ (globalIdentifier >>> 32));
+		return (hash & Integer.MAX_VALUE) % count;
+	}
+
+	/**
+	 * Runs the tasks already posted and stops the workers. Tasks posted after this are dropped. Used when the plugin
+	 * is unloading.
+	 */
+	public void close() {
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+		try {
+			for (ExecutorService worker : workers) {
+				if (!worker.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					Logger.warning(this, "Timed out running room tasks while closing.");
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
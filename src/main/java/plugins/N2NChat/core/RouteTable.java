@@ -0,0 +1,175 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Next hops for the participants of one room. Each participant has one or more directly connected participants
+ * their traffic can come through. The primary route is the cheapest: fewest hops, then lowest round-trip time to the
+ * next hop, then the first learned. The others are backups. When a next hop leaves, participants it was primary for
+ * fail over to their next cheapest route rather than being dropped from the room. A directly connected participant's
+ * route through itself is one hop, so it is preferred over any relayed route.
+ * <p>
+ * Keys and hops are public key hashes.
+ */
+public class RouteTable {
+
+	/** Hop count of a route directly to the participant. */
+	public static final int DIRECT_HOPS = 1;
+
+	/**
+	 * Fewest hops of a route through another participant. Joins say how many hops they took, which is used as the
+	 * route's hop count; this is assumed for those from nodes that do not count hops.
+	 */
+	public static final int RELAYED_HOPS = 2;
+
+	private final LinkedHashMap<ByteArray, List<Route>> routes;
+	/** Round-trip time in milliseconds to each next hop, where known. */
+	private final HashMap<ByteArray, Double> latencies;
+
+	public RouteTable() {
+		this.routes = new LinkedHashMap<ByteArray, List<Route>>();
+		this.latencies = new HashMap<ByteArray, Double>();
+	}
+
+	/**
+	 * Adds a route to a participant, or lowers the hop count of an existing one.
+	 * @param participant Public key hash of the participant.
+	 * @param via Public key hash of the directly connected participant their traffic comes through.
+	 * @param hops Number of hops to the participant through it.
+	 * @return True if the route is new or cheaper than before.
+	 */
+	public synchronized boolean add(ByteArray participant, ByteArray via, int hops) {
+		List<Route> hopList = routes.get(participant);
+		if (hopList == null) {
+			hopList = new ArrayList<Route>(2);
+			routes.put(participant, hopList);
+		}
+		for (Route route : hopList) {
+			if (route.via.equals(via)) {
+				if (hops >= route.hops) {
+					return false;
+				}
+				route.hops = hops;
+				return true;
+			}
+		}
+		hopList.add(new Route(via, hops));
+		return true;
+	}
+
+	/**
+	 * Records the round-trip time to a next hop, used to choose between routes of the same hop count.
+	 * @param via Public key hash of the next hop.
+	 * @param latency Round-trip time in milliseconds.
+	 */
+	public synchronized void setLatency(ByteArray via, double latency) {
+		latencies.put(via, latency);
+	}
+
+	/**
+	 * @return True if traffic for the participant may come through the given hop.
+	 */
+	public synchronized boolean isRoute(ByteArray participant, ByteArray via) {
+		List<Route> hopList = routes.get(participant);
+		if (hopList != null) {
+			for (Route route : hopList) {
+				if (route.via.equals(via)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The cheapest route to the participant, or null if there is none.
+	 */
+	public synchronized ByteArray primary(ByteArray participant) {
+		Route best = best(routes.get(participant));
+		return best == null ? null : best.via;
+	}
+
+	/**
+	 * @return Number of routes to the participant, including the primary.
+	 */
+	public synchronized int count(ByteArray participant) {
+		List<Route> hopList = routes.get(participant);
+		return hopList == null ? 0 : hopList.size();
+	}
+
+	/**
+	 * Forgets a participant's own routes, for when they leave. Routes through them are removed by removeHop().
+	 * @param participant Public key hash of the participant.
+	 */
+	public synchronized void remove(ByteArray participant) {
+		routes.remove(participant);
+	}
+
+	/**
+	 * Removes a next hop from every route, for when it leaves or disconnects.
+	 * @param via Public key hash of the hop.
+	 * @return For each participant whose primary route was through the hop, their new primary route, or null if
+	 * they have none left and so are unreachable. Unreachable participants are forgotten. In the order learned.
+	 */
+	public synchronized Map<ByteArray, ByteArray> removeHop(ByteArray via) {
+		latencies.remove(via);
+		Map<ByteArray, ByteArray> changed = new LinkedHashMap<ByteArray, ByteArray>();
+		for (Iterator<Map.Entry<ByteArray, List<Route>>> it = routes.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<ByteArray, List<Route>> entry = it.next();
+			List<Route> hopList = entry.getValue();
+			Route primary = best(hopList);
+			boolean removed = false;
+			for (Iterator<Route> routeIt = hopList.iterator(); routeIt.hasNext(); ) {
+				if (routeIt.next().via.equals(via)) {
+					routeIt.remove();
+					removed = true;
+				}
+			}
+			if (!removed) {
+				continue;
+			}
+			if (hopList.isEmpty()) {
+				it.remove();
+				changed.put(entry.getKey(), null);
+			} else if (primary.via.equals(via)) {
+				changed.put(entry.getKey(), best(hopList).via);
+			}
+		}
+		return changed;
+	}
+
+	private Route best(List<Route> hopList) {
+		if (hopList == null) {
+			return null;
+		}
+		Route best = null;
+		for (Route route : hopList) {
+			if (best == null || route.hops < best.hops ||
+			        (route.hops == best.hops && latency(route.via) < latency(best.via))) {
+				best = route;
+			}
+		}
+		return best;
+	}
+
+	private double latency(ByteArray via) {
+		Double latency = latencies.get(via);
+		//Unknown round-trip times sort last among routes of the same length.
+		return latency == null ? Double.MAX_VALUE : latency;
+	}
+
+	private static class Route {
+		public final ByteArray via;
+		public int hops;
+
+		public Route(ByteArray via, int hops) {
+			this.via = via;
+			this.hops = hops;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package plugins.N2NChat.core;
+
+import freenet.support.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index of messages in all rooms. Each indexed line is a document numbered in the order it was
+ * added; each token maps to the ascending list of documents containing it, so a query intersects a few sorted lists
+ * instead of scanning lines. Only the room, sequence number, and time of each line are held; the text is read back
+ * from the room's history when displaying results.
+ * <p>
+ * Lines are added as they are said, and the index is rebuilt from history when the plugin starts. The two can
+ * overlap: a rebuild stops at the first line of a room that was added live, and a live line already added by a
+ * rebuild is skipped.
+ * <p>
+ * At most maxDocuments lines are indexed so that memory stays bounded. When there are more, the oldest quarter are
+ * dropped and older lines are no longer found or added.
+ */
+public class SearchIndex {
+
+	/** Tokens longer than this are not indexed; they are usually URLs or keys rather than words. */
+	public static final int MAX_TOKEN_LENGTH = 64;
+
+	/** Default most lines indexed. Each takes roughly a hundred bytes. */
+	public static final int DEFAULT_MAX_DOCUMENTS = 100000;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final int maxDocuments;
+
+	/** Key is a token. */
+	private final HashMap<String, Postings> postings = new HashMap<String, Postings>();
+
+	/** Room, sequence number, and time received of each document, indexed by document number. */
+	private long[] docRooms = new long[1024];
+	private long[] docSeqs = new long[1024];
+	private long[] docTimes = new long[1024];
+	private int docCount;
+	/** Lines received before this were dropped to stay within maxDocuments, and are not added. */
+	private long oldestTime = Long.MIN_VALUE;
+
+	/** Key is global identifier; value is the sequence number of the first line in that room added live. */
+	private final HashMap<Long, Long> firstLiveSeq = new HashMap<Long, Long>();
+	/** Key is global identifier; value is the sequence number of the last line in that room added by a rebuild. */
+	private final HashMap<Long, Long> lastRebuiltSeq = new HashMap<Long, Long>();
+
+	public SearchIndex() {
+		this(DEFAULT_MAX_DOCUMENTS);
+	}
+
+	/**
+	 * @param maxDocuments Most lines to index before dropping the oldest.
+	 */
+	public SearchIndex(int maxDocuments) {
+		this.maxDocuments = Math.max(1, maxDocuments);
+	}
+
+	/**
+	 * Indexes a line as it is said.
+	 * @param globalIdentifier Room the line was said in.
+	 * @param line Line with its sequence number assigned.
+	 */
+	public void add(long globalIdentifier, LogLine line) {
+		lock.writeLock().lock();
+		try {
+			Long rebuilt = lastRebuiltSeq.get(globalIdentifier);
+			if (rebuilt != null && line.seq <= rebuilt) {
+				return;
+			}
+			if (!firstLiveSeq.containsKey(globalIdentifier)) {
+				firstLiveSeq.put(globalIdentifier, line.seq);
+			}
+			addDocument(globalIdentifier, line);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the messages in a room's history, up to the first line already added live. Reads in pages so that
+	 * searches can proceed in between.
+	 * @param globalIdentifier Room the history is of.
+	 * @param history History to index.
+	 */
+	public void rebuild(long globalIdentifier, HistoryStore history) {
+		final int page = 1000;
+		long next = 1;
+		while (true) {
+			List<LogLine> lines = history.read(next, page);
+			if (lines.isEmpty()) {
+				return;
+			}
+			lock.writeLock().lock();
+			try {
+				Long live = firstLiveSeq.get(globalIdentifier);
+				for (LogLine line : lines) {
+					if (live != null && line.seq >= live) {
+						return;
+					}
+					if (line.message) {
+						addDocument(globalIdentifier, line);
+					}
+					lastRebuiltSeq.put(globalIdentifier, line.seq);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			next = lines.get(lines.size() - 1).seq + 1;
+		}
+	}
+
+	/**
+	 * Finds lines containing every token in the query, newest first.
+	 * @param query Words to search for. Case is ignored.
+	 * @param globalIdentifier Room to limit results to, or null for all rooms.
+	 * @param offset Number of results to skip.
+	 * @param limit Maximum number of results to return.
+	 * @return Total number of matching lines, and the requested page of them.
+	 */
+	public Results search(String query, Long globalIdentifier, int offset, int limit) {
+		Set<String> tokens = tokenize(query);
+		if (tokens.isEmpty()) {
+			return new Results(0, Collections.<Hit>emptyList());
+		}
+		lock.readLock().lock();
+		try {
+			Postings[] lists = new Postings[tokens.size()];
+			int i = 0;
+			for (String token : tokens) {
+				lists[i] = postings.get(token);
+				if (lists[i] == null) {
+					return new Results(0, Collections.<Hit>emptyList());
+				}
+				i++;
+			}
+			//Walk the shortest list and look the rest up, so the cost depends on the rarest token.
+			Arrays.sort(lists, new Comparator<Postings>() {
+				public int compare(Postings a, Postings b) {
+					return a.size - b.size;
+				}
+			});
+
+			int[] matches = new int[lists[0].size];
+			int matchCount = 0;
+			for (int j = 0; j < lists[0].size; j++) {
+				int doc = lists[0].docs[j];
+				if (globalIdentifier != null && docRooms[doc] != globalIdentifier) {
+					continue;
+				}
+				boolean inAll = true;
+				for (int k = 1; k < lists.length && inAll; k++) {
+					inAll = Arrays.binarySearch(lists[k].docs, 0, lists[k].size, doc) >= 0;
+				}
+				if (inAll) {
+					matches[matchCount++] = doc;
+				}
+			}
+
+			//Documents from a rebuild come after those added live, so order by time rather than number.
+			Integer[] ordered = new Integer[matchCount];
+			for (int j = 0; j < matchCount; j++) {
+				ordered[j] = matches[j];
+			}
+			Arrays.sort(ordered, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					long timeA = docTimes[a];
+					long timeB = docTimes[b];
+					return timeA > timeB ? -1 : (timeA == timeB ? b.compareTo(a) : 1);
+				}
+			});
+
+			List<Hit> hits = new ArrayList<Hit>();
+			for (int j = offset; j < matchCount && j < offset + limit; j++) {
+				int doc = ordered[j];
+				hits.add(new Hit(docRooms[doc], docSeqs[doc], docTimes[doc]));
+			}
+			return new Results(matchCount, hits);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of lines indexed.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return docCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Splits text into lower case words: runs of letters and digits.
+	 * @param text Text to split.
+	 * @return Distinct tokens in the order they first appear.
+	 */
+	public static Set<String> tokenize(String text) {
+		Set<String> tokens = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start == -1) {
+				start = i;
+			} else if (!wordChar && start != -1) {
+				if (i - start <= MAX_TOKEN_LENGTH) {
+					tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				}
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Adds a document for a line, unless it is older than those dropped. Must be called with the write lock held.
+	 */
+	private void addDocument(long globalIdentifier, LogLine line) {
+		if (line.timeReceived < oldestTime) {
+			return;
+		}
+		if (docCount == docRooms.length) {
+			docRooms = Arrays.copyOf(docRooms, docCount * 2);
+			docSeqs = Arrays.copyOf(docSeqs, docCount * 2);
+			docTimes = Arrays.copyOf(docTimes, docCount * 2);
+		}
+		int doc = docCount++;
+		docRooms[doc] = globalIdentifier;
+		docSeqs[doc] = line.seq;
+		docTimes[doc] = line.timeReceived;
+		for (String token : tokenize(line.text)) {
+			Postings list = postings.get(token);
+			if (list == null) {
+				list = new Postings();
+				postings.put(token, list);
+			}
+			list.add(doc);
+		}
+		if (docCount > maxDocuments) {
+			dropOldest(docCount - maxDocuments * 3 / 4);
+		}
+	}
+
+	/**
+	 * Drops the documents received earliest and renumbers the rest, keeping their order so postings stay sorted.
+	 * Must be called with the write lock held.
+	 * @param count Number of documents to drop.
+	 */
+	private void dropOldest(int count) {
+		long[] times = Arrays.copyOf(docTimes, docCount);
+		Arrays.sort(times);
+		long cutoff = times[count];
+		//Documents received at the cutoff are dropped too, up to count, so that ties cannot keep too many.
+		int dropAtCutoff = count;
+		for (int i = 0; i < count; i++) {
+			if (times[i] < cutoff) {
+				dropAtCutoff--;
+			}
+		}
+
+		int[] renumbered = new int[docCount];
+		int kept = 0;
+		for (int doc = 0; doc < docCount; doc++) {
+			if (docTimes[doc] < cutoff || (docTimes[doc] == cutoff && dropAtCutoff-- > 0)) {
+				renumbered[doc] = -1;
+				continue;
+			}
+			renumbered[doc] = kept;
+			docRooms[kept] = docRooms[doc];
+			docSeqs[kept] = docSeqs[doc];
+			docTimes[kept] = docTimes[doc];
+			kept++;
+		}
+		docCount = kept;
+		oldestTime = cutoff;
+
+		Iterator<Postings> lists = postings.values().iterator();
+		while (lists.hasNext()) {
+			Postings list = lists.next();
+			list.renumber(renumbered);
+			if (list.size == 0) {
+				lists.remove();
+			}
+		}
+		Logger.normal(this, "Dropped the " + count + " oldest of " + (kept + count) + " indexed messages");
+	}
+
+	/**
+	 * Ascending document numbers containing a token. Documents are only ever appended, so adding keeps it sorted.
+	 */
+	private static class Postings {
+		public int[] docs = new int[4];
+		public int size;
+
+		public void add(int doc) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+			}
+			docs[size++] = doc;
+		}
+
+		/**
+		 * @param renumbered New number of each document, or -1 if it was dropped. Must not change the order.
+		 */
+		public void renumber(int[] renumbered) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				int doc = renumbered[docs[i]];
+				if (doc != -1) {
+					docs[kept++] = doc;
+				}
+			}
+			size = kept;
+			if (size < docs.length / 4) {
+				docs = Arrays.copyOf(docs, Math.max(4, size * 2));
+			}
+		}
+	}
+
+	/**
+	 * A matching line.
+	 */
+	public static class Hit {
+		public final long globalIdentifier;
+		public final long seq;
+		public final long timeReceived;
+
+		Hit(long globalIdentifier, long seq, long timeReceived) {
+			this.globalIdentifier = globalIdentifier;
+			this.seq = seq;
+			this.timeReceived = timeReceived;
+		}
+	}
+
+	/**
+	 * A page of search results.
+	 */
+	public static class Results {
+		/** Number of matching lines in total. */
+		public final int total;
+		/** The requested page of matches, newest first. */
+		public final List<Hit> hits;
+
+		Results(int total, List<Hit> hits) {
+			this.total = total;
+			this.hits = hits;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package plugins.N2NChat.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel: many timeouts kept in a fixed ring of slots, one per tick, so that advancing the clock only
+ * looks at the slot for each tick passed rather than at every timeout. A timeout due further away than one turn of
+ * the ring waits in its slot until the turn it is due.
+ * <p>
+ * The wheel keeps no thread of its own; its owner calls advance() once a tick. Not thread-safe.
+ * @param <T> What is due when a timeout expires.
+ */
+public class TimerWheel<T> {
+
+	/** Default length of a tick in milliseconds. */
+	public static final long DEFAULT_TICK = 1000;
+
+	/** Default number of slots, so that one turn of the ring at the default tick is a little over eight minutes. */
+	public static final int DEFAULT_SLOTS = 512;
+
+	private static class Timeout<T> {
+		final T item;
+		final long deadline;
+
+		Timeout(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tick;
+	private final List<List<Timeout<T>>> slots;
+	/** The last tick advanced past. Timeouts due up to its end have been returned. */
+	private long current;
+	private int size;
+
+	/**
+	 * @param tick Length of a tick in milliseconds. Timeouts expire at most this late.
+	 * @param slots Number of slots in the ring.
+	 * @param now Current time in milliseconds.
+	 */
+	public TimerWheel(long tick, int slots, long now) {
+		this.tick = tick;
+		this.slots = new ArrayList<List<Timeout<T>>>(slots);
+		for (int i = 0; i < slots; i++) {
+			this.slots.add(new ArrayList<Timeout<T>>());
+		}
+		this.current = now / tick;
+	}
+
+	/**
+	 * @param item What is due when the timeout expires.
+	 * @param deadline Time in milliseconds it expires. One already past expires on the next tick.
+	 */
+	public void schedule(T item, long deadline) {
+		long due = Math.max(deadline / tick, current + 1);
+		slots.get((int)(due % slots.size())).add(new Timeout<T>(item, deadline));
+		size++;
+	}
+
+	/**
+	 * Moves the clock forward, expiring every timeout due by then.
+	 * @param now Current time in milliseconds.
+	 * @return What was due, in the order of the ticks they expired on.
+	 */
+	public List<T> advance(long now) {
+		List<T> expired = new ArrayList<T>();
+		long target = now / tick;
+		//One turn of the ring visits every slot, so a longer gap need not be walked tick by tick.
+		long from = Math.max(current + 1, target - slots.size() + 1);
+		for (long t = from; t <= target; t++) {
+			for (Iterator<Timeout<T>> it = slots.get((int)(t % slots.size())).iterator(); it.hasNext(); ) {
+				Timeout<T> timeout = it.next();
+				if (timeout.deadline / tick <= target) {
+					expired.add(timeout.item);
+					it.remove();
+					size--;
+				}
+			}
+		}
+		current = Math.max(current, target);
+		return expired;
+	}
+
+	/**
+	 * @return Number of timeouts not yet expired.
+	 */
+	public int size() {
+		return size;
+	}
+}
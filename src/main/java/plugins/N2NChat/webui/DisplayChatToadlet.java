@@ -9,17 +9,29 @@ import freenet.pluginmanager.PluginRespirator;
 import freenet.support.Base64;
 import freenet.support.HTMLNode;
 import freenet.support.IllegalBase64Exception;
+import freenet.support.Logger;
 import freenet.support.MultiValueTable;
 import freenet.support.api.HTTPRequest;
 
 import plugins.N2NChat.core.ByteArray;
 import plugins.N2NChat.core.ChatRoom;
+import plugins.N2NChat.core.LatencyHistogram;
+import plugins.N2NChat.core.LogLine;
 import plugins.N2NChat.core.N2NChatPlugin;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 
@@ -38,6 +50,18 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 
 	public static String PATH = "/n2n-chat/display/";
 
+	/** Longest time in milliseconds an update request is held open waiting for something to change. */
+	private static final long UPDATE_TIMEOUT = 30 * 1000;
+
+	/** How often in milliseconds a held update request checks for changes the room is not notified of. */
+	private static final long UPDATE_RECHECK = 5 * 1000;
+
+	/** Most lines returned by one request for history. */
+	private static final int HISTORY_PAGE = 100;
+
+	/** Longest time in milliseconds to wait for the room to send one's own message before answering busy. */
+	private static final long SEND_TIMEOUT = 10 * 1000;
+
 	public String path() {
 		return PATH;
 	}
@@ -67,8 +91,56 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 			return;
 		}
 
+		final ChatRoom room = chatPlugin.getRoom(globalIdentifier);
+		if (room == null) {
+			//Left since the check above.
+			super.sendErrorPage(ctx, 500, "Nonexistent room", "The requested room does not exist.");
+			return;
+		}
 		if (request.isPartSet("message") && !request.getPartAsStringFailsafe("message", 4096).isEmpty()) {
-			chatPlugin.getRoom(globalIdentifier).sendOwnMessage(request.getPartAsStringFailsafe("message", 4096));
+			final String message = request.getPartAsStringFailsafe("message", 4096);
+			//Waits for the room's worker so that the page can be told if the message was not sent.
+			Future<Boolean> sent = room.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return room.sendOwnMessage(message);
+				}
+			});
+			try {
+				if (!sent.get(SEND_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					sendNotSent(ctx, "queueFull");
+					return;
+				}
+			} catch (TimeoutException e) {
+				//If it has not started it never will, so the message was not sent. If it has, it will finish.
+				if (sent.cancel(false)) {
+					Logger.warning(this, "Room " + globalIdentifier + " did not send a message within " + SEND_TIMEOUT +
+					        " ms; cancelled it");
+					sendNotSent(ctx, "roomBusy");
+					return;
+				}
+			} catch (CancellationException e) {
+				//Dropped because the plugin is unloading.
+				sendNotSent(ctx, "roomBusy");
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				sendNotSent(ctx, "queueFull");
+				return;
+			} catch (ExecutionException e) {
+				Logger.error(this, "Failed to send message in room " + globalIdentifier, e.getCause());
+				super.sendErrorPage(ctx, 500, "Internal error", "The message could not be sent.");
+				return;
+			}
+			writeHTMLReply(ctx, 204, "No Content", "");
+			return;
+		} else if (request.isPartSet("typing")) {
+			//Best effort; nothing is reported back if it is dropped.
+			final boolean typing = request.getPartAsStringFailsafe("typing", 8).equals("true");
+			room.post(new Runnable() {
+				public void run() {
+					room.setTyping(typing);
+				}
+			});
 			writeHTMLReply(ctx, 204, "No Content", "");
 			return;
 		} else if (request.isPartSet("invite") && !request.getPartAsStringFailsafe("invite", 4096).isEmpty()) {
@@ -86,13 +158,21 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 					super.sendErrorPage(ctx, 500, "Invalid public key hash", "A peer with that hash does not exist.");
 					return;
 				}
-				ChatRoom chatRoom = chatPlugin.getRoom(globalIdentifier);
-				//Invitation already exists, retract it.
-				if (chatRoom.inviteSentTo(new ByteArray(pubKeyHash))) {
-					chatRoom.sendInviteRetract(peerNode);
-				} else {
-					chatRoom.sendInviteOffer(peerNode, peerNode.getName());
+				if (chatPlugin.chatSender().isFull(peerNode)) {
+					super.sendErrorPage(ctx, 503, l10n("queueFullTitle"), l10n("queueFull"));
+					return;
 				}
+				final DarknetPeerNode invitee = peerNode;
+				room.post(new Runnable() {
+					public void run() {
+						//Invitation already exists, retract it.
+						if (room.inviteSentTo(new ByteArray(invitee.peerECDSAPubKeyHash))) {
+							room.sendInviteRetract(invitee);
+						} else {
+							room.sendInviteOffer(invitee, invitee.getName());
+						}
+					}
+				});
 				writeHTMLReply(ctx, 204, "No Content", "");
 				return;
 			} catch (IllegalBase64Exception e) {
@@ -103,6 +183,15 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 		super.sendErrorPage(ctx, 500, "Argument error", "Not enough recognized arguments were provided to do anything.");
 	}
 
+	/**
+	 * Answers a message that was not sent with why, as text for display.js to show.
+	 * @param ctx Context to reply in.
+	 * @param key Key of the reason, with its title under the same key followed by "Title".
+	 */
+	private void sendNotSent(ToadletContext ctx, String key) throws ToadletContextClosedException, IOException {
+		writeReply(ctx, 503, "text/plain; charset=utf-8", l10n(key + "Title"), l10n(key));
+	}
+
 	private void selfRefresh(long globalIdentifier, ToadletContext ctx) throws ToadletContextClosedException, IOException{
 		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
 		headers.put("Location", PATH+"?room="+globalIdentifier);
@@ -132,53 +221,47 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 			return;
 		}
 
-		//Only messages have been requested.
-		if (request.isParameterSet("messagesPane")) {
-			//Initial load is performed in first GET. Anything AJAX need only be done if further changes occur.
-			HTMLNode pane = chatRoom.getLog(true);
-			if (pane != null) {
-				writeHTMLReply(ctx, 200, "OK", null, pane.generate());
-			} else {
-				writeHTMLReply(ctx, 304, "Not Modified", "");
-			}
+		//Initial load is performed in first GET. Anything AJAX need only be done if further changes occur.
+		if (request.isParameterSet("updates")) {
+			sendUpdates(chatRoom, request, ctx);
 			return;
-		} else if (request.isParameterSet("participantsList")) {
-			HTMLNode pane = chatRoom.getParticipantListing(true);
-			if (pane != null) {
-				writeHTMLReply(ctx, 200, "OK", null, pane.generate());
-			} else {
-				writeHTMLReply(ctx, 304, "Not Modified", "");
-			}
+		} else if (request.isParameterSet("history")) {
+			sendHistory(chatRoom, request, ctx);
 			return;
-		} else if (request.isParameterSet("inviteDropDown")) {
-			ArrayList<DarknetPeerNode> peers = chatRoom.invitablePeers(node.getDarknetConnections(), true);
-			if (peers != null) {
-				writeHTMLReply(ctx, 200, "OK", null, generateInviteOptions(ctx, peers));
-			} else {
-				writeHTMLReply(ctx, 304, "Not Modified", "");
-			}
+		} else if (request.isParameterSet("latency")) {
+			sendLatency(chatRoom, ctx);
 			return;
 		}
 
 		PageNode pn = ctx.getPageMaker().getPageNode(chatRoom.getRoomName(), ctx);
-		pn.addCustomStyleSheet("/n2n-chat/static/css/display.css");
+		StaticResourceToadlet staticResources = chatPlugin.staticResources();
+		pn.addCustomStyleSheet(staticResources.url("css/display.css"));
 		pn.headNode.addChild("script",
 		        new String[] { "type", "src" },
-		        new String[] { "text/javascript", "/n2n-chat/static/js/jquery.min.js"});
+		        new String[] { "text/javascript", staticResources.url("js/jquery.min.js")});
 		pn.headNode.addChild("script",
 		        new String[] { "type", "src" },
-		        new String[] { "text/javascript", "/n2n-chat/static/js/display.js"});
+		        new String[] { "text/javascript", staticResources.url("js/display.js")});
+
+		//Strings display.js needs to render the panes.
+		pn.content.addChild("div",
+		        new String[] { "id", "style", "data-l10n" },
+		        new String[] { "chat-l10n", "display:none;", scriptStrings() });
 
-		//Add message display.
-		pn.content.addChild("div", "id", "messages-pane").addChild(chatRoom.getLog(false));
+		//Add message display. display.js fills in this and the other panes from the updates API.
+		//TODO: What size should this box be? Will the automatic size be reasonable?
+		//TODO: Likely full width with limited height.
+		HTMLNode messagesPane = pn.content.addChild("div", "id", "messages-pane");
+		messagesPane.addChild("a", new String[] { "id", "href" }, new String[] { "load-older", "#" },
+		        l10n("loadOlder"));
+		messagesPane.addChild("ul", "class", "list-pane");
 
 		//Add list of current participants.
-		pn.content.addChild("div", "id", "participants-list").addChild(chatRoom.getParticipantListing(false));
+		pn.content.addChild("div", "id", "participants-list").addChild("ul", "class", "list-pane");
 
 		//Drop-down to invite those not already participating, or retract an existing invitation.
-		ArrayList<DarknetPeerNode> invitablePeers = chatRoom.invitablePeers(node.getDarknetConnections(), false);
 		HTMLNode inviteContainer = pn.content.addChild("div", "id", "invite-container");
-		inviteContainer.addChild(generateInviteDropdown(ctx, invitablePeers, globalIdentifier));
+		inviteContainer.addChild(generateInviteDropdown(ctx, globalIdentifier));
 
 		//Add message sending area.
 		HTMLNode messageDiv = pn.content.addChild("div", "id", "message-form");
@@ -187,37 +270,258 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 		        new String[] { "text", "message", "width:100%;" });
 		messageEntry.addChild("input", new String[] { "type", "name", "value" },
 		        new String[] { "hidden", "room", String.valueOf(globalIdentifier)} );
+		messageDiv.addChild("div", "id", "typing-notice");
+		messageDiv.addChild("div", "id", "send-notice");
 		writeHTMLReply(ctx, 200, "OK", null, pn.outer.generate());
 	}
 
-	private String generateInviteOptions(ToadletContext ctx, ArrayList<DarknetPeerNode> invitablePeers) {
-		StringBuilder options = new StringBuilder();
+	/**
+	 * Holds the request open until the room's messages, participants, or who is typing change, the invitable peers
+	 * change, or UPDATE_TIMEOUT passes. Replies with everything that changed at once, or 304 if nothing did.
+	 * The request gives what the page already has: the sequence number of its last line as "since", the
+	 * participants listing version as "participants", the typing version as "typing", and the invitable peers
+	 * version as "invites".
+	 * @param chatRoom Room to report on.
+	 * @param request Request with the page's current versions.
+	 * @param ctx Context to reply on.
+	 */
+	private void sendUpdates(ChatRoom chatRoom, HTTPRequest request, ToadletContext ctx) throws
+		ToadletContextClosedException, IOException {
+
+		long since = request.getLongParam("since", 0);
+		long participantsVersion = request.getLongParam("participants", -1);
+		long typingVersion = request.getLongParam("typing", -1);
+		String invites = request.getParam("invites");
+		long deadline = System.currentTimeMillis() + UPDATE_TIMEOUT;
+
+		ArrayList<DarknetPeerNode> invitablePeers = chatRoom.invitablePeers(node.getDarknetConnections());
+		try {
+			while (chatRoom.getLastSeq() == since && chatRoom.getParticipantsVersion() == participantsVersion &&
+			        chatRoom.getTypingVersion() == typingVersion && invitesVersion(invitablePeers).equals(invites)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					writeHTMLReply(ctx, 304, "Not Modified", "");
+					return;
+				}
+				//The room is not told when darknet peers change, so wake up now and then to check.
+				chatRoom.waitForChange(since, participantsVersion, typingVersion,
+				        Math.min(remaining, UPDATE_RECHECK));
+				invitablePeers = chatRoom.invitablePeers(node.getDarknetConnections());
+			}
+		} catch (InterruptedException e) {
+			writeHTMLReply(ctx, 304, "Not Modified", "");
+			return;
+		}
+
+		JSONWriter json = new JSONWriter().beginObject();
+		if (chatRoom.getLastSeq() != since) {
+			List<LogLine> lines = chatRoom.getLogSince(since);
+			//The page missed lines that are no longer held, so it has to start over.
+			boolean reset = lines == null;
+			if (reset) {
+				lines = chatRoom.getLog();
+			}
+			json.key("lines").beginObject().key("reset").value(reset).key("items").beginArray();
+			for (LogLine line : lines) {
+				writeLine(json, line);
+			}
+			json.endArray().endObject();
+		}
+		//Read the version before the listing so that a change in between is sent again next time.
+		long currentParticipantsVersion = chatRoom.getParticipantsVersion();
+		if (currentParticipantsVersion != participantsVersion) {
+			json.key("participants").beginObject().key("version").value(currentParticipantsVersion);
+			json.key("items").beginArray();
+			for (ChatRoom.ParticipantRecord participant : chatRoom.getParticipantListing()) {
+				writeParticipant(json, participant);
+			}
+			json.endArray().endObject();
+		}
+		long currentTypingVersion = chatRoom.getTypingVersion();
+		if (currentTypingVersion != typingVersion) {
+			json.key("typing").beginObject().key("version").value(currentTypingVersion).key("items").beginArray();
+			for (String name : chatRoom.getTyping()) {
+				json.value(name);
+			}
+			json.endArray().endObject();
+		}
+		String currentInvites = invitesVersion(invitablePeers);
+		if (!currentInvites.equals(invites)) {
+			json.key("invites").beginObject().key("version").value(currentInvites).key("items").beginArray();
+			for (DarknetPeerNode peerNode : invitablePeers) {
+				json.beginObject()
+				        .key("key").value(Base64.encode(peerNode.peerECDSAPubKeyHash))
+				        .key("name").value(peerNode.getName())
+				        .endObject();
+			}
+			json.endArray().endObject();
+		}
+		byte[] reply = json.endObject().toBytes();
+		writeReply(ctx, 200, "application/json", "OK", reply, 0, reply.length);
+	}
+
+	/**
+	 * Replies with lines from the room's history that came before the line given as "before", for scrolling back
+	 * past what the room holds in memory. Lines are in the same form as in updates, oldest first; there are none
+	 * once the start of history is reached.
+	 * @param chatRoom Room to read history from.
+	 * @param request Request with the sequence number of the oldest line the page has.
+	 * @param ctx Context to reply on.
+	 */
+	private void sendHistory(ChatRoom chatRoom, HTTPRequest request, ToadletContext ctx) throws
+		ToadletContextClosedException, IOException {
+
+		long before = request.getLongParam("before", 0);
+		JSONWriter json = new JSONWriter().beginObject().key("items").beginArray();
+		if (before > 1) {
+			for (LogLine line : chatRoom.getHistoryBefore(before, HISTORY_PAGE)) {
+				writeLine(json, line);
+			}
+		}
+		byte[] reply = json.endArray().endObject().toBytes();
+		writeReply(ctx, 200, "application/json", "OK", reply, 0, reply.length);
+	}
+
+	/**
+	 * Replies with how long messages received in the room took: "byHops" from when they were sent by the number of
+	 * hops they took, and "byPeer" over their last hop by the participant that delivered them.
+	 * @param chatRoom Room to report on.
+	 * @param ctx Context to reply on.
+	 */
+	private void sendLatency(ChatRoom chatRoom, ToadletContext ctx) throws ToadletContextClosedException,
+		IOException {
+
+		JSONWriter json = new JSONWriter().beginObject().key("byHops").beginArray();
+		for (Map.Entry<Integer, LatencyHistogram> entry : new TreeMap<Integer, LatencyHistogram>(
+		        chatRoom.getLatencyByHops()).entrySet()) {
+			json.beginObject().key("hops").value(entry.getKey());
+			writeHistogram(json, entry.getValue());
+		}
+		json.endArray().key("byPeer").beginArray();
+		Map<ByteArray, LatencyHistogram> byPeer = chatRoom.getLatencyByPeer();
+		for (ChatRoom.ParticipantRecord participant : chatRoom.getParticipantListing()) {
+			LatencyHistogram histogram = participant.pubKeyHash == null ? null : byPeer.get(participant.pubKeyHash);
+			if (histogram != null) {
+				json.beginObject().key("name").value(participant.name)
+				        .key("key").value(Base64.encode(participant.pubKeyHash.getBytes()));
+				writeHistogram(json, histogram);
+			}
+		}
+		byte[] reply = json.endArray().endObject().toBytes();
+		writeReply(ctx, 200, "application/json", "OK", reply, 0, reply.length);
+	}
+
+	/**
+	 * Writes the statistics of a histogram into an object already begun, and ends it. "buckets" has the count in
+	 * each bucket, in the order of LatencyHistogram.BOUNDS.
+	 */
+	private static void writeHistogram(JSONWriter json, LatencyHistogram histogram) {
+		json.key("count").value(histogram.count()).key("mean").value(histogram.mean())
+		        .key("median").value(histogram.percentile(0.5)).key("p95").value(histogram.percentile(0.95))
+		        .key("max").value(histogram.max()).key("buckets").beginArray();
+		for (long count : histogram.counts()) {
+			json.value(count);
+		}
+		json.endArray().endObject();
+	}
+
+	/**
+	 * Writes a log line as an object with its sequence number, time received, and text. Lines about participants
+	 * also have the name, name styling, and the author's public key hash unless it is this node. Messages also have
+	 * the time they were composed.
+	 */
+	private static void writeLine(JSONWriter json, LogLine line) {
+		json.beginObject().key("seq").value(line.seq).key("time").value(line.timeReceived);
+		if (line.timeComposed != 0) {
+			json.key("composed").value(line.timeComposed);
+		}
+		if (line.author != null) {
+			json.key("author").value(Base64.encode(line.author.getBytes()));
+		}
+		if (!line.isSystemLine()) {
+			json.key("name").value(line.name).key("style").value(line.nameStyle);
+		}
+		json.key("text").value(line.text).endObject();
+	}
+
+	/**
+	 * Writes a participants listing entry as an object with the name and styling. This node is marked with "self"
+	 * and pending invites with "invited". Participants have their public key hash and the name and hash of the
+	 * peer their traffic goes through, and "direct" if that is the participant itself.
+	 */
+	private static void writeParticipant(JSONWriter json, ChatRoom.ParticipantRecord participant) {
+		json.beginObject().key("name").value(participant.name).key("style").value(participant.nameStyle);
+		if (participant.self) {
+			json.key("self").value(true);
+		} else {
+			json.key("key").value(Base64.encode(participant.pubKeyHash.getBytes()));
+		}
+		if (participant.invitePending) {
+			json.key("invited").value(true);
+		} else if (participant.routedBy != null) {
+			json.key("via").value(participant.routedByName)
+			        .key("viaKey").value(Base64.encode(participant.routedBy.getBytes()))
+			        .key("direct").value(participant.directlyConnected);
+			if (participant.backupRoutes != 0) {
+				json.key("backups").value(participant.backupRoutes);
+			}
+			if (participant.deliveryRetrying) {
+				json.key("retrying").value(true);
+			}
+			if (participant.undelivered != 0) {
+				json.key("undelivered").value(participant.undelivered);
+			}
+		}
+		json.endObject();
+	}
+
+	/**
+	 * @return Localized strings used by display.js as a JSON object. Placeholders are left in for the script to
+	 * fill in.
+	 */
+	private String scriptStrings() {
+		return new JSONWriter().beginObject()
+		        .key("composed").value(l10nTemplate("composed", "time"))
+		        .key("connectedDirectly").value(l10nTemplate("connectedDirectly", "nodeName", "nodeID"))
+		        .key("connectedThrough").value(l10nTemplate("connectedThrough", "nodeName", "nodeID", "pubKeyHash"))
+		        .key("participantsPresent").value(l10nTemplate("participantsPresent", "numberOf"))
+		        .key("invitePending").value(l10n("invitePending"))
+		        .key("queueFull").value(l10n("queueFull"))
+		        .key("backupRoutes").value(l10nTemplate("backupRoutes", "count"))
+		        .key("deliveryRetrying").value(l10n("deliveryRetrying"))
+		        .key("undelivered").value(l10nTemplate("undelivered", "count"))
+		        .key("you").value(l10n("you"))
+		        .key("typing").value(l10nTemplate("typing", "names"))
+		        .endObject().toString();
+	}
+
+	/**
+	 * @param invitablePeers Peers in the invite drop-down.
+	 * @return A short string which changes when the peers or their names do.
+	 */
+	private static String invitesVersion(ArrayList<DarknetPeerNode> invitablePeers) {
+		int hash = 1;
 		for (DarknetPeerNode peerNode : invitablePeers) {
-			options.append("<option value=\"").append(Base64.encode(peerNode.peerECDSAPubKeyHash)).
-			        append("\">").append(peerNode.getName()).append("</option>");
+			hash = 31 * hash + Arrays.hashCode(peerNode.peerECDSAPubKeyHash);
+			hash = 31 * hash + peerNode.getName().hashCode();
 		}
-		return options.toString();
+		return Integer.toHexString(hash);
 	}
 
 	/**
-	 * Generates a drop-down list of invitable peers.
+	 * Generates a drop-down list for invitable peers. display.js fills in the peers.
 	 * @param ctx ToadletContext used to generate the form.
-	 * @param invitablePeers Peers to put in the list.
 	 * @param globalIdentifier Global identifier of the room.
-	 * @return A drop-down list of invitable peers with a submit button.
+	 * @return An empty drop-down list with a submit button.
 	 */
-	private HTMLNode generateInviteDropdown(ToadletContext ctx, ArrayList<DarknetPeerNode> invitablePeers, long globalIdentifier) {
+	private HTMLNode generateInviteDropdown(ToadletContext ctx, long globalIdentifier) {
 		HTMLNode inviteDiv = new HTMLNode("div", "id", "invite-form");
 		HTMLNode inviteForm = ctx.addFormChild(inviteDiv, path(), "invite-participant");
 		inviteForm.addChild("input",
 		        new String[] { "type", "name", "value" },
 		        new String[] { "hidden", "room", String.valueOf(globalIdentifier) });
 
-		HTMLNode dropDown = inviteForm.addChild("select", "name", "invite");
-
-		for (DarknetPeerNode peerNode : invitablePeers) {
-			dropDown.addChild("option", "value", Base64.encode(peerNode.peerECDSAPubKeyHash), peerNode.getName());
-		}
+		inviteForm.addChild("select", "name", "invite");
 
 		inviteForm.addChild("input",
 		        new String[] { "type", "name", "value" },
@@ -230,4 +534,17 @@ public class DisplayChatToadlet extends Toadlet implements LinkEnabledCallback {
 	private String l10n(String key) {
 		return l10n.getBase().getString("room."+key);
 	}
+
+	/**
+	 * @param key Key to localize.
+	 * @param patterns Names of the placeholders in the string.
+	 * @return The localized string with its placeholders, such as ${time}, left in.
+	 */
+	private String l10nTemplate(String key, String... patterns) {
+		String[] placeholders = new String[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			placeholders[i] = "${" + patterns[i] + '}';
+		}
+		return l10n.getBase().getString("room."+key, patterns, placeholders);
+	}
 }
@@ -0,0 +1,134 @@
+package plugins.N2NChat.webui;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Minimal streaming JSON writer for the AJAX API. Commas are inserted automatically, so callers only open and close
+ * objects and arrays and write keys and values in order.
+ */
+public class JSONWriter {
+
+	private final StringBuilder out = new StringBuilder();
+
+	public JSONWriter beginObject() {
+		separate();
+		out.append('{');
+		return this;
+	}
+
+	public JSONWriter endObject() {
+		out.append('}');
+		return this;
+	}
+
+	public JSONWriter beginArray() {
+		separate();
+		out.append('[');
+		return this;
+	}
+
+	public JSONWriter endArray() {
+		out.append(']');
+		return this;
+	}
+
+	/**
+	 * Writes an object key. Must be followed by a value, object, or array.
+	 * @param key Name of the member.
+	 * @return This writer.
+	 */
+	public JSONWriter key(String key) {
+		separate();
+		appendString(key);
+		out.append(':');
+		return this;
+	}
+
+	/**
+	 * @param value String to write. Null is written as JSON null.
+	 * @return This writer.
+	 */
+	public JSONWriter value(String value) {
+		separate();
+		if (value == null) {
+			out.append("null");
+		} else {
+			appendString(value);
+		}
+		return this;
+	}
+
+	public JSONWriter value(long value) {
+		separate();
+		out.append(value);
+		return this;
+	}
+
+	public JSONWriter value(boolean value) {
+		separate();
+		out.append(value);
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return out.toString();
+	}
+
+	/**
+	 * @return The JSON written so far encoded as UTF-8.
+	 */
+	public byte[] toBytes() {
+		try {
+			return out.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("This JVM does not support UTF-8! Cannot encode JSON.");
+		}
+	}
+
+	/**
+	 * Adds a comma if something other than the start of a container or a key was written last.
+	 */
+	private void separate() {
+		if (out.length() == 0) {
+			return;
+		}
+		char last = out.charAt(out.length() - 1);
+		if (last != '{' && last != '[' && last != ':') {
+			out.append(',');
+		}
+	}
+
+	private void appendString(String string) {
+		out.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					//Escape control characters, and also < and the line separators so the output is safe to
+					//embed in HTML and script.
+					if (c < 0x20 || c == '<' || c == 0x2028 || c == 0x2029) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+}
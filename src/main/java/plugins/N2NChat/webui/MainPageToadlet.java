@@ -15,7 +15,7 @@ import plugins.N2NChat.core.ChatRoom;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -30,7 +30,7 @@ public class MainPageToadlet extends Toadlet implements LinkEnabledCallback {
 	private Node node;
 	private NodeClientCore clientCore;
 	private PluginRespirator pluginRespirator;
-	private HashMap<Long, N2NChatPlugin.chatInvite> receivedInvites;
+	private ConcurrentHashMap<Long, N2NChatPlugin.chatInvite> receivedInvites;
 	private PluginL10n l10n;
 	private HTMLNode invitationTable;
 	private boolean updatedInvites;
@@ -70,12 +70,17 @@ public class MainPageToadlet extends Toadlet implements LinkEnabledCallback {
 
 		if (request.isPartSet("disconnect")) {
 			long globalIdentifier = Long.parseLong(request.getPartAsStringFailsafe("globalIdentifier", 4096));
-			if (!chatPlugin.roomExists(globalIdentifier)) {
+			//No more frames are handed to the room once it is removed; the leaves go out when its mailbox gets to them.
+			final ChatRoom chatRoom = chatPlugin.removeChatRoom(globalIdentifier);
+			if (chatRoom == null) {
 				super.sendErrorPage(ctx, 403, l10n("invalidRoomTitle"), l10n("invalidRoom"));
 				return;
 			}
-			chatPlugin.getRoom(globalIdentifier).disconnect();
-			chatPlugin.removeChatRoom(globalIdentifier);
+			chatRoom.post(new Runnable() {
+				public void run() {
+					chatRoom.disconnect();
+				}
+			});
 		}
 
 		//TODO: Tell user about the maximum length of the room name instead of silently truncating.
@@ -105,11 +110,24 @@ public class MainPageToadlet extends Toadlet implements LinkEnabledCallback {
 				super.sendErrorPage(ctx, 403, l10n("invalidInviteTitle"), l10n("invalidInvite"));
 				return;
 			}
-			N2NChatPlugin.chatInvite invite = receivedInvites.get(globalIdentifier);
+			final N2NChatPlugin.chatInvite invite = receivedInvites.get(globalIdentifier);
+			if (chatPlugin.chatSender().isFull(invite.darkPeer)) {
+				super.sendErrorPage(ctx, 503, l10n("queueFullTitle"), l10n("queueFull"));
+				return;
+			}
 			//Create the new room.
 			chatPlugin.addChatRoom(globalIdentifier, invite.roomName, invite.username, invite.darkPeer);
 			//Then send invite acceptance.
-			N2NChatPlugin.sendInviteAccept(invite.darkPeer, globalIdentifier);
+			chatPlugin.sendInviteAccept(invite.darkPeer, globalIdentifier);
+			//Earlier history is only asked for if the user chose to.
+			if (request.isParameterSet("history")) {
+				final ChatRoom chatRoom = chatPlugin.getRoom(globalIdentifier);
+				chatRoom.post(new Runnable() {
+					public void run() {
+						chatRoom.requestHistory(invite.darkPeer);
+					}
+				});
+			}
 			//Invite is accepted and so no longer pending.
 			receivedInvites.remove(globalIdentifier);
 		} else if (request.isParameterSet("reject")) {
@@ -119,8 +137,12 @@ public class MainPageToadlet extends Toadlet implements LinkEnabledCallback {
 				super.sendErrorPage(ctx, 403, l10n("invalidInviteTitle"), l10n("invalidInvite"));
 				return;
 			}
+			if (chatPlugin.chatSender().isFull(receivedInvites.get(globalIdentifier).darkPeer)) {
+				super.sendErrorPage(ctx, 503, l10n("queueFullTitle"), l10n("queueFull"));
+				return;
+			}
 			//Send the inviting peer the invite rejection.
-			N2NChatPlugin.sendInviteReject(receivedInvites.get(globalIdentifier).darkPeer, globalIdentifier);
+			chatPlugin.sendInviteReject(receivedInvites.get(globalIdentifier).darkPeer, globalIdentifier);
 			//Invite is rejected and so no longer pending.
 			receivedInvites.remove(globalIdentifier);
 		} else if (request.isParameterSet("invitationTable")) {
@@ -137,13 +159,14 @@ public class MainPageToadlet extends Toadlet implements LinkEnabledCallback {
 		//List current chat rooms
 		PageMaker pm = ctx.getPageMaker();
 		PageNode pn = pm.getPageNode(l10n("chatRoomListing"), ctx);
-		pn.addCustomStyleSheet("/n2n-chat/static/css/main-page.css");
+		StaticResourceToadlet staticResources = chatPlugin.staticResources();
+		pn.addCustomStyleSheet(staticResources.url("css/main-page.css"));
 		pn.headNode.addChild("script",
 		        new String[] { "type", "src" },
-		        new String[] { "text/javascript", "/n2n-chat/static/js/jquery.min.js"});
+		        new String[] { "text/javascript", staticResources.url("js/jquery.min.js")});
 		pn.headNode.addChild("script",
 		        new String[] { "type", "src" },
-		        new String[] { "text/javascript", "/n2n-chat/static/js/main-page.js"});
+		        new String[] { "text/javascript", staticResources.url("js/main-page.js")});
 		HTMLNode content = pn.content;
 
 		if (chatPlugin.noRooms()) {
@@ -214,7 +237,10 @@ public class MainPageToadlet extends Toadlet implements LinkEnabledCallback {
 			entry.addChild("td", invite.roomName);
 			entry.addChild("td", invite.username);
 			entry.addChild("td", invite.darkPeer.getName());
-			entry.addChild("td").addChild("a", "href", path()+"?accept="+globalIdentifier, l10n("accept") );
+			HTMLNode accept = entry.addChild("td");
+			accept.addChild("a", "href", path()+"?accept="+globalIdentifier, l10n("accept") );
+			accept.addChild("#", " ");
+			accept.addChild("a", "href", path()+"?accept="+globalIdentifier+"&history", l10n("acceptWithHistory") );
 			entry.addChild("td").addChild("a", "href", path()+"?reject="+globalIdentifier, l10n("reject") );
 		}
 
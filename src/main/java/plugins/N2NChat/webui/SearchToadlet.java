@@ -0,0 +1,241 @@
+package plugins.N2NChat.webui;
+
+import freenet.clients.http.*;
+import freenet.l10n.NodeL10n;
+import freenet.l10n.PluginL10n;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.HTMLNode;
+import freenet.support.api.HTTPRequest;
+
+import plugins.N2NChat.core.ChatRoom;
+import plugins.N2NChat.core.LogLine;
+import plugins.N2NChat.core.N2NChatPlugin;
+import plugins.N2NChat.core.SearchIndex;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Searches messages in all rooms this node has history for, including rooms it has left. Results come from the
+ * plugin's SearchIndex, newest first, a page at a time, and can be limited to one room.
+ */
+public class SearchToadlet extends Toadlet implements LinkEnabledCallback {
+
+	public static String PATH = "/n2n-chat/search/";
+
+	/** Results shown per page. */
+	private static final int PAGE_SIZE = 25;
+
+	/** Longest query accepted, in characters. */
+	private static final int QUERY_MAX_LENGTH = 1024;
+
+	private PluginL10n l10n;
+	private PluginRespirator pluginRespirator;
+	private N2NChatPlugin chatPlugin;
+
+	public SearchToadlet(N2NChatPlugin chatPlugin) {
+		super(chatPlugin.pluginRespirator().getHLSimpleClient());
+		this.l10n = chatPlugin.l10n();
+		this.pluginRespirator = chatPlugin.pluginRespirator();
+		this.chatPlugin = chatPlugin;
+	}
+
+	public String path() {
+		return PATH;
+	}
+
+	public boolean isEnabled (ToadletContext ctx) {
+		return (!pluginRespirator.getToadletContainer().publicGatewayMode()) ||
+		        ((ctx != null) && ctx.isAllowedFullAccess());
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws
+	        ToadletContextClosedException, IOException, RedirectException {
+
+		if (!ctx.isAllowedFullAccess()) {
+			super.sendErrorPage(ctx, 403, "Unauthorized", NodeL10n.getBase()
+			        .getString("Toadlet.unauthorized"));
+			return;
+		}
+
+		String query = request.getParam("query", "");
+		if (query.length() > QUERY_MAX_LENGTH) {
+			query = query.substring(0, QUERY_MAX_LENGTH);
+		}
+		Long roomFilter = null;
+		if (!request.getParam("room").isEmpty()) {
+			try {
+				roomFilter = Long.valueOf(request.getParam("room"));
+			} catch (NumberFormatException e) {
+				super.sendErrorPage(ctx, 400, l10n("invalidRoomTitle"), l10n("invalidRoom"));
+				return;
+			}
+		}
+		int page = Math.max(0, request.getIntParam("page", 0));
+
+		PageMaker pm = ctx.getPageMaker();
+		PageNode pn = pm.getPageNode(l10n("title"), ctx);
+		pn.addCustomStyleSheet(chatPlugin.staticResources().url("css/main-page.css"));
+		HTMLNode content = pn.content;
+
+		Map<Long, String> roomNames = roomNames();
+
+		//Search form. It is a GET so that result pages can be linked and bookmarked.
+		HTMLNode form = content.addChild("form",
+		        new String[] { "action", "method" },
+		        new String[] { path(), "get" });
+		form.addChild("input",
+		        new String[] { "type", "name", "value", "size" },
+		        new String[] { "text", "query", query, "40" });
+		HTMLNode roomSelect = form.addChild("select", "name", "room");
+		addOption(roomSelect, "", l10n("allRooms"), roomFilter == null);
+		for (Map.Entry<Long, String> room : sortedByName(roomNames)) {
+			addOption(roomSelect, String.valueOf(room.getKey()), room.getValue(),
+			        room.getKey().equals(roomFilter));
+		}
+		form.addChild("input",
+		        new String[] { "type", "value" },
+		        new String[] { "submit", l10n("search") });
+
+		if (!query.trim().isEmpty()) {
+			SearchIndex.Results results = chatPlugin.searchIndex().search(query, roomFilter, page * PAGE_SIZE,
+			        PAGE_SIZE);
+			InfoboxNode resultsBox = pm.getInfobox(l10n("results",
+			        new String[] { "count", "query" },
+			        new String[] { String.valueOf(results.total), query }));
+			content.addChild(resultsBox.outer);
+			addResults(resultsBox.content, results, roomNames);
+			addPaging(resultsBox.content, results.total, page, query, roomFilter);
+		}
+
+		writeHTMLReply(ctx, 200, "OK", null, pn.outer.generate());
+	}
+
+	/**
+	 * Lists results as [ date time ] room: name: text, with the room linked if this node is still in it.
+	 */
+	private void addResults(HTMLNode parent, SearchIndex.Results results, Map<Long, String> roomNames) {
+		if (results.hits.isEmpty()) {
+			parent.addChild("p", l10n("noResults"));
+			return;
+		}
+		//Ex: June 01, 2011 04:48:30 PM
+		SimpleDateFormat timeFormat = new SimpleDateFormat("MMMM dd, yyyy hh:mm:ss a");
+		HTMLNode list = parent.addChild("ul",
+		        new String[] { "class", "style" },
+		        new String[] { "search-results", "list-style-type:none;" });
+		List<LogLine> lines = chatPlugin.readHits(results.hits);
+		for (int i = 0; i < results.hits.size(); i++) {
+			SearchIndex.Hit hit = results.hits.get(i);
+			LogLine line = lines.get(i);
+			HTMLNode item = list.addChild("li");
+			item.addChild("#", "[ " + timeFormat.format(new Date(hit.timeReceived)) + " ] ");
+			String roomName = roomNames.get(hit.globalIdentifier);
+			if (chatPlugin.roomExists(hit.globalIdentifier)) {
+				item.addChild("a", "href", DisplayChatToadlet.PATH + "?room=" + hit.globalIdentifier, roomName);
+			} else {
+				item.addChild("i", roomName);
+			}
+			item.addChild("#", " ");
+			if (line == null) {
+				//Kept in the page so that the pages still line up with the total.
+				item.addChild("i", l10n("unreadable"));
+				continue;
+			}
+			item.addChild("div", "style", line.nameStyle + "display:inline;", line.name);
+			item.addChild("#", line.text);
+		}
+	}
+
+	private void addPaging(HTMLNode parent, int total, int page, String query, Long roomFilter) {
+		if (total <= PAGE_SIZE) {
+			return;
+		}
+		HTMLNode paging = parent.addChild("p");
+		if (page > 0) {
+			paging.addChild("a", "href", pageLink(query, roomFilter, page - 1), l10n("previous"));
+			paging.addChild("#", " ");
+		}
+		paging.addChild("#", l10n("page",
+		        new String[] { "page", "pages" },
+		        new String[] { String.valueOf(page + 1), String.valueOf((total + PAGE_SIZE - 1) / PAGE_SIZE) }));
+		if ((page + 1) * PAGE_SIZE < total) {
+			paging.addChild("#", " ");
+			paging.addChild("a", "href", pageLink(query, roomFilter, page + 1), l10n("next"));
+		}
+	}
+
+	private String pageLink(String query, Long roomFilter, int page) {
+		return path() + "?query=" + encode(query) + "&room=" + (roomFilter == null ? "" : roomFilter) +
+		        "&page=" + page;
+	}
+
+	private static String encode(String string) {
+		try {
+			return URLEncoder.encode(string, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("This JVM does not support UTF-8! Cannot encode URL.");
+		}
+	}
+
+	/**
+	 * @return Display name of every room with history or that this node is in. Rooms this node is in use their
+	 * current name; others use the name recorded in their history.
+	 */
+	private Map<Long, String> roomNames() {
+		HashMap<Long, String> names = new HashMap<Long, String>();
+		for (Map.Entry<Long, String> room : chatPlugin.getHistoryRooms().entrySet()) {
+			String name = room.getValue();
+			if (name == null) {
+				name = l10n("unknownRoom", "globalIdentifier", String.valueOf(room.getKey()));
+			}
+			names.put(room.getKey(), name);
+		}
+		for (ChatRoom chatRoom : chatPlugin.getRooms()) {
+			names.put(chatRoom.getGlobalIdentifier(), chatRoom.getRoomName());
+		}
+		return names;
+	}
+
+	private static List<Map.Entry<Long, String>> sortedByName(Map<Long, String> roomNames) {
+		List<Map.Entry<Long, String>> rooms = new ArrayList<Map.Entry<Long, String>>(roomNames.entrySet());
+		Collections.sort(rooms, new Comparator<Map.Entry<Long, String>>() {
+			public int compare(Map.Entry<Long, String> a, Map.Entry<Long, String> b) {
+				return a.getValue().compareToIgnoreCase(b.getValue());
+			}
+		});
+		return rooms;
+	}
+
+	private static void addOption(HTMLNode select, String value, String label, boolean selected) {
+		if (selected) {
+			select.addChild("option",
+			        new String[] { "value", "selected" },
+			        new String[] { value, "selected" }, label);
+		} else {
+			select.addChild("option", "value", value, label);
+		}
+	}
+
+	private String l10n(String key) {
+		return l10n.getBase().getString("search."+key);
+	}
+
+	private String l10n(String key, String pattern, String value) {
+		return l10n.getBase().getString("search."+key, pattern, value);
+	}
+
+	private String l10n(String key, String[] patterns, String[] values) {
+		return l10n.getBase().getString("search."+key, patterns, values);
+	}
+}
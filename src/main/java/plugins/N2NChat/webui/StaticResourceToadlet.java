@@ -6,23 +6,50 @@ import freenet.clients.http.Toadlet;
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+import freenet.support.MultiValueTable;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.Closer;
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
-import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Returns static files . Based off of Bombe's CSSWebInterfaceToadlet.
+ * Returns static files . Based off of Bombe's CSSWebInterfaceToadlet. All files are read and filtered once when the
+ * toadlet is created and served from memory with an ETag. Pages link to them through url(), which includes a version
+ * derived from the content, so browsers can cache them indefinitely and still pick up changes after an upgrade.
  */
 public class StaticResourceToadlet extends Toadlet {
 
 	public static String PATH = "/n2n-chat/static/";
 
+	/** Resources packaged within the .jar that can be served, relative to its root. */
+	private static final String[] RESOURCES = {
+	        "css/display.css",
+	        "css/main-page.css",
+	        "js/display.js",
+	        "js/jquery.min.js",
+	        "js/main-page.js" };
+
+	/** One year in seconds. Resources are versioned by URL, so they never need revalidating. */
+	private static final String CACHE_CONTROL = "public, max-age=31536000";
+
+	/** Key is the file name relative to PATH. */
+	private final Map<String, Resource> resources;
+
+	/** Used as the last modified time of every resource. */
+	private final Date loaded;
+
 	@Override
 	public String path() {
 		return PATH;
@@ -34,34 +61,96 @@ public class StaticResourceToadlet extends Toadlet {
 	 */
 	public StaticResourceToadlet(PluginRespirator pr) {
 		super(pr.getHLSimpleClient());
+		loaded = new Date();
+		HashMap<String, Resource> loading = new HashMap<String, Resource>();
+		for (String fileName : RESOURCES) {
+			try {
+				loading.put(fileName, load(fileName));
+			} catch (IOException e) {
+				Logger.error(this, "Failed to load static resource " + fileName, e);
+			}
+		}
+		resources = Collections.unmodifiableMap(loading);
+	}
+
+	/**
+	 * Gets the URL to use for a resource in pages. It includes the resource's version so that a cached copy is
+	 * only used while the content is unchanged.
+	 * @param fileName File name relative to PATH. Ex: js/display.js
+	 * @return URL of the resource.
+	 */
+	public String url(String fileName) {
+		Resource resource = resources.get(fileName);
+		if (resource == null) {
+			return PATH + fileName;
+		}
+		return PATH + fileName + "?v=" + resource.version;
 	}
 
 	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
+		Resource resource = resources.get(uri.getPath().substring(PATH.length()));
+		if (resource == null) {
+			sendErrorPage(ctx, 404, "Not Found", "The requested resource does not exist.");
+			return;
+		}
+
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("ETag", resource.eTag);
+		headers.put("Cache-Control", CACHE_CONTROL);
+
+		String ifNoneMatch = ctx.getHeaders().get("if-none-match");
+		if (ifNoneMatch != null && matches(ifNoneMatch, resource.eTag)) {
+			ctx.sendReplyHeadersStatic(304, "Not Modified", headers, resource.mimeType, 0, loaded);
+			return;
+		}
+
+		ctx.sendReplyHeadersStatic(200, "OK", headers, resource.mimeType, resource.data.length, loaded);
+		ctx.writeData(resource.data, 0, resource.data.length);
+	}
+
+	/**
+	 * @param ifNoneMatch Value of an If-None-Match header: a list of ETags or *.
+	 * @param eTag The current ETag.
+	 * @return True if the header includes the ETag.
+	 */
+	private static boolean matches(String ifNoneMatch, String eTag) {
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(eTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a resource from the .jar, filtering it if it is CSS.
+	 * @param fileName File name relative to PATH.
+	 * @return The resource.
+	 * @throws IOException If the resource does not exist or could not be read or filtered.
+	 */
+	private Resource load(String fileName) throws IOException {
 		//Include starting slash.
-		String fileName = '/'+uri.getPath().substring(PATH.length());
-		URLConnection inputURL = getClass().getResource(fileName).openConnection();
-		InputStream inputStream = null;
-		byte[] output = new byte[0];
+		InputStream inputStream = getClass().getResourceAsStream('/' + fileName);
+		if (inputStream == null) {
+			throw new IOException("Resource is not in the .jar");
+		}
+		String mimeType = getMimeType(fileName);
+		byte[] output;
 		try {
-			inputURL.setUseCaches(false);
-			inputStream = inputURL.getInputStream();
-			String mimeType = getMimeType(fileName);
-			if (inputStream != null) {
-				//TODO: What can go through the filter?
-				//Can filter.
-				if (fileName.endsWith(".css")) {
-					ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-					ContentFilter.filter(inputStream, outputStream, mimeType, uri, null, null, null);
-					output = outputStream.toByteArray();
-				} else {
-					//Raw copy.
-					output = IOUtils.toByteArray(inputStream);
-				}
-			}
-			writeReply(ctx, 200, mimeType, "OK", output, 0, output.length);
+			output = IOUtils.toByteArray(inputStream);
 		} finally {
 			Closer.close(inputStream);
 		}
+		//TODO: What can go through the filter?
+		//Can filter.
+		if (fileName.endsWith(".css")) {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			ContentFilter.filter(new ByteArrayInputStream(output), outputStream, mimeType, URI.create(PATH + fileName),
+			        null, null, null);
+			output = outputStream.toByteArray();
+		}
+		return new Resource(output, mimeType);
 	}
 
 	private static String getMimeType(String URL) {
@@ -75,5 +164,40 @@ public class StaticResourceToadlet extends Toadlet {
 		}
 		return "unknown";
 	}
-}
 
+	/**
+	 * A resource ready to be served: its content after filtering, MIME type, and validators.
+	 */
+	private static class Resource {
+
+		public final byte[] data;
+		public final String mimeType;
+		/** Strong ETag, quoted: hash of the content. */
+		public final String eTag;
+		/** Short form of the hash for use in URLs. */
+		public final String version;
+
+		public Resource(byte[] data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			String hash = hexHash(data);
+			this.eTag = '"' + hash + '"';
+			this.version = hash.substring(0, 8);
+		}
+
+		private static String hexHash(byte[] data) {
+			byte[] digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256").digest(data);
+			} catch (NoSuchAlgorithmException e) {
+				throw new Error("This JVM does not support SHA-256! Cannot hash static resource.");
+			}
+			StringBuilder hex = new StringBuilder();
+			//Half the hash is plenty to tell versions apart.
+			for (int i = 0; i < digest.length / 2; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		}
+	}
+}
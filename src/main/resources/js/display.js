@@ -9,6 +9,26 @@ $(document).ready(function() {
     var participantsList = $('#participants-list');
     var inviteContainer = $('#invite-container');
     var inviteSelect = $('[name="invite"]');
+    var loadOlder = $('#load-older');
+    var sendNotice = $('#send-notice');
+    var typingNotice = $('#typing-notice');
+
+    var msgList = msgPane.children('ul');
+    var participantsUl = participantsList.children('ul');
+    //Localized strings with ${placeholders}.
+    var l10n = $('#chat-l10n').data('l10n');
+
+    //What the page has, sent with update requests so that only changes are returned: the sequence number of the
+    //last line in the messages pane and the versions of the participants listing, who is typing, and invite
+    //drop-down. The page starts out empty, so the first request returns everything.
+    var lastSeq = 0;
+    var participantsVersion = -1;
+    var typingVersion = -1;
+    var invitesVersion = '';
+    //When the node was last told the user is typing, or 0 if it was not or they stopped since.
+    var typingSent = 0;
+    //Sequence number of the oldest line in the messages pane, for loading history before it.
+    var firstSeq = 0;
 
     //Enter in the messages text field.
     element.keydown(function(event) {
@@ -24,11 +44,35 @@ $(document).ready(function() {
                 'formPassword': formPassword
             }, function() {
                 element.val("");
-                refreshMessagePane();
+                sendNotice.hide();
+                //Sending the message tells the others the user stopped typing.
+                typingSent = 0;
+            }).error(function(request) {
+                //A queue to a peer is full or the room is busy; the reply says which. Keep the text so that it can
+                //be sent again.
+                if (request.status == 503) {
+                    sendNotice.text(request.responseText || l10n.queueFull).show();
+                }
             });
         }
     });
 
+    //Tell the node whether the user is typing: now and then while they are, and once when the field is cleared.
+    //The node drops these if peers are busy, so nothing is done with the reply.
+    element.bind('input', function() {
+        var typing = element.val() != '';
+        var now = new Date().getTime();
+        if (typing ? now - typingSent < 2000 : typingSent == 0) {
+            return;
+        }
+        typingSent = typing ? now : 0;
+        $.post('/n2n-chat/display/', {
+            'room': room,
+            'typing': typing,
+            'formPassword': formPassword
+        });
+    });
+
     //Clicking on the send invite button.
     $('[name="send-invite"]').click(function(event) {
         //Suppress double-submit.
@@ -47,74 +91,194 @@ $(document).ready(function() {
                 } else {
                     inviteSelect[0].selectedIndex++;
                 }
-                //Someone was invited or uninvited, so reflect that immediately in the participants pane.
-                refreshParticipantsList();
             });
         }
     });
 
-    //The AJAX requests all return 200 only if there was a change. If cache is not false, some browsers (such as Firefox)
-    //will treat the cache hit as a 200, which breaks things as it will load a stale, cached copy as an update.
-    function refreshParticipantsList() {
+    //Prepend a page of lines from before the oldest one shown, keeping the view where it was.
+    loadOlder.click(function(event) {
+        event.preventDefault();
+        if (firstSeq <= 1) {
+            loadOlder.hide();
+            return;
+        }
         $.ajax({
             url: '/n2n-chat/display/',
             cache: false,
             data: {
                 'room': room,
-                'participantsList': 'only'
+                'history': 'only',
+                'before': firstSeq
+            },
+            success: function(data) {
+                if (!data.items.length) {
+                    loadOlder.hide();
+                    return;
+                }
+                var height = msgPane[0].scrollHeight;
+                msgList.prepend($.map(data.items, renderLine));
+                firstSeq = data.items[0].seq;
+                msgPane.scrollTop(msgPane.scrollTop() + msgPane[0].scrollHeight - height);
             },
-            success: participantsListHandler,
-            dataType: 'html'
+            dataType: 'json'
         });
-    }
+    });
 
-    function refreshInviteDropDown() {
+    //The server holds update requests open until something changes, so one request is always outstanding and changes
+    //show up as soon as they happen. It returns 200 only if there was a change. If cache is not false, some browsers
+    //(such as Firefox) will treat the cache hit as a 200, which breaks things as it will load a stale, cached copy
+    //as an update.
+    function pollUpdates() {
         $.ajax({
             url: '/n2n-chat/display/',
             cache: false,
+            timeout: 60000,
             data: {
                 'room': room,
-                'inviteDropDown': 'only'
+                'updates': 'only',
+                'since': lastSeq,
+                'participants': participantsVersion,
+                'typing': typingVersion,
+                'invites': invitesVersion
             },
-            success: inviteDropDownHandler,
-            dataType: 'html'
+            success: function(data, status, jqXHR) {
+                if (jqXHR.status == 200) {
+                    updatesHandler(data);
+                }
+                pollUpdates();
+            },
+            error: function() {
+                //Don't hammer the node if it is down or restarting.
+                setTimeout(pollUpdates, 5000);
+            },
+            dataType: 'json'
         });
     }
 
-    function refreshMessagePane() {
-        $.ajax({
-            url: '/n2n-chat/display/',
-            cache: false,
-            data: {
-                'room': room,
-                'messagesPane': 'only'
-            },
-            success: messagePaneHandler,
-            dataType: 'html'
-        });
+    //The response has a member for each pane that changed.
+    function updatesHandler(data) {
+        if (data.lines) {
+            messagePaneHandler(data.lines);
+        }
+
+        if (data.participants) {
+            participantsUl.empty().append(renderParticipants(data.participants.items));
+            participantsVersion = data.participants.version;
+        }
+
+        if (data.typing) {
+            var names = data.typing.items;
+            typingNotice.text(names.length ? format(l10n.typing, { 'names': names.join(', ') }) : '');
+            typingVersion = data.typing.version;
+        }
+
+        if (data.invites) {
+            var selected = inviteSelect.val();
+            var options = $.map(data.invites.items, function(peer) {
+                return $('<option>').val(peer.key).text(peer.name)[0];
+            });
+            inviteSelect.empty().append(options);
+            //Keep the selection if that peer is still there.
+            if (selected !== null) {
+                inviteSelect.val(selected);
+            }
+            invitesVersion = data.invites.version;
+        }
     }
 
-    function participantsListHandler(data, status, jqXHR) {
-        if (jqXHR.status == 200) {
-            participantsList.html(data);
+    //Scroll to new bottom if at the bottom before loading new data.
+    function messagePaneHandler(lines) {
+        var scroll = atBottom();
+        //Only new lines are sent unless this pane missed lines the server no longer has.
+        if (lines.reset) {
+            msgList.empty();
+        }
+        var wasEmpty = msgList.children().length == 0;
+        msgList.append($.map(lines.items, renderLine));
+        if (lines.items.length) {
+            lastSeq = lines.items[lines.items.length - 1].seq;
+            if (wasEmpty) {
+                firstSeq = lines.items[0].seq;
+                loadOlder.toggle(firstSeq > 1);
+            }
+        }
+        if (scroll) {
+            scrollToBottom(msgPane, true);
         }
     }
 
-    function inviteDropDownHandler(data, status, jqXHR) {
-        if (jqXHR.status == 200) {
-            inviteSelect.html(data);
+    //Lines are [ time ] name: text, with the time composed if any on the tooltip. Lines without a name, such as day
+    //changes, are just text.
+    function renderLine(line) {
+        var item = $('<li>');
+        if (line.name === undefined) {
+            return item.text(line.text)[0];
         }
+        if (line.composed !== undefined) {
+            item.attr('title', format(l10n.composed, { 'time': formatTime(line.composed, true) }));
+        }
+        item.text('[ ' + formatTime(line.time, false) + ' ] ');
+        item.append($('<div>').attr('style', line.style + 'display:inline;').text(line.name));
+        item.append(document.createTextNode(line.text));
+        return item[0];
     }
 
-    //Scroll to new bottom if at the bottom before loading new data.
-    function messagePaneHandler(data, status, jqXHR) {
-        if (jqXHR.status == 200) {
-            var scroll = atBottom();
-            msgPane.html(data);
-            if (scroll) {
-                scrollToBottom(msgPane, true);
+    //The first item is the number of participants, followed by an item for each entry with routing information on
+    //its tooltip.
+    function renderParticipants(entries) {
+        var present = 0;
+        var items = $.map(entries, function(entry) {
+            var suffix = '';
+            var routing = '';
+            if (entry.self) {
+                suffix = ' (' + l10n.you + ')';
+                present++;
+            } else if (entry.invited) {
+                suffix = ' (' + l10n.invitePending + ')';
+            } else {
+                present++;
+                if (entry.retrying) {
+                    suffix = ' (' + l10n.deliveryRetrying + ')';
+                } else if (entry.undelivered) {
+                    suffix = ' (' + format(l10n.undelivered, { 'count': entry.undelivered }) + ')';
+                }
+                if (entry.direct) {
+                    routing = format(l10n.connectedDirectly, { 'nodeName': entry.via, 'nodeID': entry.viaKey });
+                } else {
+                    routing = format(l10n.connectedThrough,
+                        { 'nodeName': entry.via, 'nodeID': entry.viaKey, 'pubKeyHash': entry.key });
+                    if (entry.backups) {
+                        routing += ' ' + format(l10n.backupRoutes, { 'count': entry.backups });
+                    }
+                }
             }
+            return $('<li>').attr({ 'style': entry.style, 'title': routing }).text(entry.name + suffix)[0];
+        });
+        items.unshift($('<li>').text(format(l10n.participantsPresent, { 'numberOf': present }))[0]);
+        return items;
+    }
+
+    //Replaces ${name} placeholders in a localized string.
+    function format(template, values) {
+        return template.replace(/\$\{(\w+)\}/g, function(match, name) {
+            return values[name] === undefined ? match : values[name];
+        });
+    }
+
+    //Ex: 04:48:30 PM, or with the date 04:48:30 PM, June 01, 2011
+    function formatTime(millis, withDate) {
+        var date = new Date(millis);
+        var hours = date.getHours() % 12 || 12;
+        var time = pad(hours) + ':' + pad(date.getMinutes()) + ':' + pad(date.getSeconds()) + ' ' +
+            (date.getHours() < 12 ? 'AM' : 'PM');
+        if (withDate) {
+            time += ', ' + date.toLocaleDateString(undefined, { 'month': 'long', 'day': '2-digit', 'year': 'numeric' });
         }
+        return time;
+    }
+
+    function pad(number) {
+        return number < 10 ? '0' + number : String(number);
     }
 
     function atBottom() {
@@ -135,16 +299,6 @@ $(document).ready(function() {
         }
     }
 
-    function refreshPanes() {
-        refreshMessagePane();
-        refreshParticipantsList();
-        refreshInviteDropDown();
-        setTimeout(refreshPanes, 1000);
-    }
-
-    //Scroll to bottom of messages pane so that it starts out at the latest messages if there are already messages
-    //in this room.
-    scrollToBottom(msgPane, false);
-
-    setTimeout(refreshPanes, 1000);
+    //The panes start out empty and are filled in by the first update, which returns immediately.
+    pollUpdates();
 });
\ No newline at end of file
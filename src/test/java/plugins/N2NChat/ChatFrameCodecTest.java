@@ -0,0 +1,218 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the binary chat frame format: round trips, capabilities, relaying, and rejecting damaged data.
+ */
+public class ChatFrameCodecTest extends TestCase {
+
+	private static final ByteArray HASH = new ByteArray(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+	/**
+	 * Tests that every field of several frames survives encoding and decoding, including non-ASCII text.
+	 */
+	public void testRoundTrip() throws IOException {
+		List<ChatFrame> frames = Arrays.asList(
+		        ChatFrame.message(-42, HASH, 1306961310000L, "héllo ☃", ChatFrame.newMessageId()),
+		        ChatFrame.message(7, null, 1, "", 0),
+		        ChatFrame.join(7, HASH, "name", false, Long.MIN_VALUE),
+		        ChatFrame.join(7, null, "other", true, 1),
+		        ChatFrame.leave(7, HASH, -1),
+		        ChatFrame.offerInvite(Long.MAX_VALUE, "invitee", "room"),
+		        ChatFrame.invite(N2NChatPlugin.ACCEPT_INVITE, Long.MIN_VALUE));
+
+		byte[] data = ChatFrameCodec.encode(frames, ChatSender.CAPABILITIES);
+		assertEquals(ChatFrameCodec.BINARY_MARKER, data[0]);
+		ChatFrameCodec.Decoded decoded = ChatFrameCodec.decode(data);
+		assertEquals(ChatSender.CAPABILITIES, decoded.capabilities);
+		assertEquals(frames.size(), decoded.frames.size());
+		for (int i = 0; i < frames.size(); i++) {
+			ChatFrame expected = frames.get(i);
+			ChatFrame actual = decoded.frames.get(i);
+			assertEquals(expected.type, actual.type);
+			assertEquals(expected.globalIdentifier, actual.globalIdentifier);
+			assertEquals(expected.pubKeyHash, actual.pubKeyHash);
+			assertEquals(expected.username, actual.username);
+			assertEquals(expected.roomName, actual.roomName);
+			assertEquals(expected.timeComposed, actual.timeComposed);
+			assertEquals(expected.text, actual.text);
+			assertEquals(expected.displayJoin, actual.displayJoin);
+			assertEquals(expected.messageId, actual.messageId);
+		}
+	}
+
+	/**
+	 * Tests that unknown capabilities are not advertised and a sender with none is reported as such.
+	 */
+	public void testCapabilities() throws IOException {
+		List<ChatFrame> frames = Arrays.asList(ChatFrame.leave(1, null, 0));
+		assertEquals(ChatSender.CAPABILITY_BINARY, ChatFrameCodec.decode(
+		        ChatFrameCodec.encode(frames, "future," + ChatSender.CAPABILITY_BINARY)).capabilities);
+		assertEquals("", ChatFrameCodec.decode(ChatFrameCodec.encode(frames, "")).capabilities);
+	}
+
+	/**
+	 * Tests that a relayed frame that already names its composer is forwarded as the bytes it was received as, and
+	 * that one that does not is encoded once with the composer added.
+	 */
+	public void testRelay() throws IOException {
+		byte[] data = ChatFrameCodec.encode(Arrays.asList(ChatFrame.message(1, HASH, 2, "relayed", 3),
+		        ChatFrame.message(1, null, 3, "direct", 4)), ChatSender.CAPABILITIES);
+		List<ChatFrame> received = ChatFrameCodec.decode(data).frames;
+
+		ChatFrame relayed = received.get(0).relayedFor(HASH);
+		assertSame(received.get(0), relayed);
+		byte[] body = relayed.body;
+		assertTrue(Arrays.equals(data, ChatFrameCodec.encode(Arrays.asList(relayed, received.get(1)),
+		        ChatSender.CAPABILITIES)));
+		assertSame(body, relayed.body);
+
+		ChatFrame added = received.get(1).relayedFor(HASH);
+		assertEquals(HASH, added.pubKeyHash);
+		assertEquals("direct", added.text);
+		assertEquals(4, added.messageId);
+		ChatFrameCodec.encode(Arrays.asList(added), ChatSender.CAPABILITIES);
+		byte[] encoded = added.body;
+		ChatFrameCodec.encode(Arrays.asList(added, added), ChatSender.CAPABILITIES);
+		assertSame(encoded, added.body);
+	}
+
+	/**
+	 * Tests that the hop sequence number, hop count, and hop times survive encoding and decoding while the body is
+	 * still shared with copies for other hops.
+	 */
+	public void testPerHop() throws IOException {
+		ChatFrame frame = ChatFrame.message(1, HASH, 2, "traced", 3);
+		ChatFrame traced = frame.withHops(4, new long[] { 10, 20, 1306961310000L }).withHopSeq(5);
+		ChatFrame counted = frame.withHops(2, null);
+		List<ChatFrame> received = ChatFrameCodec.decode(ChatFrameCodec.encode(Arrays.asList(traced, counted, frame),
+		        ChatSender.CAPABILITIES)).frames;
+		assertSame(frame.body, traced.unsequenced.body);
+
+		assertEquals(5, received.get(0).hopSeq);
+		assertEquals(4, received.get(0).hops);
+		assertTrue(Arrays.equals(traced.hopTimes, received.get(0).hopTimes));
+		assertEquals(0, received.get(1).hopSeq);
+		assertEquals(2, received.get(1).hops);
+		assertNull(received.get(1).hopTimes);
+		assertEquals(0, received.get(2).hops);
+		assertSame(received.get(2), received.get(2).unsequenced);
+		assertEquals("traced", received.get(0).text);
+	}
+
+	/**
+	 * Tests that a roster part keeps its participants paired with their usernames in both formats.
+	 */
+	public void testRoster() throws IOException {
+		ByteArray other = new ByteArray(new byte[] { 9, 8, 7 });
+		ChatFrame roster = ChatFrame.roster(3, Arrays.asList(HASH, other), Arrays.asList("first", "sécond"), 1, 2, 6);
+		ChatFrame binary = ChatFrameCodec.decode(ChatFrameCodec.encode(Arrays.asList(roster),
+		        ChatSender.CAPABILITIES)).frames.get(0);
+		ChatFrame legacy = ChatFrameCodec.fromFieldSet(ChatFrameCodec.toFieldSet(roster));
+		for (ChatFrame decoded : Arrays.asList(binary, legacy)) {
+			assertEquals(N2NChatPlugin.ROSTER, decoded.type);
+			assertEquals(roster.links, decoded.links);
+			assertEquals(roster.usernames, decoded.usernames);
+			assertEquals(1, decoded.part);
+			assertEquals(2, decoded.parts);
+			assertEquals(6, decoded.messageId);
+		}
+	}
+
+	/**
+	 * Tests that digest buckets survive both formats in their own field, not as sequence numbers.
+	 */
+	public void testDigest() throws IOException {
+		ChatFrame digest = ChatFrame.digest(3, new long[] { 0, 1, Long.MAX_VALUE });
+		assertNull(digest.seqs);
+		for (ChatFrame decoded : Arrays.asList(
+		        ChatFrameCodec.decode(ChatFrameCodec.encode(Arrays.asList(digest), ChatSender.CAPABILITIES)).frames.get(0),
+		        ChatFrameCodec.fromFieldSet(ChatFrameCodec.toFieldSet(digest)))) {
+			assertEquals(N2NChatPlugin.DIGEST, decoded.type);
+			assertTrue(Arrays.equals(digest.buckets, decoded.buckets));
+			assertNull(decoded.seqs);
+		}
+	}
+
+	/**
+	 * Tests that history requests and parts survive both formats.
+	 */
+	public void testHistory() throws IOException {
+		List<ChatFrame> frames = Arrays.asList(ChatFrame.historyRequest(3, 200, 1306961310000L),
+		        ChatFrame.history(3, new byte[] { 0, 1, 2, -1 }, 2, 5));
+		List<ChatFrame> binary = ChatFrameCodec.decode(ChatFrameCodec.encode(frames, ChatSender.CAPABILITIES)).frames;
+		for (int i = 0; i < frames.size(); i++) {
+			ChatFrame expected = frames.get(i);
+			for (ChatFrame decoded : Arrays.asList(binary.get(i),
+			        ChatFrameCodec.fromFieldSet(ChatFrameCodec.toFieldSet(expected)))) {
+				assertEquals(expected.type, decoded.type);
+				assertEquals(expected.maxLines, decoded.maxLines);
+				assertEquals(expected.since, decoded.since);
+				assertTrue(Arrays.equals(expected.data, decoded.data));
+				assertEquals(expected.part, decoded.part);
+				assertEquals(expected.parts, decoded.parts);
+			}
+		}
+		assertEquals(200, frames.get(0).maxLines);
+		assertEquals(0, frames.get(0).ack);
+		assertEquals(0, frames.get(0).timeComposed);
+	}
+
+	/**
+	 * Tests that both typing states, and who is typing when relayed, survive both formats.
+	 */
+	public void testTyping() throws IOException {
+		List<ChatFrame> frames = Arrays.asList(ChatFrame.typing(3, null, true, 1306961310000L),
+		        ChatFrame.typing(3, HASH, false, 1306961311000L));
+		List<ChatFrame> binary = ChatFrameCodec.decode(ChatFrameCodec.encode(frames, ChatSender.CAPABILITIES)).frames;
+		for (int i = 0; i < frames.size(); i++) {
+			ChatFrame expected = frames.get(i);
+			for (ChatFrame decoded : Arrays.asList(binary.get(i),
+			        ChatFrameCodec.fromFieldSet(ChatFrameCodec.toFieldSet(expected)))) {
+				assertEquals(N2NChatPlugin.TYPING, decoded.type);
+				assertEquals(expected.pubKeyHash, decoded.pubKeyHash);
+				assertEquals(expected.typing, decoded.typing);
+				assertEquals(expected.timeComposed, decoded.timeComposed);
+				assertEquals(0, decoded.ack);
+			}
+		}
+		assertTrue(frames.get(0).typing);
+		assertFalse(frames.get(1).typing);
+	}
+
+	/**
+	 * Tests that data in a later version of the binary format is rejected rather than misread.
+	 */
+	public void testLaterVersion() {
+		byte[] data = ChatFrameCodec.encode(Arrays.asList(ChatFrame.leave(1, null, 0)), ChatSender.CAPABILITIES);
+		assertEquals(ChatFrameCodec.VERSION, data[1]);
+		data[1] = ChatFrameCodec.VERSION + 1;
+		try {
+			ChatFrameCodec.decode(data);
+			fail("Decoded version " + data[1]);
+		} catch (IOException e) {
+			//Expected.
+		}
+	}
+
+	/**
+	 * Tests that data cut short anywhere is rejected rather than read as a partial frame.
+	 */
+	public void testTruncated() {
+		byte[] data = ChatFrameCodec.encode(Arrays.asList(ChatFrame.message(1, HASH, 2, "text", 5)),
+		        ChatSender.CAPABILITIES);
+		for (int length = 1; length < data.length; length++) {
+			try {
+				ChatFrameCodec.decode(Arrays.copyOf(data, length));
+				fail("Decoded data truncated to " + length + " of " + data.length + " bytes");
+			} catch (IOException e) {
+				//Expected.
+			}
+		}
+	}
+}
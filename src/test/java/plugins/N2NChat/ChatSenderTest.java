@@ -0,0 +1,346 @@
+package plugins.N2NChat.core;
+
+import freenet.support.SimpleFieldSet;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that frames to a peer are sent together, bounded, held while it is disconnected, and that the ephemeral lane
+ * keeps only the latest state and gives way to real traffic.
+ */
+public class ChatSenderTest extends TestCase {
+
+	private static final ByteArray HASH = new ByteArray(new byte[] { 1, 2, 3 });
+
+	/** Time that only moves when told to, running jobs as it passes them. */
+	private static class FakeClock implements ChatSender.Clock {
+		long now = 1000000;
+		final List<Long> times = new ArrayList<Long>();
+		final List<Runnable> jobs = new ArrayList<Runnable>();
+
+		public long now() {
+			return now;
+		}
+
+		public void queueTimedJob(Runnable job, long delay) {
+			times.add(now + delay);
+			jobs.add(job);
+		}
+
+		/** Moves time forward, running each job that falls due in order, including any they queue. */
+		void advance(long delay) {
+			long until = now + delay;
+			while (true) {
+				int next = -1;
+				for (int i = 0; i < times.size(); i++) {
+					if (times.get(i) <= until && (next == -1 || times.get(i) < times.get(next))) {
+						next = i;
+					}
+				}
+				if (next == -1) {
+					break;
+				}
+				now = Math.max(now, times.remove(next));
+				jobs.remove(next).run();
+			}
+			now = until;
+		}
+	}
+
+	/** Runs flushes on the calling thread. */
+	private static class DirectExecutor extends AbstractExecutorService {
+		private boolean shutdown;
+
+		public void execute(Runnable command) {
+			command.run();
+		}
+
+		public void shutdown() {
+			shutdown = true;
+		}
+
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			return Collections.emptyList();
+		}
+
+		public boolean isShutdown() {
+			return shutdown;
+		}
+
+		public boolean isTerminated() {
+			return shutdown;
+		}
+
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return true;
+		}
+	}
+
+	/** Records what it is sent, as one list of frames per message. */
+	private static class FakePeer implements ChatSender.Peer {
+		boolean connected = true;
+		final List<List<ChatFrame>> messages = new ArrayList<List<ChatFrame>>();
+
+		public ByteArray getKey() {
+			return HASH;
+		}
+
+		public String getName() {
+			return "peer";
+		}
+
+		public boolean isConnected() {
+			return connected;
+		}
+
+		public void send(SimpleFieldSet fs) {
+			fail("Sent a legacy message to a peer that understands the binary format");
+		}
+
+		public boolean sendBinary(byte[] data) {
+			if (!connected) {
+				return false;
+			}
+			try {
+				messages.add(ChatFrameCodec.decode(data).frames);
+			} catch (IOException e) {
+				fail(e.getMessage());
+			}
+			return true;
+		}
+
+		/** @return Message identifiers of everything sent, in order. */
+		List<Long> sentIds() {
+			List<Long> ids = new ArrayList<Long>();
+			for (List<ChatFrame> message : messages) {
+				for (ChatFrame frame : message) {
+					ids.add(frame.messageId);
+				}
+			}
+			return ids;
+		}
+	}
+
+	private FakeClock clock;
+	private FakePeer peer;
+	private ChatSender sender;
+
+	@Override
+	protected void setUp() {
+		clock = new FakeClock();
+		peer = new FakePeer();
+		sender = new ChatSender(clock, null, new DirectExecutor());
+		sender.receivedCapabilities(HASH, ChatSender.CAPABILITIES);
+	}
+
+	private static ChatFrame message(long messageId) {
+		return ChatFrame.message(1, null, 2, "text", messageId);
+	}
+
+	private static List<Long> ids(long from, long to) {
+		List<Long> ids = new ArrayList<Long>();
+		for (long id = from; id <= to; id++) {
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	/**
+	 * Tests that frames queued within the window are sent together, in order, once it ends.
+	 */
+	public void testCoalescing() {
+		for (int i = 1; i <= 3; i++) {
+			assertTrue(sender.send(peer, message(i)));
+		}
+		clock.advance(ChatSender.DEFAULT_WINDOW - 1);
+		assertTrue(peer.messages.isEmpty());
+
+		clock.advance(1);
+		assertEquals(1, peer.messages.size());
+		assertEquals(ids(1, 3), peer.sentIds());
+
+		assertTrue(sender.send(peer, message(4)));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(2, peer.messages.size());
+	}
+
+	/**
+	 * Tests that a batch larger than MAX_BUNDLE_FRAMES is split, keeping the order.
+	 */
+	public void testBundleSplitting() {
+		int count = ChatSender.MAX_BUNDLE_FRAMES * 2 + 1;
+		for (int i = 1; i <= count; i++) {
+			sender.send(peer, message(i));
+		}
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(3, peer.messages.size());
+		assertEquals(ChatSender.MAX_BUNDLE_FRAMES, peer.messages.get(0).size());
+		assertEquals(ChatSender.MAX_BUNDLE_FRAMES, peer.messages.get(1).size());
+		assertEquals(1, peer.messages.get(2).size());
+		assertEquals(ids(1, count), peer.sentIds());
+	}
+
+	/**
+	 * Tests that frames beyond MAX_QUEUED_FRAMES are refused, and accepted again once the queue is sent.
+	 */
+	public void testQueueFull() {
+		for (int i = 1; i <= ChatSender.MAX_QUEUED_FRAMES; i++) {
+			assertTrue(sender.send(peer, message(i)));
+		}
+		assertFalse(sender.send(peer, message(0)));
+
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(ids(1, ChatSender.MAX_QUEUED_FRAMES), peer.sentIds());
+		assertTrue(sender.send(peer, message(0)));
+	}
+
+	/**
+	 * Tests that frames for a disconnected peer are held and sent in order, ahead of newer ones, once it reconnects.
+	 */
+	public void testHeldInOrder() {
+		peer.connected = false;
+		sender.send(peer, message(1));
+		sender.send(peer, message(2));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		sender.send(peer, message(3));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertTrue(peer.messages.isEmpty());
+
+		peer.connected = true;
+		sender.send(peer, message(4));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(ids(1, 4), peer.sentIds());
+
+		//Nothing is held any more, so nothing is sent again.
+		clock.advance(ChatSender.MAX_HELD_AGE);
+		assertEquals(ids(1, 4), peer.sentIds());
+	}
+
+	/**
+	 * Tests that held frames are sent when the peer reconnects even if nothing new is queued.
+	 */
+	public void testHeldRetried() {
+		peer.connected = false;
+		sender.send(peer, message(1));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		peer.connected = true;
+		clock.advance(60 * 1000);
+		assertEquals(ids(1, 1), peer.sentIds());
+	}
+
+	/**
+	 * Tests that the oldest held frames are dropped beyond MAX_HELD_FRAMES.
+	 */
+	public void testHeldDropsOldest() {
+		peer.connected = false;
+		int count = ChatSender.MAX_HELD_FRAMES + ChatSender.MAX_QUEUED_FRAMES;
+		for (int i = 1; i <= count; i++) {
+			assertTrue(sender.send(peer, message(i)));
+			if (i % ChatSender.MAX_QUEUED_FRAMES == 0) {
+				clock.advance(ChatSender.DEFAULT_WINDOW);
+			}
+		}
+		peer.connected = true;
+		sender.send(peer, message(count + 1));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(ids(ChatSender.MAX_QUEUED_FRAMES + 1, count + 1), peer.sentIds());
+	}
+
+	/**
+	 * Tests that held frames are dropped after MAX_HELD_AGE, whether or not the peer reconnects first.
+	 */
+	public void testHeldExpires() {
+		peer.connected = false;
+		sender.send(peer, message(1));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		clock.advance(ChatSender.MAX_HELD_AGE + 60 * 1000);
+		peer.connected = true;
+		sender.send(peer, message(2));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(ids(2, 2), peer.sentIds());
+
+		//The peer reconnects after the frame expired but before the retry noticed.
+		peer.connected = false;
+		sender.send(peer, message(3));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		clock.now += ChatSender.MAX_HELD_AGE + 1;
+		peer.connected = true;
+		sender.send(peer, message(4));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(Arrays.asList(2L, 4L), peer.sentIds());
+	}
+
+	/**
+	 * Tests that an ephemeral frame replaces the one not yet sent about the same participant in the same room, and
+	 * rides after other frames.
+	 */
+	public void testEphemeralReplaces() {
+		sender.send(peer, message(1));
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(1, null, true, 10)));
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(1, null, false, 20)));
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(1, HASH, true, 30)));
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(2, null, true, 40)));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+
+		assertEquals(1, peer.messages.size());
+		List<ChatFrame> sent = peer.messages.get(0);
+		assertEquals(4, sent.size());
+		assertEquals(N2NChatPlugin.MESSAGE, sent.get(0).type);
+		List<Long> times = new ArrayList<Long>();
+		for (ChatFrame frame : sent.subList(1, sent.size())) {
+			assertEquals(N2NChatPlugin.TYPING, frame.type);
+			times.add(frame.timeComposed);
+			if (frame.timeComposed == 20) {
+				assertFalse(frame.typing);
+			}
+		}
+		Collections.sort(times);
+		assertEquals(Arrays.asList(20L, 30L, 40L), times);
+	}
+
+	/**
+	 * Tests that ephemeral frames send themselves when nothing else is queued, but at most every EPHEMERAL_INTERVAL.
+	 */
+	public void testEphemeralAlone() {
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(1, null, true, 10)));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(1, peer.messages.size());
+
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(1, null, false, 20)));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(1, peer.messages.size());
+		clock.advance(ChatSender.EPHEMERAL_INTERVAL);
+		assertEquals(2, peer.messages.size());
+	}
+
+	/**
+	 * Tests that ephemeral frames are dropped, not queued, for a peer that is disconnected or has
+	 * EPHEMERAL_LOAD_LIMIT frames queued.
+	 */
+	public void testEphemeralDropped() {
+		for (int i = 1; i <= ChatSender.EPHEMERAL_LOAD_LIMIT; i++) {
+			sender.send(peer, message(i));
+		}
+		assertFalse(sender.sendEphemeral(peer, ChatFrame.typing(1, null, true, 10)));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(ids(1, ChatSender.EPHEMERAL_LOAD_LIMIT), peer.sentIds());
+
+		int sent = peer.messages.size();
+		assertTrue(sender.sendEphemeral(peer, ChatFrame.typing(1, null, true, 20)));
+		clock.advance(ChatSender.DEFAULT_WINDOW);
+		assertEquals(sent + 1, peer.messages.size());
+
+		peer.connected = false;
+		assertFalse(sender.sendEphemeral(peer, ChatFrame.typing(1, null, false, 30)));
+		clock.advance(ChatSender.EPHEMERAL_INTERVAL);
+		assertEquals(sent + 1, peer.messages.size());
+	}
+}
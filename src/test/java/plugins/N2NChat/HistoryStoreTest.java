@@ -0,0 +1,154 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests that HistoryStore reads back what was appended, across segments and after reopening.
+ */
+public class HistoryStoreTest extends TestCase {
+
+	/** Runs writes immediately so that appended lines can be read back right away. */
+	private static final Executor inline = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = File.createTempFile("history", "");
+		assertTrue(directory.delete());
+	}
+
+	@Override
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private static LogLine line(long seq) {
+		return new LogLine(seq * 1000, 0, new ByteArray(new byte[] { 1, 2, 3 }), "name", "color:red;",
+		        ": message " + seq, true).withSeq(seq);
+	}
+
+	/**
+	 * Tests that lines spread over several small segments are read back in order from any starting point, and
+	 * still are after reopening.
+	 */
+	public void testReadAcrossSegments() throws IOException {
+		HistoryStore store = new HistoryStore(directory, inline, 1024);
+		for (int seq = 1; seq <= 200; seq++) {
+			store.append(line(seq));
+		}
+		assertTrue(directory.listFiles().length > 1);
+
+		List<LogLine> lines = store.read(95, 10);
+		assertEquals(10, lines.size());
+		assertEquals(95, lines.get(0).seq);
+		assertEquals(104, lines.get(9).seq);
+		assertEquals(": message 100", lines.get(5).text);
+		assertEquals("name", lines.get(5).name);
+		assertEquals(new ByteArray(new byte[] { 1, 2, 3 }), lines.get(5).author);
+		store.close();
+
+		store = new HistoryStore(directory, inline, 1024);
+		assertEquals(200, store.getLastSeq());
+		lines = store.readBefore(201, 3);
+		assertEquals(3, lines.size());
+		assertEquals(198, lines.get(0).seq);
+		assertEquals(200, lines.get(2).seq);
+		assertEquals(0, store.readBefore(1, 10).size());
+		store.close();
+	}
+
+	/**
+	 * Tests that a partially written last record is discarded on open and that appending continues after it.
+	 */
+	public void testPartialRecord() throws IOException {
+		HistoryStore store = new HistoryStore(directory, inline);
+		for (int seq = 1; seq <= 3; seq++) {
+			store.append(line(seq));
+		}
+		store.close();
+
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		store = new HistoryStore(directory, inline);
+		assertEquals(2, store.getLastSeq());
+		store.append(line(3));
+		List<LogLine> lines = store.read(1, 10);
+		assertEquals(3, lines.size());
+		assertEquals(": message 3", lines.get(2).text);
+		store.close();
+	}
+
+	/**
+	 * Tests that lines still waiting for the writer are read along with those written, in order.
+	 */
+	public void testReadUnwritten() throws IOException {
+		final List<Runnable> queued = new ArrayList<Runnable>();
+		HistoryStore store = new HistoryStore(directory, new Executor() {
+			public void execute(Runnable command) {
+				queued.add(command);
+			}
+		});
+		store.append(line(1));
+		queued.remove(0).run();
+		store.append(line(2));
+		store.append(line(3));
+
+		List<LogLine> lines = store.read(1, 10);
+		assertEquals(3, lines.size());
+		assertEquals(2, lines.get(1).seq);
+		assertEquals(": message 3", store.get(3).text);
+		assertEquals(1, store.read(3, 10).size());
+		store.close();
+	}
+
+	/**
+	 * Tests that records made to send lines to other nodes are read back in order, including system lines, and that
+	 * damaged ones are rejected.
+	 */
+	public void testRecords() throws IOException {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (LogLine line : new LogLine[] { line(1), LogLine.systemLine(5, "day"), line(2) }) {
+			byte[] record = HistoryStore.record(line);
+			records.write(record, 0, record.length);
+		}
+		List<LogLine> lines = HistoryStore.readRecords(records.toByteArray());
+		assertEquals(3, lines.size());
+		assertEquals(": message 1", lines.get(0).text);
+		assertTrue(lines.get(0).message);
+		assertTrue(lines.get(1).isSystemLine());
+		assertFalse(lines.get(1).message);
+		assertEquals(2, lines.get(2).seq);
+		assertEquals("color:red;", lines.get(2).nameStyle);
+
+		byte[] truncated = Arrays.copyOf(records.toByteArray(), records.size() - 1);
+		try {
+			HistoryStore.readRecords(truncated);
+			fail("Read truncated records");
+		} catch (IOException e) {
+			//Expected.
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package plugins.N2NChat.webui;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests JSONWriter separators and escaping.
+ */
+public class JSONWriterTest extends TestCase {
+
+	/**
+	 * Tests that commas are placed between members and elements but not after keys or opening brackets.
+	 */
+	public void testSeparators() {
+		String json = new JSONWriter().beginObject()
+		        .key("a").value(1)
+		        .key("b").beginArray().value(true).value("x").beginObject().endObject().endArray()
+		        .key("c").value((String) null)
+		        .endObject().toString();
+		assertEquals("{\"a\":1,\"b\":[true,\"x\",{}],\"c\":null}", json);
+	}
+
+	/**
+	 * Tests that quotes, backslashes, control characters, and markup are escaped.
+	 */
+	public void testEscaping() {
+		String json = new JSONWriter().value("\"\\\n\u0001</script>").toString();
+		assertEquals("\"\\\"\\\\\\n\\u0001\\u003c/script>\"", json);
+	}
+}
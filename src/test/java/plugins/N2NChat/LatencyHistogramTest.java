@@ -0,0 +1,47 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests bucketing and the statistics reported from it.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+	/**
+	 * Tests that latencies land in the bucket whose bound is the first at least as large, and that negative ones
+	 * count as zero.
+	 */
+	public void testBuckets() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(10);
+		histogram.record(11);
+		histogram.record(Long.MAX_VALUE / 2);
+
+		long[] counts = histogram.counts();
+		assertEquals(2, counts[0]);
+		assertEquals(1, counts[1]);
+		assertEquals(1, counts[counts.length - 1]);
+		assertEquals(4, histogram.count());
+		assertEquals(Long.MAX_VALUE / 2, histogram.max());
+	}
+
+	/**
+	 * Tests the mean and that percentiles are bucket bounds capped at the longest latency.
+	 */
+	public void testStatistics() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.mean());
+		assertEquals(0, histogram.percentile(0.5));
+
+		for (int i = 0; i < 9; i++) {
+			histogram.record(5);
+		}
+		histogram.record(150);
+		assertEquals(19, histogram.mean());
+		assertEquals(10, histogram.percentile(0.5));
+		assertEquals(10, histogram.percentile(0.9));
+		assertEquals(150, histogram.percentile(0.95));
+		assertEquals(150, histogram.percentile(1));
+	}
+}
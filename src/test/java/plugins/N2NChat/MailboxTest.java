@@ -0,0 +1,151 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests that room tasks run in order, one drain at a time, taking turns with other rooms on the same worker.
+ */
+public class MailboxTest extends TestCase {
+
+	/** Queues what it is given, to be run by the test. */
+	private static class QueuedExecutor implements Executor {
+		final ArrayDeque<Runnable> queued = new ArrayDeque<Runnable>();
+
+		public void execute(Runnable command) {
+			queued.add(command);
+		}
+	}
+
+	private static Runnable record(final List<Integer> ran, final int n) {
+		return new Runnable() {
+			public void run() {
+				ran.add(n);
+			}
+		};
+	}
+
+	/**
+	 * Tests that tasks run in the order they were posted, and that only one drain is queued however many are.
+	 */
+	public void testOrder() {
+		QueuedExecutor worker = new QueuedExecutor();
+		Mailbox mailbox = new Mailbox(worker);
+		List<Integer> ran = new ArrayList<Integer>();
+		for (int i = 0; i < 3; i++) {
+			mailbox.post(record(ran, i));
+		}
+		assertEquals(1, worker.queued.size());
+		assertEquals(3, mailbox.size());
+
+		worker.queued.poll().run();
+		assertEquals(Arrays.asList(0, 1, 2), ran);
+		assertTrue(worker.queued.isEmpty());
+
+		mailbox.post(record(ran, 3));
+		assertEquals(1, worker.queued.size());
+	}
+
+	/**
+	 * Tests that a drain stops after MAX_BATCH tasks and goes behind another room waiting on the same worker.
+	 */
+	public void testBatch() {
+		QueuedExecutor worker = new QueuedExecutor();
+		Mailbox busy = new Mailbox(worker);
+		Mailbox other = new Mailbox(worker);
+		List<Integer> ran = new ArrayList<Integer>();
+		for (int i = 0; i <= Mailbox.MAX_BATCH; i++) {
+			busy.post(record(ran, i));
+		}
+		other.post(record(ran, -1));
+
+		worker.queued.poll().run();
+		assertEquals(Mailbox.MAX_BATCH, ran.size());
+		assertSame(other, worker.queued.poll());
+		other.run();
+		assertEquals(Integer.valueOf(-1), ran.get(ran.size() - 1));
+		assertSame(busy, worker.queued.poll());
+		busy.run();
+		assertEquals(Integer.valueOf(Mailbox.MAX_BATCH), ran.get(ran.size() - 1));
+		assertTrue(worker.queued.isEmpty());
+	}
+
+	/**
+	 * Tests that a submitted task's result is returned and that a task that fails does not stop those after it.
+	 */
+	public void testSubmit() throws Exception {
+		QueuedExecutor worker = new QueuedExecutor();
+		Mailbox mailbox = new Mailbox(worker);
+		List<Integer> ran = new ArrayList<Integer>();
+		mailbox.post(new Runnable() {
+			public void run() {
+				throw new IllegalStateException("Expected");
+			}
+		});
+		Future<String> result = mailbox.submit(new Callable<String>() {
+			public String call() {
+				return "done";
+			}
+		});
+		mailbox.post(record(ran, 1));
+		assertFalse(result.isDone());
+
+		worker.queued.poll().run();
+		assertEquals("done", result.get());
+		assertEquals(Arrays.asList(1), ran);
+	}
+
+	/**
+	 * Tests that a task throwing an Error still leaves the rest to run in another drain.
+	 */
+	public void testError() {
+		QueuedExecutor worker = new QueuedExecutor();
+		Mailbox mailbox = new Mailbox(worker);
+		List<Integer> ran = new ArrayList<Integer>();
+		final Error expected = new Error("Expected");
+		mailbox.post(new Runnable() {
+			public void run() {
+				throw expected;
+			}
+		});
+		mailbox.post(record(ran, 1));
+		Error thrown = null;
+		try {
+			worker.queued.poll().run();
+		} catch (Error e) {
+			thrown = e;
+		}
+		assertSame(expected, thrown);
+		assertSame(mailbox, worker.queued.poll());
+		mailbox.run();
+		assertEquals(Arrays.asList(1), ran);
+	}
+
+	/**
+	 * Tests that a submitted task dropped because the worker stopped is cancelled rather than left pending, and that
+	 * later posts are dropped the same way.
+	 */
+	public void testRejected() {
+		Mailbox mailbox = new Mailbox(new Executor() {
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException("Stopped");
+			}
+		});
+		Future<String> result = mailbox.submit(new Callable<String>() {
+			public String call() {
+				return "never";
+			}
+		});
+		assertTrue(result.isCancelled());
+		mailbox.post(record(new ArrayList<Integer>(), 1));
+		assertEquals(0, mailbox.size());
+	}
+}
@@ -0,0 +1,55 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that digests agree on the same membership and point at where different ones differ.
+ */
+public class MembershipDigestTest extends TestCase {
+
+	private static List<ByteArray> members(int count) {
+		List<ByteArray> members = new ArrayList<ByteArray>();
+		for (int i = 0; i < count; i++) {
+			members.add(new ByteArray(new byte[] { (byte)i, (byte)(i >> 8), 42 }));
+		}
+		return members;
+	}
+
+	/**
+	 * Tests that the order participants are listed in does not matter.
+	 */
+	public void testOrder() {
+		List<ByteArray> members = members(50);
+		long[] digest = MembershipDigest.of(members);
+		Collections.reverse(members);
+		assertTrue(Arrays.equals(digest, MembershipDigest.of(members)));
+		assertTrue(MembershipDigest.differing(digest, MembershipDigest.of(members)).isEmpty());
+	}
+
+	/**
+	 * Tests that a participant missing on one side makes only their bucket differ.
+	 */
+	public void testMissing() {
+		List<ByteArray> members = members(50);
+		ByteArray missing = members.remove(17);
+		List<Integer> differing = MembershipDigest.differing(MembershipDigest.of(members(50)),
+		        MembershipDigest.of(members));
+		assertEquals(Collections.singletonList(MembershipDigest.bucket(missing)), differing);
+		for (long value : MembershipDigest.of(members)) {
+			assertTrue(value >= 0);
+		}
+	}
+
+	/**
+	 * Tests that a digest of the wrong size differs everywhere.
+	 */
+	public void testSize() {
+		assertEquals(MembershipDigest.BUCKETS, MembershipDigest.differing(MembershipDigest.of(members(3)),
+		        new long[0]).size());
+	}
+}
@@ -0,0 +1,72 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Tests MessageLog eviction by line count and size.
+ */
+public class MessageLogTest extends TestCase {
+
+	private static LogLine line(int number) {
+		return LogLine.systemLine(number, String.valueOf(number));
+	}
+
+	/**
+	 * Tests that lines come out in the order they went in, and that the oldest are evicted first once full.
+	 */
+	public void testLineLimit() {
+		MessageLog log = new MessageLog(3, Integer.MAX_VALUE);
+		for (int i = 0; i < 5; i++) {
+			log.add(line(i));
+		}
+		List<LogLine> lines = log.getLines();
+		assertEquals(3, lines.size());
+		assertEquals("2", lines.get(0).text);
+		assertEquals("3", lines.get(1).text);
+		assertEquals("4", lines.get(2).text);
+	}
+
+	/**
+	 * Tests that lines are evicted to stay within the byte limit, but that the newest line is always kept.
+	 */
+	public void testByteLimit() {
+		int lineSize = line(0).estimatedSize();
+		MessageLog log = new MessageLog(100, lineSize * 2);
+		for (int i = 0; i < 5; i++) {
+			log.add(line(i));
+		}
+		assertEquals(2, log.size());
+		assertTrue(log.estimatedBytes() <= lineSize * 2);
+
+		LogLine huge = LogLine.systemLine(0, new String(new char[lineSize * 4]));
+		log.add(huge);
+		assertEquals(1, log.size());
+		assertSame(huge.text, log.getLines().get(0).text);
+	}
+
+	/**
+	 * Tests that lines are numbered in order and that only lines after a given number are returned, unless some
+	 * of those were already evicted.
+	 */
+	public void testLinesSince() {
+		MessageLog log = new MessageLog(3, Integer.MAX_VALUE);
+		assertEquals(0, log.getLastSeq());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i + 1, log.add(line(i)).seq);
+		}
+		assertEquals(5, log.getLastSeq());
+
+		List<LogLine> lines = log.getLinesSince(3);
+		assertEquals(2, lines.size());
+		assertEquals(4, lines.get(0).seq);
+		assertEquals(0, log.getLinesSince(5).size());
+		assertEquals(3, log.getLinesSince(2).size());
+		assertEquals(3, log.getLinesSince(0).size());
+		//Line 2 was evicted, so a reader that has only line 1 cannot catch up incrementally.
+		assertNull(log.getLinesSince(1));
+		//A reader ahead of the log, such as one from before a restart, must start over too.
+		assertNull(log.getLinesSince(6));
+	}
+}
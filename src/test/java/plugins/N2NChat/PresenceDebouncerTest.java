@@ -0,0 +1,76 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that joins and leaves held over a window cancel out or are reported once.
+ */
+public class PresenceDebouncerTest extends TestCase {
+
+	private static final ByteArray FIRST = new ByteArray(new byte[] { 1, 2, 3 });
+	private static final ByteArray SECOND = new ByteArray(new byte[] { 4, 5, 6 });
+
+	/** Counts how many times it is run. */
+	private static class Relay implements Runnable {
+		int runs;
+
+		public void run() {
+			runs++;
+		}
+	}
+
+	/**
+	 * Tests that a leave followed by a rejoin is neither reported nor relayed.
+	 */
+	public void testRejoin() {
+		PresenceDebouncer presence = new PresenceDebouncer();
+		Relay relay = new Relay();
+		presence.left(FIRST, "first", true, relay);
+		assertTrue(presence.holdsRelay(FIRST));
+		assertFalse(presence.holdsRelay(SECOND));
+		assertTrue(presence.joined(FIRST, "first", true));
+		assertFalse(presence.holdsRelay(FIRST));
+
+		PresenceDebouncer.Summary summary = presence.flush();
+		assertTrue(summary.changes.isEmpty());
+		assertTrue(summary.relays.isEmpty());
+		assertTrue(presence.isEmpty());
+	}
+
+	/**
+	 * Tests that several changes are reported in order, by their net effect, with the last leave's relay.
+	 */
+	public void testBurst() {
+		PresenceDebouncer presence = new PresenceDebouncer();
+		Relay first = new Relay();
+		Relay second = new Relay();
+		assertTrue(presence.joined(SECOND, "second", true));
+		presence.left(FIRST, "first", false, first);
+		presence.joined(FIRST, "first", true);
+		presence.left(FIRST, "first", true, second);
+
+		PresenceDebouncer.Summary summary = presence.flush();
+		assertEquals(2, summary.changes.size());
+		assertEquals(SECOND, summary.changes.get(0).pubKeyHash);
+		assertTrue(summary.changes.get(0).joined);
+		assertEquals("first", summary.changes.get(1).name);
+		assertFalse(summary.changes.get(1).joined);
+		assertTrue(summary.changes.get(1).lostConnection);
+		assertEquals(1, summary.relays.size());
+		summary.relays.get(0).run();
+		assertEquals(0, first.runs);
+		assertEquals(1, second.runs);
+	}
+
+	/**
+	 * Tests that a join that would not be shown is only recorded when it undoes a held change.
+	 */
+	public void testSilentJoin() {
+		PresenceDebouncer presence = new PresenceDebouncer();
+		assertFalse(presence.joined(FIRST, "first", false));
+		assertTrue(presence.isEmpty());
+		presence.left(SECOND, "second", false, null);
+		assertTrue(presence.joined(SECOND, "second", false));
+		assertTrue(presence.flush().changes.isEmpty());
+	}
+}
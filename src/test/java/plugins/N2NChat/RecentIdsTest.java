@@ -0,0 +1,37 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests duplicate detection and the bound on remembered message identifiers.
+ */
+public class RecentIdsTest extends TestCase {
+
+	/**
+	 * Tests that an identifier is a duplicate the second time, and that zero never is.
+	 */
+	public void testDuplicate() {
+		RecentIds ids = new RecentIds(4);
+		assertTrue(ids.add(42));
+		assertFalse(ids.add(42));
+		assertTrue(ids.add(0));
+		assertTrue(ids.add(0));
+		assertEquals(1, ids.size());
+	}
+
+	/**
+	 * Tests that the least recently seen identifier is forgotten first once full.
+	 */
+	public void testEviction() {
+		RecentIds ids = new RecentIds(3);
+		ids.add(1);
+		ids.add(2);
+		ids.add(3);
+		//Seeing 1 again makes 2 the least recently seen.
+		assertFalse(ids.add(1));
+		assertTrue(ids.add(4));
+		assertEquals(3, ids.size());
+		assertTrue(ids.add(2));
+		assertFalse(ids.add(4));
+	}
+}
@@ -0,0 +1,127 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests building the relay tree: fan-out limits, links only one end announced, and that every node builds the same
+ * tree.
+ */
+public class RelayTreeTest extends TestCase {
+
+	private static ByteArray node(int value) {
+		return new ByteArray(new byte[] { (byte) value });
+	}
+
+	private static void link(Map<ByteArray, List<ByteArray>> links, int a, int b) {
+		for (int[] pair : new int[][] { { a, b }, { b, a } }) {
+			List<ByteArray> neighbors = links.get(node(pair[0]));
+			if (neighbors == null) {
+				neighbors = new ArrayList<ByteArray>();
+				links.put(node(pair[0]), neighbors);
+			}
+			neighbors.add(node(pair[1]));
+		}
+	}
+
+	/**
+	 * A hub linked with everyone, whose other participants are also linked in a chain: the hub should take only
+	 * its fan-out, and the chain carry the rest.
+	 */
+	private static Map<ByteArray, List<ByteArray>> hubAndChain(int size) {
+		Map<ByteArray, List<ByteArray>> links = new LinkedHashMap<ByteArray, List<ByteArray>>();
+		for (int i = 1; i < size; i++) {
+			link(links, 0, i);
+			if (i > 1) {
+				link(links, i - 1, i);
+			}
+		}
+		return links;
+	}
+
+	/**
+	 * Tests that the hub's fan-out is respected and everyone is still reached.
+	 */
+	public void testFanOut() {
+		int size = 20;
+		RelayTree tree = new RelayTree(hubAndChain(size), new HashMap<ByteArray, Integer>());
+		assertTrue(tree.neighbors(node(0)).size() <= RelayTree.DEFAULT_MAX_FAN_OUT);
+		assertEquals(size, reachable(tree, node(0)));
+		int edges = 0;
+		for (int i = 0; i < size; i++) {
+			assertTrue(tree.contains(node(i)));
+			edges += tree.neighbors(node(i)).size();
+		}
+		//A tree over n nodes has n - 1 links, each counted from both ends.
+		assertEquals(2 * (size - 1), edges);
+	}
+
+	/**
+	 * Tests that a fan-out is exceeded when there is no other way to reach someone.
+	 */
+	public void testStar() {
+		Map<ByteArray, List<ByteArray>> links = new LinkedHashMap<ByteArray, List<ByteArray>>();
+		for (int i = 1; i < 10; i++) {
+			link(links, 0, i);
+		}
+		HashMap<ByteArray, Integer> fanOut = new HashMap<ByteArray, Integer>();
+		fanOut.put(node(0), 2);
+		RelayTree tree = new RelayTree(links, fanOut);
+		assertEquals(9, tree.neighbors(node(0)).size());
+	}
+
+	/**
+	 * Tests that a link only one end announced is not used.
+	 */
+	public void testOneSided() {
+		Map<ByteArray, List<ByteArray>> links = new LinkedHashMap<ByteArray, List<ByteArray>>();
+		links.put(node(1), Arrays.asList(node(2)));
+		links.put(node(2), new ArrayList<ByteArray>());
+		RelayTree tree = new RelayTree(links, new HashMap<ByteArray, Integer>());
+		assertTrue(tree.contains(node(1)));
+		assertTrue(tree.neighbors(node(1)).isEmpty());
+		assertFalse(tree.contains(node(3)));
+	}
+
+	/**
+	 * Tests that the tree does not depend on the order announcements were received in.
+	 */
+	public void testDeterministic() {
+		Map<ByteArray, List<ByteArray>> forward = hubAndChain(12);
+		Map<ByteArray, List<ByteArray>> reverse = new LinkedHashMap<ByteArray, List<ByteArray>>();
+		List<ByteArray> keys = new ArrayList<ByteArray>(forward.keySet());
+		for (int i = keys.size() - 1; i >= 0; i--) {
+			List<ByteArray> neighbors = new ArrayList<ByteArray>(forward.get(keys.get(i)));
+			Collections.reverse(neighbors);
+			reverse.put(keys.get(i), neighbors);
+		}
+		RelayTree a = new RelayTree(forward, new HashMap<ByteArray, Integer>());
+		RelayTree b = new RelayTree(reverse, new HashMap<ByteArray, Integer>());
+		for (ByteArray key : keys) {
+			assertEquals(a.neighbors(key), b.neighbors(key));
+		}
+	}
+
+	private static int reachable(RelayTree tree, ByteArray from) {
+		List<ByteArray> seen = new ArrayList<ByteArray>();
+		List<ByteArray> queue = new ArrayList<ByteArray>();
+		queue.add(from);
+		seen.add(from);
+		while (!queue.isEmpty()) {
+			for (ByteArray next : tree.neighbors(queue.remove(0))) {
+				if (!seen.contains(next)) {
+					seen.add(next);
+					queue.add(next);
+				}
+			}
+		}
+		return seen.size();
+	}
+}
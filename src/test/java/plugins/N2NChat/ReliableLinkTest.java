@@ -0,0 +1,97 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests per-hop delivery state: gap detection, duplicates, acknowledgements, retransmission, and resets.
+ */
+public class ReliableLinkTest extends TestCase {
+
+	private static final ChatFrame FRAME = ChatFrame.message(1, null, 2, "text", 3);
+
+	/**
+	 * Tests that a gap is reported missing once, and that filling it advances the cumulative acknowledgement.
+	 */
+	public void testGap() {
+		ReliableLink link = new ReliableLink(1);
+		assertTrue(link.received(10));
+		assertTrue(link.received(13));
+		assertTrue(Arrays.equals(new long[] { 11, 12 }, link.missing()));
+		assertEquals(0, link.missing().length);
+		assertEquals(10, link.cumulative());
+		assertTrue(Arrays.equals(new long[] { 13 }, link.selective()));
+
+		assertTrue(link.received(12));
+		assertTrue(link.received(11));
+		assertEquals(13, link.cumulative());
+		assertEquals(0, link.selective().length);
+	}
+
+	/**
+	 * Tests that a message received twice is dropped the second time, whether or not it was past a gap.
+	 */
+	public void testDuplicate() {
+		ReliableLink link = new ReliableLink(1);
+		assertTrue(link.received(5));
+		assertFalse(link.received(5));
+		assertTrue(link.received(7));
+		assertFalse(link.received(7));
+	}
+
+	/**
+	 * Tests that cumulative and selective acknowledgements clear the resend buffer, and that requested messages are
+	 * returned with their original sequence numbers.
+	 */
+	public void testAcknowledged() {
+		ReliableLink link = new ReliableLink(100);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(100 + i, link.sent(FRAME, 0));
+		}
+		link.acknowledged(101, new long[] { 104 });
+		assertEquals(2, link.unacknowledged());
+
+		List<ReliableLink.Resend> resends = link.requested(new long[] { 101, 102 }, 0);
+		assertEquals(1, resends.size());
+		assertEquals(102, resends.get(0).seq);
+		assertSame(FRAME, resends.get(0).frame);
+		assertTrue(link.isRetrying());
+
+		link.acknowledged(103, null);
+		assertEquals(0, link.unacknowledged());
+		assertFalse(link.isRetrying());
+		assertEquals(0, link.lost());
+	}
+
+	/**
+	 * Tests that an unacknowledged message is sent again on each timeout and then given up on.
+	 */
+	public void testTimedOut() {
+		ReliableLink link = new ReliableLink(1);
+		link.sent(FRAME, 0);
+		assertEquals(0, link.timedOut(ReliableLink.RESEND_TIMEOUT - 1).size());
+		long now = 0;
+		for (int i = 0; i < ReliableLink.MAX_RESENDS; i++) {
+			now += ReliableLink.RESEND_TIMEOUT;
+			assertEquals(1, link.timedOut(now).size());
+		}
+		now += ReliableLink.RESEND_TIMEOUT;
+		assertEquals(0, link.timedOut(now).size());
+		assertEquals(0, link.unacknowledged());
+		assertEquals(1, link.lost());
+		assertFalse(link.isRetrying());
+	}
+
+	/**
+	 * Tests that a sequence number far from the expected one is taken as the sender starting over.
+	 */
+	public void testReset() {
+		ReliableLink link = new ReliableLink(1);
+		assertTrue(link.received(1000));
+		assertTrue(link.received(1000 + ReliableLink.RESET_DISTANCE * 2));
+		assertEquals(1000 + ReliableLink.RESET_DISTANCE * 2, link.cumulative());
+		assertEquals(0, link.missing().length);
+	}
+}
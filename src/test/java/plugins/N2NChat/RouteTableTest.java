@@ -0,0 +1,77 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+/**
+ * Tests primary and backup routes and failover when a next hop leaves.
+ */
+public class RouteTableTest extends TestCase {
+
+	private static final ByteArray A = hash(1);
+	private static final ByteArray B = hash(2);
+	private static final ByteArray C = hash(3);
+	private static final ByteArray X = hash(10);
+	private static final ByteArray Y = hash(11);
+
+	private static ByteArray hash(int value) {
+		return new ByteArray(new byte[] { (byte) value });
+	}
+
+	/**
+	 * Tests that of routes the same length the first learned is the primary, and any route is authorized.
+	 */
+	public void testPrimary() {
+		RouteTable routes = new RouteTable();
+		assertNull(routes.primary(X));
+		assertTrue(routes.add(X, A, RouteTable.RELAYED_HOPS));
+		assertTrue(routes.add(X, B, RouteTable.RELAYED_HOPS));
+		assertFalse(routes.add(X, A, RouteTable.RELAYED_HOPS));
+		assertEquals(A, routes.primary(X));
+		assertEquals(2, routes.count(X));
+		assertTrue(routes.isRoute(X, B));
+		assertFalse(routes.isRoute(X, C));
+	}
+
+	/**
+	 * Tests that a direct route is preferred over relayed ones, and latency decides between relayed ones.
+	 */
+	public void testCost() {
+		RouteTable routes = new RouteTable();
+		routes.add(X, A, RouteTable.RELAYED_HOPS);
+		routes.add(X, B, RouteTable.RELAYED_HOPS);
+		routes.setLatency(A, 300);
+		routes.setLatency(B, 100);
+		assertEquals(B, routes.primary(X));
+		assertTrue(routes.add(X, X, RouteTable.DIRECT_HOPS));
+		assertEquals(X, routes.primary(X));
+		assertFalse(routes.add(X, X, RouteTable.RELAYED_HOPS));
+
+		Map<ByteArray, ByteArray> changed = routes.removeHop(X);
+		assertEquals(B, changed.get(X));
+	}
+
+	/**
+	 * Tests that participants whose primary leaves fail over to their backup, those with no backup are reported
+	 * unreachable, and those for whom it was only a backup are not reported.
+	 */
+	public void testRemoveHop() {
+		RouteTable routes = new RouteTable();
+		routes.add(A, A, RouteTable.DIRECT_HOPS);
+		routes.add(X, A, RouteTable.RELAYED_HOPS);
+		routes.add(X, B, RouteTable.RELAYED_HOPS);
+		routes.add(Y, C, RouteTable.RELAYED_HOPS);
+		routes.add(Y, A, RouteTable.RELAYED_HOPS);
+
+		Map<ByteArray, ByteArray> changed = routes.removeHop(A);
+		assertEquals(2, changed.size());
+		assertTrue(changed.containsKey(A));
+		assertNull(changed.get(A));
+		assertEquals(B, changed.get(X));
+		assertEquals(B, routes.primary(X));
+		assertEquals(C, routes.primary(Y));
+		assertFalse(routes.isRoute(Y, A));
+		assertEquals(0, routes.count(A));
+	}
+}
@@ -0,0 +1,112 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests SearchIndex queries, room filtering, paging, and rebuilding alongside live additions.
+ */
+public class SearchIndexTest extends TestCase {
+
+	private static LogLine message(long seq, long time, String text) {
+		return new LogLine(time, 0, null, "name", "", ": " + text, true).withSeq(seq);
+	}
+
+	/**
+	 * Tests that only lines with every query token match, regardless of case, and that results are newest first.
+	 */
+	public void testAllTokensMatch() {
+		SearchIndex index = new SearchIndex();
+		index.add(1, message(1, 100, "The quick brown fox"));
+		index.add(1, message(2, 200, "a QUICK reply"));
+		index.add(2, message(1, 300, "quick, brown!"));
+
+		SearchIndex.Results results = index.search("quick brown", null, 0, 10);
+		assertEquals(2, results.total);
+		assertEquals(2, results.hits.get(0).globalIdentifier);
+		assertEquals(1, results.hits.get(1).seq);
+
+		assertEquals(3, index.search("Quick", null, 0, 10).total);
+		assertEquals(0, index.search("quick purple", null, 0, 10).total);
+		assertEquals(0, index.search("  ,.", null, 0, 10).total);
+	}
+
+	/**
+	 * Tests that results can be limited to a room and paged through.
+	 */
+	public void testFilterAndPaging() {
+		SearchIndex index = new SearchIndex();
+		for (int seq = 1; seq <= 30; seq++) {
+			index.add(seq % 2, message(seq, seq, "hello " + seq));
+		}
+		SearchIndex.Results results = index.search("hello", 1L, 0, 10);
+		assertEquals(15, results.total);
+		assertEquals(10, results.hits.size());
+		assertEquals(29, results.hits.get(0).seq);
+
+		results = index.search("hello", 1L, 10, 10);
+		assertEquals(5, results.hits.size());
+		assertEquals(1, results.hits.get(4).seq);
+	}
+
+	/**
+	 * Tests that the oldest lines are dropped once there are too many, and older lines are not added after.
+	 */
+	public void testBounded() {
+		SearchIndex index = new SearchIndex(8);
+		for (int seq = 1; seq <= 9; seq++) {
+			index.add(1, message(seq, seq * 10, seq % 2 == 0 ? "even word" : "odd word"));
+		}
+		assertEquals(6, index.size());
+		SearchIndex.Results results = index.search("word", null, 0, 10);
+		assertEquals(6, results.total);
+		assertEquals(4, results.hits.get(5).seq);
+		assertEquals(3, index.search("even", null, 0, 10).total);
+
+		index.add(2, message(1, 15, "old word"));
+		assertEquals(0, index.search("old", null, 0, 10).total);
+		index.add(2, message(2, 100, "new word"));
+		assertEquals(7, index.search("word", null, 0, 10).total);
+	}
+
+	/**
+	 * Tests that a rebuild from history and lines added live during it do not index the same line twice.
+	 */
+	public void testRebuildWithLiveLines() throws IOException {
+		File directory = File.createTempFile("history", "");
+		assertTrue(directory.delete());
+		HistoryStore history = new HistoryStore(directory, new Executor() {
+			public void execute(Runnable command) {
+				command.run();
+			}
+		});
+		try {
+			for (int seq = 1; seq <= 5; seq++) {
+				history.append(message(seq, seq, "word"));
+			}
+			history.append(LogLine.systemLine(6, "day change").withSeq(6));
+
+			SearchIndex index = new SearchIndex();
+			//Line 5 was said while the rebuild was starting, so it must only be counted once.
+			index.add(7, message(5, 5, "word"));
+			index.rebuild(7, history);
+			assertEquals(5, index.search("word", 7L, 0, 10).total);
+
+			//A rebuild that already covered a line makes a late live addition of it a no-op.
+			SearchIndex rebuiltFirst = new SearchIndex();
+			rebuiltFirst.rebuild(7, history);
+			rebuiltFirst.add(7, message(5, 5, "word"));
+			assertEquals(5, rebuiltFirst.search("word", null, 0, 10).total);
+			assertEquals(0, rebuiltFirst.search("day", null, 0, 10).total);
+		} finally {
+			history.close();
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package plugins.N2NChat.core;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests that timeouts expire on the tick they are due, however far away that is.
+ */
+public class TimerWheelTest extends TestCase {
+
+	/**
+	 * Tests that timeouts expire once their tick has passed, in order, and not before.
+	 */
+	public void testExpiry() {
+		TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 1000);
+		wheel.schedule("later", 1055);
+		wheel.schedule("sooner", 1021);
+		wheel.schedule("past", 900);
+		assertEquals(3, wheel.size());
+
+		assertEquals(Arrays.asList("past"), wheel.advance(1015));
+		assertEquals(Collections.<String>emptyList(), wheel.advance(1019));
+		assertEquals(Arrays.asList("sooner"), wheel.advance(1029));
+		assertEquals(Arrays.asList("later"), wheel.advance(1050));
+		assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * Tests that a timeout more than a turn of the ring away waits for its turn, and that a gap longer than a turn
+	 * expires everything due.
+	 */
+	public void testRounds() {
+		TimerWheel<String> wheel = new TimerWheel<String>(10, 8, 0);
+		wheel.schedule("next turn", 95);
+		wheel.schedule("same slot", 15);
+		assertEquals(Arrays.asList("same slot"), wheel.advance(15));
+		assertTrue(wheel.advance(85).isEmpty());
+		assertEquals(Arrays.asList("next turn"), wheel.advance(90));
+
+		wheel.schedule("first", 120);
+		wheel.schedule("second", 170);
+		assertEquals(2, wheel.advance(10000).size());
+		assertEquals(0, wheel.size());
+	}
+}